@@ -0,0 +1,31 @@
+package se.cag.labs.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks like the plain JMH main class, but writes the results as JSON to
+ * jmh-result.json unless another result format or file is given.
+ */
+public final class BenchmarkRunner {
+  private static final String RESULT_FILE = "jmh-result.json";
+
+  private BenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<String> arguments = new ArrayList<>(Arrays.asList(args));
+    if (!arguments.contains("-rf")) {
+      arguments.add("-rf");
+      arguments.add("json");
+    }
+    if (!arguments.contains("-rff")) {
+      arguments.add("-rff");
+      arguments.add(RESULT_FILE);
+    }
+    Main.main(arguments.toArray(new String[arguments.size()]));
+  }
+}
@@ -0,0 +1,90 @@
+package se.cag.labs.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.leaderboard.ResultType;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes and deserializes the DTOs sent between the services, with one ObjectMapper
+ * like the one Spring MVC uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private RaceStatus currentRaceStatus;
+  private se.cag.labs.raceadmin.RaceStatus raceAdminStatus;
+  private se.cag.labs.raceadmin.UserResult raceAdminResult;
+  private se.cag.labs.leaderboard.UserResult leaderboardResult;
+
+  @Setup
+  public void setup() {
+    long now = System.currentTimeMillis();
+    currentRaceStatus = RaceStatus.builder()
+      .event(RaceStatus.Event.FINISH)
+      .state(RaceStatus.State.INACTIVE)
+      .startTime(now)
+      .splitTime(now + 4000)
+      .finishTime(now + 9000)
+      .currentTime(9000L)
+      .build();
+
+    se.cag.labs.raceadmin.User raceAdminUser = se.cag.labs.raceadmin.User.builder()
+      .userId("user-1")
+      .displayName("Nisse")
+      .timestamp(now)
+      .build();
+    raceAdminStatus = new se.cag.labs.raceadmin.RaceStatus(raceAdminUser);
+    raceAdminStatus.setEvent(se.cag.labs.raceadmin.RaceStatus.RaceEvent.FINISH);
+    raceAdminStatus.setStartTime(now);
+    raceAdminStatus.setSplitTime(now + 4000);
+    raceAdminStatus.setFinishTime(now + 9000);
+    raceAdminStatus.setCurrentTime(9000L);
+    raceAdminResult = se.cag.labs.raceadmin.UserResult.builder()
+      .created(now)
+      .user(raceAdminUser)
+      .time(9000)
+      .splitTime(4000)
+      .result(se.cag.labs.raceadmin.UserResult.ResultType.FINISHED)
+      .build();
+
+    leaderboardResult = new se.cag.labs.leaderboard.UserResult();
+    leaderboardResult.setUser(se.cag.labs.leaderboard.User.builder()
+      .userId("user-1")
+      .displayName("Nisse")
+      .timestamp(now)
+      .build());
+    leaderboardResult.setTime(9000);
+    leaderboardResult.setSplitTime(4000);
+    leaderboardResult.setResult(ResultType.FINISHED);
+  }
+
+  @Benchmark
+  public RaceStatus currentRaceStatus() throws IOException {
+    return mapper.readValue(mapper.writeValueAsBytes(currentRaceStatus), RaceStatus.class);
+  }
+
+  @Benchmark
+  public se.cag.labs.raceadmin.RaceStatus raceAdminStatus() throws IOException {
+    return mapper.readValue(mapper.writeValueAsBytes(raceAdminStatus), se.cag.labs.raceadmin.RaceStatus.class);
+  }
+
+  @Benchmark
+  public se.cag.labs.raceadmin.UserResult raceAdminUserResult() throws IOException {
+    return mapper.readValue(mapper.writeValueAsBytes(raceAdminResult), se.cag.labs.raceadmin.UserResult.class);
+  }
+
+  @Benchmark
+  public se.cag.labs.leaderboard.UserResult leaderboardUserResult() throws IOException {
+    return mapper.readValue(mapper.writeValueAsBytes(leaderboardResult), se.cag.labs.leaderboard.UserResult.class);
+  }
+}
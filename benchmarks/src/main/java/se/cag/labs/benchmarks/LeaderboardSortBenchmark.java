@@ -0,0 +1,65 @@
+package se.cag.labs.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import se.cag.labs.leaderboard.LeaderBoardController;
+import se.cag.labs.leaderboard.LeaderBoardRepository;
+import se.cag.labs.leaderboard.ResultType;
+import se.cag.labs.leaderboard.User;
+import se.cag.labs.leaderboard.UserResult;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GET /results on the leaderboard, with the repository replaced by a list in memory so only the
+ * filtering and sorting in the controller is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LeaderboardSortBenchmark {
+  @Param({"10000", "100000", "1000000"})
+  private int size;
+
+  private LeaderBoardController controller;
+
+  @Setup
+  public void setup() throws ReflectiveOperationException {
+    Random random = new Random(size);
+    List<UserResult> results = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      UserResult result = new UserResult();
+      result.setUser(User.builder().userId("user-" + random.nextInt(size / 10)).build());
+      result.setTime(5000 + random.nextInt(20000));
+      result.setSplitTime(result.getTime() / 2);
+      result.setResult(random.nextInt(10) == 0 ? ResultType.DISQUALIFIED : ResultType.FINISHED);
+      results.add(result);
+    }
+
+    LeaderBoardRepository repository = (LeaderBoardRepository) Proxy.newProxyInstance(
+      LeaderBoardRepository.class.getClassLoader(),
+      new Class<?>[]{LeaderBoardRepository.class},
+      (proxy, method, args) -> {
+        if (method.getName().equals("findAll") && method.getParameterCount() == 0) {
+          return results;
+        }
+        throw new UnsupportedOperationException(method.getName());
+      });
+    controller = new LeaderBoardController();
+    Field field = LeaderBoardController.class.getDeclaredField("repository");
+    field.setAccessible(true);
+    field.set(controller, repository);
+  }
+
+  @Benchmark
+  public List<UserResult> results() {
+    return controller.results();
+  }
+}
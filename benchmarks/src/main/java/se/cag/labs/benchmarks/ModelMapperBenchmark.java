@@ -0,0 +1,38 @@
+package se.cag.labs.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.apicontroller.mapper.ModelMapper;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.SystemRaceClock;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelMapperBenchmark {
+  private CurrentRaceStatus status;
+
+  @Setup
+  public void setup() {
+    long now = System.currentTimeMillis();
+    status = CurrentRaceStatus.builder()
+      .callbackUrl("http://localhost:10380/onracestatusupdate")
+      .event(RaceStatus.Event.SPLIT)
+      .state(RaceStatus.State.ACTIVE)
+      .raceActivatedTime(now)
+      .localStartTime(now)
+      .startTime(now)
+      .splitTime(now + 4000)
+      .build();
+  }
+
+  @Benchmark
+  public RaceStatus createStatusResponse() {
+    return ModelMapper.createStatusResponse(status, SystemRaceClock.INSTANCE);
+  }
+}
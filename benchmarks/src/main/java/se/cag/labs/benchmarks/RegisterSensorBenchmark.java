@@ -0,0 +1,63 @@
+package se.cag.labs.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.sensors.RaceState;
+import se.cag.labs.currentrace.services.sensors.RegisterSensor;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorFactory;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sensor state machine as used by PassageDetectedService, for a passage that is accepted. The state
+ * is reset to the state before the passage on every call so each call does the same transition.
+ * Run with -prof gc to see the allocation rate, which should be zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegisterSensorBenchmark {
+  @Param({"START", "SPLIT", "FINISH"})
+  private RegisterSensorType type;
+
+  private RegisterSensor sensor;
+  private RaceState state;
+  private RaceStatus.Event previousEvent;
+  private long timestamp;
+
+  @Setup
+  public void setup() {
+    sensor = RegisterSensorFactory.INSTANCE.getRegisterSensor(type);
+    state = new RaceState();
+    state.setRaceActivatedTime(System.currentTimeMillis());
+    previousEvent = type == RegisterSensorType.START ? RaceStatus.Event.NONE : RaceStatus.Event.START;
+  }
+
+  @Benchmark
+  public boolean updateStatus() {
+    reset();
+    return sensor.updateStatus(state, ++timestamp);
+  }
+
+  @Benchmark
+  public boolean lookupAndUpdateStatus() {
+    reset();
+    return RegisterSensorFactory.INSTANCE.getRegisterSensor(type).updateStatus(state, ++timestamp);
+  }
+
+  private void reset() {
+    state.setEvent(previousEvent);
+    state.setState(RaceStatus.State.ACTIVE);
+    state.clearPassages();
+    if (type != RegisterSensorType.START) {
+      state.setStartTime(1234L);
+    }
+    if (type == RegisterSensorType.FINISH) {
+      state.pass(12345L);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package se.cag.labs.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegisterSensorTypeBenchmark {
+  @Param({"START", "SPLIT", "FINISH", "FAULTY"})
+  private String sensorId;
+
+  @Benchmark
+  public RegisterSensorType get() {
+    return RegisterSensorType.get(sensorId);
+  }
+}
@@ -50,4 +50,38 @@ public class EventChannelController {
       return ResponseEntity.badRequest().build();
     }
   }
+
+  @RequestMapping(value = "/events", method = RequestMethod.POST, consumes = {"application/json"})
+  @ApiOperation(value = "Send several events to the client, via the event bus",
+    notes = "Send several events to the client in one call, via the event bus.<br>" +
+      "The events shall be a JSON array of objects with at least one field each:<br>" +
+      "<pre>\n  [{\n    \"eventType\":&lt;string&gt;\n  }]\n</pre>" +
+      "The events are sent in the order of the array.")
+  @ApiResponses(value = {
+    @ApiResponse(code = 200, message = "The events were sent successfully"),
+    @ApiResponse(code = 400, message = "The events were not a JSON array of objects containing \"eventType\""),
+    @ApiResponse(code = 500, message = "Something went wrong when sending the events")
+  })
+  public ResponseEntity sendEvents(
+    @ApiParam(value = "The messages to send",
+      defaultValue = "[{\"eventType\":\"test\"}]",
+      required = false)
+    InputStream stream) {
+
+    try {
+      final JsonNode jsonTree = objectMapper.readTree(stream);
+      if (jsonTree == null || !jsonTree.isArray()) {
+        return ResponseEntity.badRequest().build();
+      }
+      for (JsonNode event : jsonTree) {
+        if (!event.has("eventType")) {
+          return ResponseEntity.badRequest().build();
+        }
+      }
+      jsonTree.forEach(event -> eventChannelSocketHandler.broadcastMessage(event.toString()));
+      return ResponseEntity.ok().build();
+    } catch (IOException e) {
+      return ResponseEntity.badRequest().build();
+    }
+  }
 }
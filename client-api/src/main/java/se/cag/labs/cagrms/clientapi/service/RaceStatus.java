@@ -15,6 +15,9 @@ public class RaceStatus {
   private Long startTime;
   private Long splitTime;
   private Long finishTime;
+  private long[] passageTimes;
+  private long[] sectorTimes;
+  private long[] elapsedMicros;
   private Long currentTime;
   private RaceStatus.State state;
   private User user;
@@ -10,7 +10,9 @@ public class UserResult {
   private long created = System.currentTimeMillis();
   private User user;
   private long time;
+  private Long timeMicros;
   private long splitTime;
+  private long[] sectorTimes;
   private ResultType result;
   public enum ResultType {
     FINISHED, WALKOVER, DISQUALIFIED
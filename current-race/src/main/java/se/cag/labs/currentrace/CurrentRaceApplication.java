@@ -7,6 +7,7 @@ import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import se.cag.labs.currentrace.services.CancelRaceService;
+import se.cag.labs.currentrace.services.LaneService;
 
 @SpringBootApplication
 @EnableMongoRepositories
@@ -16,6 +17,7 @@ public class CurrentRaceApplication {
   public static void main(String[] args) {
     ConfigurableApplicationContext app = SpringApplication.run(CurrentRaceApplication.class, args);
     CancelRaceService cancelRaceService = (CancelRaceService) app.getBean("cancelRaceService");
-    cancelRaceService.cancelRace();
+    LaneService laneService = (LaneService) app.getBean("laneService");
+    laneService.getLanes().forEach(cancelRaceService::cancelRace);
   }
 }
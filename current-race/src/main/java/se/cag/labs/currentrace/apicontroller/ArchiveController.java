@@ -0,0 +1,75 @@
+package se.cag.labs.currentrace.apicontroller;
+
+import io.swagger.annotations.*;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import se.cag.labs.currentrace.archive.ArchivedPassage;
+import se.cag.labs.currentrace.archive.ArchivedRace;
+import se.cag.labs.currentrace.archive.RaceArchive;
+
+import java.io.IOException;
+import java.util.List;
+
+@Api(basePath = "*", value = "Race archive", description = "Completed races and their passages", produces = "application/json")
+@RestController
+@CrossOrigin(origins = "*", methods = {RequestMethod.GET})
+@Log4j
+public class ArchiveController {
+  public static final String ARCHIVED_RACES_URL = "/archive/races";
+  public static final String ARCHIVED_PASSAGES_URL = "/archive/passages";
+
+  @Autowired
+  private RaceArchive raceArchive;
+
+  @RequestMapping(value = ARCHIVED_RACES_URL, method = RequestMethod.GET)
+  @ApiOperation(value = "Completed races", notes = "Races that ended in the time range, in the order they ended")
+  public ResponseEntity<List<ArchivedRace>> races(
+    @RequestParam(defaultValue = "0")
+    @ApiParam(value = "Millis, inclusive")
+      long from,
+    @RequestParam(defaultValue = "" + Long.MAX_VALUE)
+    @ApiParam(value = "Millis, exclusive")
+      long to,
+    @RequestParam(required = false)
+    @ApiParam(value = "The lane of the races, all lanes if not given")
+      String lane) {
+    try {
+      return new ResponseEntity<>(raceArchive.races(from, to, lane), HttpStatus.OK);
+    } catch (IOException e) {
+      log.error("Could not read race archive", e);
+      return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  @RequestMapping(value = ARCHIVED_PASSAGES_URL, method = RequestMethod.GET)
+  @ApiOperation(value = "Passages of a sensor", notes = "Passages of the sensor in the races that ended in the time range")
+  @ApiResponses(value = {
+    @ApiResponse(code = 200, message = "Passages"),
+    @ApiResponse(code = 417, message = "Unknown sensor")
+  })
+  public ResponseEntity<List<ArchivedPassage>> passages(
+    @RequestParam
+    @ApiParam(value = "START, SPLIT, SPLIT2 and onwards, or FINISH")
+      String sensorID,
+    @RequestParam(defaultValue = "0")
+    @ApiParam(value = "Millis, inclusive")
+      long from,
+    @RequestParam(defaultValue = "" + Long.MAX_VALUE)
+    @ApiParam(value = "Millis, exclusive")
+      long to,
+    @RequestParam(required = false)
+    @ApiParam(value = "The lane of the races, all lanes if not given")
+      String lane) {
+    try {
+      return new ResponseEntity<>(raceArchive.passages(sensorID, from, to, lane), HttpStatus.OK);
+    } catch (IllegalArgumentException e) {
+      return new ResponseEntity<>(HttpStatus.EXPECTATION_FAILED);
+    } catch (IOException e) {
+      log.error("Could not read race archive", e);
+      return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+  }
+}
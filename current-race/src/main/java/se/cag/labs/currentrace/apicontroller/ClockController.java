@@ -0,0 +1,82 @@
+package se.cag.labs.currentrace.apicontroller;
+
+import io.swagger.annotations.*;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import se.cag.labs.currentrace.apicontroller.apimodel.ClockResponse;
+import se.cag.labs.currentrace.time.RaceClock;
+import se.cag.labs.currentrace.time.VirtualRaceClock;
+
+@Api(basePath = "*", value = "Race clock", description = "The clock races are timed by", produces = "application/json")
+@RestController
+@CrossOrigin(origins = "*", methods = {RequestMethod.GET, RequestMethod.POST})
+@Log4j
+public class ClockController {
+  public static final String CLOCK_URL = "/clock";
+  public static final String ADVANCE_CLOCK_URL = "/clock/advance";
+  public static final String CLOCK_SPEED_URL = "/clock/speed";
+
+  @Autowired
+  private RaceClock raceClock;
+
+  @RequestMapping(value = CLOCK_URL, method = RequestMethod.GET)
+  @ApiOperation(value = "Race clock", notes = "The time of the race clock and how fast it runs")
+  public ClockResponse clock() {
+    return ClockResponse.builder()
+      .time(raceClock.millis())
+      .speed(raceClock instanceof VirtualRaceClock ? ((VirtualRaceClock) raceClock).getSpeed() : 1)
+      .virtual(raceClock instanceof VirtualRaceClock)
+      .build();
+  }
+
+  @RequestMapping(value = ADVANCE_CLOCK_URL, method = RequestMethod.POST)
+  @ApiOperation(value = "Advance the race clock", notes = "Moves a virtual race clock forward, time limits that run out are handled at once")
+  @ApiResponses(value = {
+    @ApiResponse(code = 200, message = "Advanced"),
+    @ApiResponse(code = 400, message = "Negative millis"),
+    @ApiResponse(code = 404, message = "The race clock is not virtual")
+  })
+  public ResponseEntity<ClockResponse> advance(
+    @RequestParam
+    @ApiParam(value = "Millis to move the clock forward")
+      long millis) {
+    if (!(raceClock instanceof VirtualRaceClock)) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    try {
+      ((VirtualRaceClock) raceClock).advance(millis);
+    } catch (IllegalArgumentException e) {
+      log.info(e.getMessage());
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+    log.info("Advanced the race clock " + millis + " ms");
+    return new ResponseEntity<>(clock(), HttpStatus.OK);
+  }
+
+  @RequestMapping(value = CLOCK_SPEED_URL, method = RequestMethod.POST)
+  @ApiOperation(value = "Set the speed of the race clock", notes = "How many times faster than real time a virtual race clock runs, 0 stops it")
+  @ApiResponses(value = {
+    @ApiResponse(code = 200, message = "Speed set"),
+    @ApiResponse(code = 400, message = "Invalid speed"),
+    @ApiResponse(code = 404, message = "The race clock is not virtual")
+  })
+  public ResponseEntity<ClockResponse> speed(
+    @RequestParam
+    @ApiParam(value = "Times real time, 0 to stop the clock")
+      double speed) {
+    if (!(raceClock instanceof VirtualRaceClock)) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    try {
+      ((VirtualRaceClock) raceClock).setSpeed(speed);
+    } catch (IllegalArgumentException e) {
+      log.info(e.getMessage());
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+    log.info("Race clock runs at " + speed + "x");
+    return new ResponseEntity<>(clock(), HttpStatus.OK);
+  }
+}
@@ -3,15 +3,28 @@ package se.cag.labs.currentrace.apicontroller;
 import io.swagger.annotations.*;
 import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import se.cag.labs.currentrace.apicontroller.apimodel.Passage;
+import se.cag.labs.currentrace.apicontroller.apimodel.PassageResult;
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
 import se.cag.labs.currentrace.apicontroller.mapper.ModelMapper;
 import se.cag.labs.currentrace.services.CancelRaceService;
+import se.cag.labs.currentrace.services.LaneService;
 import se.cag.labs.currentrace.services.PassageDetectedService;
 import se.cag.labs.currentrace.services.StartRaceService;
 import se.cag.labs.currentrace.services.StatusService;
+import se.cag.labs.currentrace.services.StatusStreamService;
+import se.cag.labs.currentrace.services.sensors.RaceState;
+import se.cag.labs.currentrace.time.RaceClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Api(basePath = "*", value = "Current race", description = "Current race services", produces = "application/json")
 @RestController
@@ -21,8 +34,13 @@ public class CurrentRaceController {
   public static final String START_RACE_URL = "/startRace";
   public static final String CANCEL_RACE_URL = "/cancelRace";
   public static final String PASSAGE_DETECTED_URL = "/passageDetected";
+  public static final String PASSAGES_DETECTED_URL = "/passageDetected/batch";
   public static final String STATUS_URL = "/status";
+  public static final String LANES_STATUS_URL = "/status/lanes";
+  public static final String STATUS_STREAM_URL = "/status/stream";
 
+  @Value("${currentrace.status.max-wait:30000}")
+  private long maxWait;
   @Autowired
   private StartRaceService startRaceService;
   @Autowired
@@ -31,13 +49,19 @@ public class CurrentRaceController {
   private PassageDetectedService passageDetectedService;
   @Autowired
   private StatusService statusService;
+  @Autowired
+  private StatusStreamService statusStreamService;
+  @Autowired
+  private LaneService laneService;
+  @Autowired
+  private RaceClock raceClock;
 
   @RequestMapping(value = START_RACE_URL, method = RequestMethod.POST)
   @ApiOperation(value = "Start new race", notes = "Start new race")
   @ApiResponses(value = {
     @ApiResponse(code = 202, message = "Race is starting"),
     @ApiResponse(code = 302, message = "Race is already started"),
-    @ApiResponse(code = 404, message = "ASD"),
+    @ApiResponse(code = 404, message = "Unknown lane"),
     @ApiResponse(code = 418, message = "Something went terribly wrong")
   })
   public ResponseEntity startRace(
@@ -45,21 +69,26 @@ public class CurrentRaceController {
     @ApiParam(value = "The callback to use to report status changes when the race starts",
       defaultValue = "http://localhost:10380/onracestatusupdate",
       required = true)
-      String callbackUrl) {
+      String callbackUrl,
+    @RequestParam(required = false)
+    @ApiParam(value = "The lane to start the race in, the default lane if not given")
+      String lane) {
 
-    switch (startRaceService.startRace(callbackUrl)) {
+    switch (startRaceService.startRace(lane == null ? LaneService.DEFAULT_LANE : lane, callbackUrl)) {
       case FOUND:
         return new ResponseEntity(HttpStatus.FOUND);
       case STARTED:
         return new ResponseEntity(HttpStatus.ACCEPTED);
+      case UNKNOWN_LANE:
+        return new ResponseEntity(HttpStatus.NOT_FOUND);
       default:
         return new ResponseEntity(HttpStatus.I_AM_A_TEAPOT);
     }
   }
 
   @RequestMapping(value = CANCEL_RACE_URL, method = RequestMethod.POST)
-  public ResponseEntity cancelRace() {
-    switch (cancelRaceService.cancelRace()) {
+  public ResponseEntity cancelRace(@RequestParam(required = false) String lane) {
+    switch (cancelRaceService.cancelRace(lane == null ? LaneService.DEFAULT_LANE : lane)) {
       case ACCEPTED:
         return new ResponseEntity(HttpStatus.ACCEPTED);
       case NOT_FOUND:
@@ -70,9 +99,14 @@ public class CurrentRaceController {
   }
 
   @RequestMapping(value = PASSAGE_DETECTED_URL, method = RequestMethod.POST)
-  public ResponseEntity passageDetected(@RequestParam String sensorID, @RequestParam long timestamp) {
-    log.debug("/passageDetected?sensorId=" + sensorID + "&timestamp=" + timestamp);
-    switch (passageDetectedService.passageDetected(sensorID, timestamp)) {
+  public ResponseEntity passageDetected(@RequestParam String sensorID, @RequestParam long timestamp,
+                                        @RequestParam(required = false) String lane,
+                                        @RequestParam(required = false) Long clockEpoch,
+                                        @RequestParam(required = false) Long nanoTime,
+                                        @RequestParam(required = false) String controllerId) {
+    log.debug("/passageDetected?sensorId=" + sensorID + "&timestamp=" + timestamp + "&lane=" + lane + "&nanoTime=" + nanoTime);
+    switch (passageDetectedService.passageDetected(sensorID, lane, controllerId, timestamp,
+      clockEpoch == null ? RaceState.NOT_SET : clockEpoch, nanoTime == null ? RaceState.NOT_SET : nanoTime)) {
       case ACCEPTED:
         return new ResponseEntity(HttpStatus.ACCEPTED);
       case IGNORED:
@@ -84,8 +118,89 @@ public class CurrentRaceController {
     }
   }
 
+  @RequestMapping(value = PASSAGES_DETECTED_URL, method = RequestMethod.POST)
+  @ApiOperation(value = "Report several passages at once",
+    notes = "Passages are applied in timestamp order, the result has one status per passage in request order")
+  public List<PassageResult> passagesDetected(
+    @ApiParam(defaultValue = "[{\"sensorID\":\"START\", \"timestamp\":1234}, {\"sensorID\":\"FINISH\", \"timestamp\":12345}]")
+    @RequestBody List<Passage> passages) {
+    log.debug("/passageDetected/batch with " + passages.size() + " passages");
+    List<PassageDetectedService.ReturnStatus> statuses = passageDetectedService.passagesDetected(passages);
+    List<PassageResult> result = new ArrayList<>(passages.size());
+    for (int i = 0; i < passages.size(); i++) {
+      result.add(PassageResult.builder()
+        .sensorID(passages.get(i).getSensorID())
+        .timestamp(passages.get(i).getTimestamp())
+        .lane(passages.get(i).getLane())
+        .status(statuses.get(i).name())
+        .build());
+    }
+    return result;
+  }
+
   @RequestMapping(value = STATUS_URL, method = RequestMethod.GET)
-  public RaceStatus status() {
-    return ModelMapper.createStatusResponse(statusService.status());
+  public RaceStatus status(@RequestParam(required = false) String lane) {
+    return ModelMapper.createStatusResponse(statusService.status(lane == null ? LaneService.DEFAULT_LANE : lane), raceClock);
+  }
+
+  @RequestMapping(value = STATUS_URL, method = RequestMethod.GET, params = "sinceVersion")
+  @ApiOperation(value = "Wait for the status to change",
+    notes = "Answers when the version of the race differs from sinceVersion, or with the unchanged status when waitMs has passed")
+  @ApiResponses(value = {
+    @ApiResponse(code = 200, message = "Status of the race"),
+    @ApiResponse(code = 404, message = "Unknown lane")
+  })
+  public DeferredResult<ResponseEntity<RaceStatus>> awaitStatus(
+    @RequestParam
+    @ApiParam(value = "The version of the last status seen, 0 if none")
+      long sinceVersion,
+    @RequestParam(required = false)
+    @ApiParam(value = "Millis to wait for a change, at most 30 s")
+      Long waitMs,
+    @RequestParam(required = false)
+    @ApiParam(value = "The lane of the race, the default lane if not given")
+      String lane) {
+    String raceLane = lane == null ? LaneService.DEFAULT_LANE : lane;
+    long wait = waitMs == null ? maxWait : Math.max(1, Math.min(waitMs, maxWait));
+    DeferredResult<ResponseEntity<RaceStatus>> result = new DeferredResult<>(wait);
+    if (!laneService.isLane(raceLane)) {
+      result.setResult(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+      return result;
+    }
+
+    Runnable cancel = statusService.awaitStatus(raceLane, sinceVersion,
+      status -> result.setResult(new ResponseEntity<>(status, HttpStatus.OK)));
+    result.onTimeout(() -> result.setResult(
+      new ResponseEntity<>(ModelMapper.createStatusResponse(statusService.status(raceLane), raceClock), HttpStatus.OK)));
+    result.onCompletion(cancel);
+    return result;
+  }
+
+  @RequestMapping(value = LANES_STATUS_URL, method = RequestMethod.GET)
+  @ApiOperation(value = "Status of all lanes", notes = "Lanes where no race has been started are left out")
+  public List<RaceStatus> statusOfAllLanes() {
+    return statusService.statusOfAllLanes().stream()
+      .map(status -> ModelMapper.createStatusResponse(status, raceClock))
+      .collect(Collectors.toList());
+  }
+
+  @RequestMapping(value = STATUS_STREAM_URL, method = RequestMethod.GET, produces = "text/event-stream")
+  @ApiOperation(value = "Stream of race status changes",
+    notes = "Server-sent events, a status event on every change and, if asked for, a tick event with the running time of active races")
+  @ApiResponses(value = {
+    @ApiResponse(code = 200, message = "Streaming"),
+    @ApiResponse(code = 404, message = "Unknown lane")
+  })
+  public ResponseEntity<SseEmitter> statusStream(
+    @RequestParam(required = false)
+    @ApiParam(value = "The lane to follow, all lanes if not given")
+      String lane,
+    @RequestParam(defaultValue = "false")
+    @ApiParam(value = "Send the running time of active races every second")
+      boolean ticks) {
+    if (lane != null && !laneService.isLane(lane)) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return new ResponseEntity<>(statusStreamService.subscribe(lane, ticks), HttpStatus.OK);
   }
 }
@@ -9,7 +9,11 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import se.cag.labs.currentrace.apicontroller.apimodel.Sensor;
 import se.cag.labs.currentrace.apicontroller.apimodel.SensorResponse;
+import se.cag.labs.currentrace.apicontroller.apimodel.TimeSync;
+import se.cag.labs.currentrace.apicontroller.apimodel.TimeSyncResponse;
+import se.cag.labs.currentrace.services.ClockSyncService;
 import se.cag.labs.currentrace.services.SensorService;
+import se.cag.labs.currentrace.time.RaceClock;
 
 import java.util.List;
 
@@ -22,9 +26,14 @@ import java.util.List;
 public class SensorController {
   public static final String REGISTER_SENSOR_URL = "/registerSensor";
   public static final String SHOW_REGISTERED_SENSORS_URL = "/sensors";
+  public static final String TIME_SYNC_URL = "/timeSync";
 
   @Autowired
   private SensorService sensorService;
+  @Autowired
+  private ClockSyncService clockSyncService;
+  @Autowired
+  private RaceClock raceClock;
 
   @RequestMapping(value = REGISTER_SENSOR_URL, method = RequestMethod.POST)
   @ApiOperation(value = "Register sensor IP-address")
@@ -54,4 +63,10 @@ public class SensorController {
     return sensorService.getSensorList();
   }
 
+  @RequestMapping(value = TIME_SYNC_URL, method = RequestMethod.POST)
+  @ApiOperation(value = "Sync the clock of a sensor controller",
+    notes = "Answers with the receive and transmit times of the server. The request carries the four timestamps of the previous exchange, they update the offset and drift estimate of the controller")
+  public TimeSyncResponse timeSync(@RequestBody TimeSync timeSync) {
+    return clockSyncService.timeSync(timeSync, raceClock.millis());
+  }
 }
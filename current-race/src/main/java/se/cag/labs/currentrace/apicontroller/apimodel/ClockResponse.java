@@ -0,0 +1,23 @@
+package se.cag.labs.currentrace.apicontroller.apimodel;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+@JsonDeserialize(builder = ClockResponse.ClockResponseBuilder.class)
+public final class ClockResponse {
+  @ApiModelProperty(value = "The time of the race clock in millis")
+  private final long time;
+  @ApiModelProperty(value = "How many times faster than real time the race clock runs")
+  private final double speed;
+  @ApiModelProperty(value = "True if the race clock is virtual and can be advanced")
+  private final boolean virtual;
+
+  @JsonPOJOBuilder(withPrefix = "")
+  public static final class ClockResponseBuilder {
+  }
+}
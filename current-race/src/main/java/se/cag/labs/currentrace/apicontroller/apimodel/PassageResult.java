@@ -0,0 +1,22 @@
+package se.cag.labs.currentrace.apicontroller.apimodel;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonDeserialize(builder = PassageResult.PassageResultBuilder.class)
+public class PassageResult {
+  private String sensorID;
+  private long timestamp;
+  private String lane;
+  private String status;
+
+  @JsonPOJOBuilder(withPrefix = "")
+  public static final class PassageResultBuilder {
+  }
+}
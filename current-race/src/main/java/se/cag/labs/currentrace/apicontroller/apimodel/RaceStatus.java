@@ -6,9 +6,11 @@ import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 
 @Builder(toBuilder = true)
 @Data
+@EqualsAndHashCode(exclude = "version")
 @JsonInclude(JsonInclude.Include.NON_NULL)
 @JsonDeserialize(builder = RaceStatus.RaceStatusBuilder.class)
 public final class RaceStatus {
@@ -16,8 +18,19 @@ public final class RaceStatus {
   private final Long startTime;
   private final Long splitTime;
   private final Long finishTime;
+  private final long[] passageTimes;
+  private final long[] sectorTimes;
+  /**
+   * Micros from the start to each passage on the monotonic sensor clock, when all of them were measured on it
+   */
+  private final long[] elapsedMicros;
   private final Long currentTime;
   private final State state;
+  private final String lane;
+  /**
+   * Changes every time the race changes, to be given as sinceVersion to wait for the next change
+   */
+  private final Long version;
 
   public enum Event {
     NONE, START, SPLIT, FINISH, TIME_OUT_NOT_STARTED, TIME_OUT_NOT_FINISHED, DISQUALIFIED
@@ -9,7 +9,7 @@ import lombok.Data;
 
 import java.time.LocalDateTime;
 
-@Builder
+@Builder(toBuilder = true)
 @Data
 @JsonInclude(JsonInclude.Include.NON_NULL)
 @JsonDeserialize(builder = SensorResponse.SensorResponseBuilder.class)
@@ -18,6 +18,13 @@ public class SensorResponse {
   private String sensorIpAddress;
   @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd HH:mm:ss", timezone = "Europe/Stockholm")
   private LocalDateTime registeredDate;
+  private Boolean alive;
+  private Long heartbeats;
+  private Long passages;
+  private Long lastLatency;
+  private Long clockOffset;
+  private Double clockDriftPpm;
+  private Long clockRoundTrip;
 
   @JsonPOJOBuilder(withPrefix = "")
   public static final class SensorResponseBuilder {
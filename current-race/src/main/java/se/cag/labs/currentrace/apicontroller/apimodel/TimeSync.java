@@ -0,0 +1,29 @@
+package se.cag.labs.currentrace.apicontroller.apimodel;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * A time sync request from a sensor controller. Besides the time it was sent it carries the four timestamps of
+ * the previous exchange, which the controller completed when it got the answer, so every exchange is a
+ * single request.
+ */
+@Builder
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonDeserialize(builder = TimeSync.TimeSyncBuilder.class)
+public class TimeSync {
+  private String sensorId;
+  private long originateTime;
+  private Long lastOriginateTime;
+  private Long lastReceiveTime;
+  private Long lastTransmitTime;
+  private Long lastDestinationTime;
+
+  @JsonPOJOBuilder(withPrefix = "")
+  public static final class TimeSyncBuilder {
+  }
+}
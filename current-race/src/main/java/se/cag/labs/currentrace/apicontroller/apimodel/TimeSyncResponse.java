@@ -0,0 +1,21 @@
+package se.cag.labs.currentrace.apicontroller.apimodel;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonDeserialize(builder = TimeSyncResponse.TimeSyncResponseBuilder.class)
+public class TimeSyncResponse {
+  private long originateTime;
+  private long receiveTime;
+  private long transmitTime;
+
+  @JsonPOJOBuilder(withPrefix = "")
+  public static final class TimeSyncResponseBuilder {
+  }
+}
@@ -2,13 +2,19 @@ package se.cag.labs.currentrace.apicontroller.mapper;
 
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.RaceClock;
+
+import java.util.concurrent.TimeUnit;
 
 public final class ModelMapper {
   private ModelMapper() {
     //Not used
   }
 
-  public static RaceStatus createStatusResponse(CurrentRaceStatus currentRaceStatus) {
+  /**
+   * @param clock the clock the race was started on, for the running time of the race
+   */
+  public static RaceStatus createStatusResponse(CurrentRaceStatus currentRaceStatus, RaceClock clock) {
     if (currentRaceStatus == null) {
       return RaceStatus.builder()
         .state(RaceStatus.State.INACTIVE)
@@ -19,9 +25,58 @@ public final class ModelMapper {
       .event(currentRaceStatus.getEvent() == null ? null : currentRaceStatus.getEvent())
       .startTime(currentRaceStatus.getStartTime())
       .splitTime(currentRaceStatus.getSplitTime())
-      .currentTime(currentRaceStatus.getLocalStartTime() == null ? null : System.currentTimeMillis() - currentRaceStatus.getLocalStartTime())
+      .currentTime(currentTime(currentRaceStatus, clock))
       .finishTime(currentRaceStatus.getFinishTime())
+      .passageTimes(currentRaceStatus.getPassageTimes())
+      .sectorTimes(sectorTimes(currentRaceStatus))
+      .elapsedMicros(elapsedMicros(currentRaceStatus))
       .state(currentRaceStatus.getState() == null ? null : currentRaceStatus.getState())
+      .lane(CurrentRaceStatus.ID.equals(currentRaceStatus.getRaceId()) ? null : currentRaceStatus.getRaceId())
+      .version(currentRaceStatus.getRevision())
       .build();
   }
+
+  /**
+   * @return the running time of the race, on the monotonic race clock unless the service restarted during it
+   */
+  private static Long currentTime(CurrentRaceStatus currentRaceStatus, RaceClock clock) {
+    if (currentRaceStatus.getLocalStartNanos() != null) {
+      return TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - currentRaceStatus.getLocalStartNanos());
+    }
+    return currentRaceStatus.getLocalStartTime() == null ? null : clock.millis() - currentRaceStatus.getLocalStartTime();
+  }
+
+  /**
+   * @return the micros from the start to each passage on the sensor clock, or null if they were not all measured on it
+   */
+  private static long[] elapsedMicros(CurrentRaceStatus currentRaceStatus) {
+    long[] passageNanos = currentRaceStatus.getPassageNanos();
+    if (passageNanos == null || currentRaceStatus.getStartNanos() == null) {
+      return null;
+    }
+
+    long[] elapsedMicros = new long[passageNanos.length];
+    for (int i = 0; i < passageNanos.length; i++) {
+      elapsedMicros[i] = TimeUnit.NANOSECONDS.toMicros(passageNanos[i] - currentRaceStatus.getStartNanos());
+    }
+    return elapsedMicros;
+  }
+
+  /**
+   * @return the time of each sector passed, or null if the start time is unknown
+   */
+  private static long[] sectorTimes(CurrentRaceStatus currentRaceStatus) {
+    long[] passageTimes = currentRaceStatus.getPassageTimes();
+    if (passageTimes == null || currentRaceStatus.getStartTime() == null) {
+      return null;
+    }
+
+    long[] sectorTimes = new long[passageTimes.length];
+    long previous = currentRaceStatus.getStartTime();
+    for (int i = 0; i < passageTimes.length; i++) {
+      sectorTimes[i] = passageTimes[i] - previous;
+      previous = passageTimes[i];
+    }
+    return sectorTimes;
+  }
 }
@@ -4,6 +4,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.validator.routines.InetAddressValidator;
 import se.cag.labs.currentrace.apicontroller.apimodel.Sensor;
 import se.cag.labs.currentrace.apicontroller.apimodel.SensorResponse;
+import se.cag.labs.currentrace.services.SensorClock;
 import se.cag.labs.currentrace.services.repository.datamodel.SensorModel;
 
 import java.time.Instant;
@@ -30,11 +31,23 @@ public final class SensorMapper {
   }
 
   public static SensorResponse createSensorResponseFromModel(SensorModel sensorModel) {
-    return SensorResponse.builder()
+    return createSensorResponseFromModel(sensorModel, null);
+  }
+
+  /**
+   * @param sensorClock the clock estimate of the sensor controller, or null if it has not synced
+   */
+  public static SensorResponse createSensorResponseFromModel(SensorModel sensorModel, SensorClock sensorClock) {
+    SensorResponse.SensorResponseBuilder builder = SensorResponse.builder()
       .sensorId(sensorModel.getSensorId())
       .sensorIpAddress(sensorModel.getSensorIpAddress())
-      .registeredDate(LocalDateTime.ofInstant(Instant.ofEpochMilli(sensorModel.getRegisteredTimestamp()), ZoneId.systemDefault()))
-      .build();
+      .registeredDate(LocalDateTime.ofInstant(Instant.ofEpochMilli(sensorModel.getRegisteredTimestamp()), ZoneId.systemDefault()));
+    if (sensorClock != null) {
+      builder.clockOffset(sensorClock.getOffset())
+        .clockDriftPpm(sensorClock.getDriftPpm())
+        .clockRoundTrip(sensorClock.getRoundTrip());
+    }
+    return builder.build();
   }
 
 }
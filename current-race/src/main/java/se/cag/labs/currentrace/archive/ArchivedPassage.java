@@ -0,0 +1,21 @@
+package se.cag.labs.currentrace.archive;
+
+import lombok.Value;
+
+/**
+ * A passage of one sensor in a race of the {@link RaceArchive}.
+ */
+@Value
+public class ArchivedPassage {
+  String lane;
+  String sensorID;
+  long timestamp;
+  /**
+   * Millis from the start of the race, 0 for the start itself
+   */
+  long elapsed;
+  /**
+   * When the race ended, see {@link ArchivedRace#getEndTime()}
+   */
+  long endTime;
+}
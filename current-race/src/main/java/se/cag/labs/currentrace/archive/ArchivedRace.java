@@ -0,0 +1,23 @@
+package se.cag.labs.currentrace.archive;
+
+import lombok.Value;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+
+/**
+ * A completed race read back from the {@link RaceArchive}. Passage i was made at gate
+ * <code>course.gateOf(i)</code> of a course with the given number of checkpoints.
+ */
+@Value
+public class ArchivedRace {
+  String lane;
+  /**
+   * When the race ended, the archive is ordered by it
+   */
+  long endTime;
+  RaceStatus.Event event;
+  int checkpoints;
+  Long raceActivatedTime;
+  Long startTime;
+  long[] passageTimes;
+  Long finishTime;
+}
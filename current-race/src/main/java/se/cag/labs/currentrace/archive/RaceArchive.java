@@ -0,0 +1,548 @@
+package se.cag.labs.currentrace.archive;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.LaneService;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.services.sensors.Course;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only archive of completed races, so a whole event day can be analysed without MongoDB, which only
+ * keeps the live race of every lane.
+ * <br>
+ * Races are appended in the order they ended to segment files in the archive directory, a new segment is
+ * started when one is full. Each race is a record of variable length:
+ * <pre>
+ *  int     length of the payload
+ *  int     CRC32 of the payload
+ *  payload, varints with zigzag encoding:
+ *    end time, as a delta from the race before it, absolute for every {@value #SPARSE}th race of a segment
+ *    lane index, event ordinal + 1 or 0, checkpoints of the course
+ *    flags for which of raceActivatedTime, startTime and finishTime are present
+ *    raceActivatedTime as a delta from the end time
+ *    startTime as a delta from raceActivatedTime
+ *    number of passages and each passage as a delta from the start or the passage before
+ *    finishTime as a delta from the last passage
+ * </pre>
+ * A finished race takes about 30 bytes with the header, a tenth of its MongoDB document. Every segment keeps an index in memory of its first and last end
+ * time, the sensors its races passed and the offset of every {@value #SPARSE}th race, so a range query only
+ * reads the segments and the part of them it needs.
+ * <br>
+ * If the archive can not be written it logs an error and stops archiving, it never fails the race.
+ */
+@Component
+@Log4j
+public class RaceArchive implements PublicMetrics {
+  static final int SPARSE = 64;
+  private static final String SEGMENT_PREFIX = "races-";
+  private static final String SEGMENT_SUFFIX = ".archive";
+  private static final int HEADER = 8;
+  private static final int MAX_RECORD = 16 * 1024;
+  private static final int ACTIVATED = 1;
+  private static final int STARTED = 2;
+  private static final int FINISHED = 4;
+  private static final int START_GATE = -1;
+  private static final int ANY_GATE = -2;
+
+  @Value("${currentrace.archive.dir}")
+  private String dir;
+  @Value("${currentrace.archive.segment-size:1048576}")
+  private int segmentSize;
+  @Autowired
+  private LaneService laneService;
+
+  private final ByteBuffer record = ByteBuffer.allocate(MAX_RECORD);
+  private final CRC32 crc = new CRC32();
+  private final List<Segment> segments = new ArrayList<>();
+  private Path directory;
+  private FileChannel channel;
+  private long lastEndTime;
+  private long races;
+
+  @PostConstruct
+  public synchronized void open() {
+    try {
+      directory = Paths.get(dir);
+      Files.createDirectories(directory);
+      segments.clear();
+      races = 0;
+      for (Path path : segmentPaths(directory)) {
+        Segment segment = new Segment(path, segmentIndex(path));
+        scan(segment);
+        segments.add(segment);
+      }
+      if (segments.isEmpty()) {
+        segments.add(new Segment(segmentPath(directory, 0), 0));
+      }
+      Segment current = current();
+      lastEndTime = current.lastEndTime;
+      channel = FileChannel.open(current.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      channel.truncate(current.size);
+      channel.position(current.size);
+      log.info("Archiving races to " + directory.toAbsolutePath() + ", " + races + " races archived");
+    } catch (IOException e) {
+      log.error("Could not open race archive in " + dir + ", archiving disabled: " + e.getLocalizedMessage(), e);
+      channel = null;
+    }
+  }
+
+  @PreDestroy
+  public synchronized void close() {
+    if (channel != null) {
+      try {
+        channel.force(false);
+        channel.close();
+      } catch (IOException e) {
+        log.error("Could not close race archive: " + e.getLocalizedMessage(), e);
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * Appends a race that has ended. End times are kept in order, a race that ends before the race appended
+   * before it is archived with the end time of that race.
+   */
+  public synchronized void append(CurrentRaceStatus status, long endTime) {
+    if (channel == null) {
+      return;
+    }
+
+    Segment segment = current();
+    long end = Math.max(endTime, lastEndTime);
+    try {
+      boolean sparse = segment.races % SPARSE == 0;
+      encode(status, end, sparse ? 0 : lastEndTime);
+      if (segment.size > 0 && segment.size + record.limit() > segmentSize) {
+        channel.force(false);
+        channel.close();
+        segment = new Segment(segmentPath(directory, segment.index + 1), segment.index + 1);
+        segments.add(segment);
+        channel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        encode(status, end, 0);
+        sparse = true;
+      }
+
+      crc.reset();
+      crc.update(record.array(), HEADER, record.limit() - HEADER);
+      record.putInt(0, record.limit() - HEADER).putInt(4, (int) crc.getValue());
+      int offset = segment.size;
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      segment.add(offset, record.limit(), end, sparse, sensors(status));
+      lastEndTime = end;
+      races++;
+    } catch (IOException | RuntimeException e) {
+      log.error("Could not archive race, archiving disabled: " + e.getLocalizedMessage(), e);
+      channel = null;
+    }
+  }
+
+  /**
+   * @param lane the lane of the races or null for all lanes
+   * @return the races that ended from the given time, inclusive, to the given time, exclusive
+   */
+  public List<ArchivedRace> races(long from, long to, String lane) throws IOException {
+    List<ArchivedRace> found = new ArrayList<>();
+    for (Segment segment : snapshot(from, to, ANY_GATE)) {
+      read(segment, from, to, race -> {
+        if (lane == null || lane.equals(race.getLane())) {
+          found.add(race);
+        }
+      });
+    }
+    return found;
+  }
+
+  /**
+   * @param sensorID START, FINISH, SPLIT or SPLIT2 and onwards for the checkpoints after the first
+   * @param lane     the lane of the races or null for all lanes
+   * @return the passages of the sensor in the races that ended from the given time, inclusive, to the given
+   * time, exclusive
+   * @throws IllegalArgumentException if the sensor is unknown
+   */
+  public List<ArchivedPassage> passages(String sensorID, long from, long to, String lane) throws IOException {
+    int gate = gateOf(sensorID);
+    List<ArchivedPassage> found = new ArrayList<>();
+    for (Segment segment : snapshot(from, to, gate)) {
+      read(segment, from, to, race -> {
+        if (lane == null || lane.equals(race.getLane())) {
+          addPassages(race, gate, sensorID, found);
+        }
+      });
+    }
+    return found;
+  }
+
+  private static void addPassages(ArchivedRace race, int gate, String sensorID, List<ArchivedPassage> found) {
+    if (race.getStartTime() == null) {
+      return;
+    }
+    long start = race.getStartTime();
+    if (gate == START_GATE) {
+      found.add(new ArchivedPassage(race.getLane(), sensorID, start, 0, race.getEndTime()));
+      return;
+    }
+
+    Course course = new Course(race.getCheckpoints(), 1);
+    long[] passageTimes = race.getPassageTimes();
+    boolean finishPassed = false;
+    for (int i = 0; i < passageTimes.length; i++) {
+      if (course.gateOf(i) == gate) {
+        found.add(new ArchivedPassage(race.getLane(), sensorID, passageTimes[i], passageTimes[i] - start, race.getEndTime()));
+        finishPassed = gate == 0 && i == passageTimes.length - 1;
+      }
+    }
+    if (gate == 0 && !finishPassed && race.getFinishTime() != null) {
+      // Disqualified at the finish line before all checkpoints were passed
+      long finish = race.getFinishTime();
+      found.add(new ArchivedPassage(race.getLane(), sensorID, finish, finish - start, race.getEndTime()));
+    }
+  }
+
+  private void encode(CurrentRaceStatus status, long endTime, long previousEndTime) {
+    record.clear();
+    record.position(HEADER);
+    int flags = (status.getRaceActivatedTime() != null ? ACTIVATED : 0)
+      | (status.getStartTime() != null ? STARTED : 0)
+      | (status.getFinishTime() != null ? FINISHED : 0);
+    putVarLong(endTime - previousEndTime);
+    putVarLong(laneService.indexOf(status.getRaceId() == null ? LaneService.DEFAULT_LANE : status.getRaceId()));
+    putVarLong(status.getEvent() == null ? 0 : status.getEvent().ordinal() + 1);
+    putVarLong(laneService.getCourse().getCheckpoints());
+    putVarLong(flags);
+
+    long time = endTime;
+    if (status.getRaceActivatedTime() != null) {
+      putVarLong(time - status.getRaceActivatedTime());
+      time = status.getRaceActivatedTime();
+    }
+    if (status.getStartTime() != null) {
+      putVarLong(status.getStartTime() - time);
+      time = status.getStartTime();
+    }
+    long[] passageTimes = status.getPassageTimes() == null ? new long[0] : status.getPassageTimes();
+    putVarLong(passageTimes.length);
+    for (long passageTime : passageTimes) {
+      putVarLong(passageTime - time);
+      time = passageTime;
+    }
+    if (status.getFinishTime() != null) {
+      putVarLong(status.getFinishTime() - time);
+    }
+    record.flip();
+  }
+
+  private void putVarLong(long value) {
+    long zigzag = (value << 1) ^ (value >> 63);
+    while ((zigzag & ~0x7FL) != 0) {
+      record.put((byte) ((zigzag & 0x7F) | 0x80));
+      zigzag >>>= 7;
+    }
+    record.put((byte) zigzag);
+  }
+
+  private static long getVarLong(ByteBuffer buffer) {
+    long zigzag = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get();
+      zigzag |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        break;
+      }
+      if (shift > 63) {
+        throw new IllegalArgumentException("Varint too long");
+      }
+    }
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+  private ArchivedRace decode(ByteBuffer payload, long previousEndTime) {
+    long endTime = previousEndTime + getVarLong(payload);
+    int laneIndex = (int) getVarLong(payload);
+    int event = (int) getVarLong(payload);
+    int checkpoints = (int) getVarLong(payload);
+    int flags = (int) getVarLong(payload);
+
+    long time = endTime;
+    Long raceActivatedTime = null;
+    Long startTime = null;
+    Long finishTime = null;
+    if ((flags & ACTIVATED) != 0) {
+      time -= getVarLong(payload);
+      raceActivatedTime = time;
+    }
+    if ((flags & STARTED) != 0) {
+      time += getVarLong(payload);
+      startTime = time;
+    }
+    long[] passageTimes = new long[(int) getVarLong(payload)];
+    for (int i = 0; i < passageTimes.length; i++) {
+      time += getVarLong(payload);
+      passageTimes[i] = time;
+    }
+    if ((flags & FINISHED) != 0) {
+      finishTime = time + getVarLong(payload);
+    }
+
+    List<String> lanes = laneService.getLanes();
+    return new ArchivedRace(laneIndex < lanes.size() ? lanes.get(laneIndex) : String.valueOf(laneIndex), endTime,
+      event == 0 || event > RaceStatus.Event.values().length ? null : RaceStatus.Event.values()[event - 1],
+      checkpoints, raceActivatedTime, startTime, passageTimes, finishTime);
+  }
+
+  /**
+   * Reads the races of the segment that ended in the range, starting at the last sparse race before it.
+   */
+  private void read(Segment segment, long from, long to, Consumer<ArchivedRace> consumer) throws IOException {
+    int sparse = Math.max(0, segment.sparseBefore(from));
+    int ordinal = sparse * SPARSE;
+    int offset = segment.sparseOffsets[sparse];
+    ByteBuffer buffer = ByteBuffer.allocate(segment.size - offset);
+    try (FileChannel reader = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+      while (buffer.hasRemaining() && reader.read(buffer, offset + buffer.position()) >= 0) {
+        // Read the rest of the segment up to its size when the query started
+      }
+    }
+    buffer.flip();
+
+    long endTime = 0;
+    while (buffer.remaining() >= HEADER) {
+      int length = buffer.getInt();
+      buffer.getInt();
+      ByteBuffer payload = buffer.slice();
+      payload.limit(length);
+      buffer.position(buffer.position() + length);
+      ArchivedRace race = decode(payload, ordinal++ % SPARSE == 0 ? 0 : endTime);
+      endTime = race.getEndTime();
+      if (endTime >= to) {
+        return;
+      }
+      if (endTime >= from) {
+        consumer.accept(race);
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the index of a segment at startup, up to its first damaged record.
+   */
+  private void scan(Segment segment) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel reader = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+      buffer = reader.map(FileChannel.MapMode.READ_ONLY, 0, reader.size());
+    }
+
+    CRC32 check = new CRC32();
+    long endTime = 0;
+    int offset = 0;
+    while (offset + HEADER <= buffer.limit()) {
+      int length = buffer.getInt(offset);
+      if (length <= 0 || length > MAX_RECORD || offset + HEADER + length > buffer.limit()) {
+        break;
+      }
+      ByteBuffer payload = buffer.duplicate();
+      payload.limit(offset + HEADER + length).position(offset + HEADER);
+      check.reset();
+      check.update(payload.duplicate());
+      if ((int) check.getValue() != buffer.getInt(offset + 4)) {
+        break;
+      }
+      boolean sparse = segment.races % SPARSE == 0;
+      ArchivedRace race = decode(payload, sparse ? 0 : endTime);
+      endTime = race.getEndTime();
+      segment.add(offset, HEADER + length, endTime, sparse, sensors(race));
+      offset += HEADER + length;
+      races++;
+    }
+    if (offset < buffer.limit()) {
+      log.warn("Damaged record at offset " + offset + " in " + segment.path + ", it and the rest of the segment are dropped");
+    }
+  }
+
+  private synchronized List<Segment> snapshot(long from, long to, int gate) {
+    return segments.stream()
+      .filter(segment -> segment.races > 0 && segment.lastEndTime >= from && segment.firstEndTime < to)
+      .filter(segment -> gate == ANY_GATE || segment.sensors.get(gate - START_GATE))
+      .map(Segment::copy)
+      .collect(Collectors.toList());
+  }
+
+  private Segment current() {
+    return segments.get(segments.size() - 1);
+  }
+
+  private BitSet sensors(CurrentRaceStatus status) {
+    return sensors(status.getStartTime() != null, status.getPassageTimes() == null ? 0 : status.getPassageTimes().length,
+      laneService.getCourse().getCheckpoints(), status.getFinishTime() != null);
+  }
+
+  private static BitSet sensors(ArchivedRace race) {
+    return sensors(race.getStartTime() != null, race.getPassageTimes().length, race.getCheckpoints(), race.getFinishTime() != null);
+  }
+
+  /**
+   * @return the gates a race passed, bit 0 for the start, 1 for the finish and 1 + checkpoint for the splits
+   */
+  private static BitSet sensors(boolean started, int passages, int checkpoints, boolean finished) {
+    BitSet sensors = new BitSet();
+    if (started) {
+      sensors.set(START_GATE - START_GATE);
+    }
+    // Checkpoints are passed in order, so the first passages cover all checkpoints that were passed
+    sensors.set(1 - START_GATE, Math.min(passages, checkpoints) + 1 - START_GATE);
+    if (finished || passages > checkpoints) {
+      sensors.set(-START_GATE);
+    }
+    return sensors;
+  }
+
+  /**
+   * @return -1 for the start, 0 for the finish and the checkpoint for the splits
+   */
+  static int gateOf(String sensorID) {
+    String split = RegisterSensorType.SPLIT.getId();
+    if (RegisterSensorType.START.getId().equals(sensorID)) {
+      return START_GATE;
+    } else if (RegisterSensorType.FINISH.getId().equals(sensorID)) {
+      return 0;
+    } else if (split.equals(sensorID)) {
+      return 1;
+    } else if (sensorID != null && sensorID.startsWith(split) && sensorID.length() > split.length()) {
+      try {
+        int checkpoint = Integer.parseInt(sensorID.substring(split.length()));
+        if (checkpoint >= 2 && checkpoint <= Course.MAX_CHECKPOINTS) {
+          return checkpoint;
+        }
+      } catch (NumberFormatException e) {
+        // Not a checkpoint
+      }
+    }
+    throw new IllegalArgumentException("Unknown sensor: " + sensorID);
+  }
+
+  static List<Path> segmentPaths(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+        .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+        .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+        .sorted()
+        .collect(Collectors.toList());
+    }
+  }
+
+  static Path segmentPath(Path directory, int index) {
+    return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+  }
+
+  private static int segmentIndex(Path segment) {
+    String name = segment.getFileName().toString();
+    return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  @Override
+  public synchronized Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("currentrace.archive.races", races));
+    metrics.add(new Metric<>("currentrace.archive.segments", segments.size()));
+    metrics.add(new Metric<>("currentrace.archive.bytes", segments.stream().mapToLong(segment -> segment.size).sum()));
+    return metrics;
+  }
+
+  /**
+   * The index of a segment, guarded by the archive.
+   */
+  private static final class Segment {
+    private final Path path;
+    private final int index;
+    private int size;
+    private int races;
+    private long firstEndTime;
+    private long lastEndTime;
+    private BitSet sensors = new BitSet();
+    private long[] sparseEndTimes = new long[4];
+    private int[] sparseOffsets = new int[4];
+    private int sparseCount;
+
+    Segment(Path path, int index) {
+      this.path = path;
+      this.index = index;
+    }
+
+    void add(int offset, int length, long endTime, boolean sparse, BitSet raceSensors) {
+      if (sparse) {
+        if (sparseCount == sparseOffsets.length) {
+          sparseEndTimes = Arrays.copyOf(sparseEndTimes, sparseCount * 2);
+          sparseOffsets = Arrays.copyOf(sparseOffsets, sparseCount * 2);
+        }
+        sparseEndTimes[sparseCount] = endTime;
+        sparseOffsets[sparseCount++] = offset;
+      }
+      if (races == 0) {
+        firstEndTime = endTime;
+      }
+      lastEndTime = endTime;
+      sensors.or(raceSensors);
+      size = offset + length;
+      races++;
+    }
+
+    /**
+     * @return the last sparse race that ended before the time, or -1 if there is none
+     */
+    int sparseBefore(long time) {
+      int low = 0;
+      int high = sparseCount - 1;
+      int found = -1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        if (sparseEndTimes[middle] < time) {
+          found = middle;
+          low = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return found;
+    }
+
+    Segment copy() {
+      Segment copy = new Segment(path, index);
+      copy.size = size;
+      copy.races = races;
+      copy.firstEndTime = firstEndTime;
+      copy.lastEndTime = lastEndTime;
+      copy.sensors = (BitSet) sensors.clone();
+      copy.sparseEndTimes = Arrays.copyOf(sparseEndTimes, sparseCount);
+      copy.sparseOffsets = Arrays.copyOf(sparseOffsets, sparseCount);
+      copy.sparseCount = sparseCount;
+      return copy;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package se.cag.labs.currentrace.config;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import se.cag.labs.currentrace.time.RaceClock;
+import se.cag.labs.currentrace.time.SystemRaceClock;
+import se.cag.labs.currentrace.time.VirtualRaceClock;
+
+@Configuration
+@Log4j
+public class ClockConfig {
+  @Value("${currentrace.clock.virtual}")
+  private boolean virtual;
+  @Value("${currentrace.clock.speed}")
+  private double speed;
+  @Value("${currentrace.clock.start:0}")
+  private long start;
+
+  @Bean
+  public RaceClock raceClock() {
+    if (!virtual) {
+      return SystemRaceClock.INSTANCE;
+    }
+    RaceClock clock = new VirtualRaceClock(start > 0 ? start : System.currentTimeMillis(), speed);
+    log.warn("Races are timed on a " + clock);
+    return clock;
+  }
+}
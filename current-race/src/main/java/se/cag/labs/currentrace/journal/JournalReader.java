@@ -0,0 +1,114 @@
+package se.cag.labs.currentrace.journal;
+
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the segment files written by {@link PassageJournal}. A segment is read up to its first empty or
+ * damaged record, anything after that in the same segment is skipped.
+ */
+@Log4j
+public final class JournalReader {
+  // Segments of the 32 byte records without the sensor clock were named passages-, and are not read
+  private static final String SEGMENT_PREFIX = "passages-v2-";
+  private static final String SEGMENT_SUFFIX = ".journal";
+
+  private JournalReader() {
+  }
+
+  /**
+   * @return all records in the journal directory in the order they were written
+   */
+  public static List<JournalRecord> read(Path directory) throws IOException {
+    List<JournalRecord> records = new ArrayList<>();
+    for (Path path : segments(directory)) {
+      ByteBuffer buffer = map(path);
+      int end = end(buffer);
+      for (int position = 0; position < end; position += JournalRecord.SIZE) {
+        records.add(new JournalRecord(
+          buffer.getLong(position + 8),
+          buffer.get(position + 4),
+          buffer.get(position + 5),
+          buffer.get(position + 6),
+          buffer.get(position + 7),
+          buffer.getLong(position + 16),
+          buffer.getLong(position + 24),
+          buffer.getLong(position + 32),
+          buffer.getLong(position + 40)));
+      }
+      if (end + JournalRecord.SIZE <= buffer.limit() && buffer.get(end + 4) != 0) {
+        log.warn("Damaged record at offset " + end + " in " + path + ", skipping rest of segment");
+      }
+    }
+    return records;
+  }
+
+  static List<Path> segments(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+        .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+        .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+        .sorted()
+        .collect(Collectors.toList());
+    }
+  }
+
+  static Path segmentPath(Path directory, int index) {
+    return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+  }
+
+  static int segmentIndex(Path segment) {
+    String name = segment.getFileName().toString();
+    return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /**
+   * @return the sequence number of the last valid record in the segment or 0 if it has none
+   */
+  static long lastSequence(Path segment) throws IOException {
+    ByteBuffer buffer = map(segment);
+    int end = end(buffer);
+    return end == 0 ? 0 : buffer.getLong(end - JournalRecord.SIZE + 8);
+  }
+
+  /**
+   * @return the offset after the last valid record in the buffer
+   */
+  static int end(ByteBuffer buffer) {
+    CRC32 crc = new CRC32();
+    ByteBuffer view = buffer.duplicate();
+    int position = 0;
+    while (position + JournalRecord.SIZE <= buffer.limit() && isValid(view, position, crc)) {
+      position += JournalRecord.SIZE;
+    }
+    return position;
+  }
+
+  private static boolean isValid(ByteBuffer view, int position, CRC32 crc) {
+    if (view.get(position + 4) == 0) {
+      return false;
+    }
+    view.limit(position + JournalRecord.SIZE).position(position + 4);
+    crc.reset();
+    crc.update(view);
+    view.clear();
+    return (int) crc.getValue() == view.getInt(position);
+  }
+
+  private static ByteBuffer map(Path segment) throws IOException {
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size() - channel.size() % JournalRecord.SIZE);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package se.cag.labs.currentrace.journal;
+
+import lombok.Value;
+import se.cag.labs.currentrace.services.sensors.Course;
+import se.cag.labs.currentrace.services.sensors.RegisterSensor;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorFactory;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+
+/**
+ * One record of the {@link PassageJournal}. Records are stored with a fixed size:
+ * <pre>
+ *  0  int   CRC32 of bytes 4-47
+ *  4  byte  type
+ *  5  byte  sensor, see {@link #sensor}, or -1
+ *  6  byte  result, ordinal of PassageDetectedService.ReturnStatus for passages, {@link #DEBOUNCED} for passages
+ *            suppressed by the DebounceService and ordinal of RaceStatus.Event for timeouts
+ *  7  byte  lane, index of the lane in LaneService
+ *  8  long  sequence number
+ * 16  long  time the record was written
+ * 24  long  passage timestamp for passages, race activated time for starts
+ * 32  long  clockEpoch of the sensor clock for passages, see RaceState#setSensorClock, or RaceState.NOT_SET
+ * 40  long  nanoTime of the sensor clock for passages, or RaceState.NOT_SET
+ * </pre>
+ */
+@Value
+public class JournalRecord {
+  public static final int SIZE = 48;
+
+  public static final byte START = 1;
+  public static final byte CANCEL = 2;
+  public static final byte PASSAGE = 3;
+  public static final byte TIMEOUT = 4;
+
+  /**
+   * The result of a passage that was suppressed by the DebounceService and never reached the race.
+   */
+  public static final byte DEBOUNCED = 16;
+
+  private static final int FINISH_SENSOR = RegisterSensorType.FINISH.ordinal();
+
+  long sequence;
+  byte type;
+  byte sensor;
+  byte result;
+  byte lane;
+  long time;
+  long timestamp;
+  long clockEpoch;
+  long nanoTime;
+
+  /**
+   * @return the sensor byte of a passage: the ordinal of the RegisterSensorType for START, FINISH and SPLIT as
+   * the first checkpoint, and checkpoint + 1 for the checkpoints after the first
+   */
+  public static byte sensor(RegisterSensorType type, int checkpoint) {
+    if (type != RegisterSensorType.SPLIT || checkpoint <= 1) {
+      return (byte) type.ordinal();
+    }
+    return (byte) (checkpoint + 1);
+  }
+
+  /**
+   * @return the sensor that reported the passage or null if the sensor byte is unknown
+   */
+  public RegisterSensor toRegisterSensor() {
+    if (sensor < 0) {
+      return null;
+    } else if (sensor <= FINISH_SENSOR) {
+      return RegisterSensorFactory.INSTANCE.getRegisterSensor(RegisterSensorType.values()[sensor]);
+    } else if (sensor - 1 <= Course.MAX_CHECKPOINTS) {
+      return RegisterSensorFactory.INSTANCE.getCheckpointSensor(sensor - 1);
+    }
+    return null;
+  }
+}
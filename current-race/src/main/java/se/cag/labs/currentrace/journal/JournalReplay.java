@@ -0,0 +1,198 @@
+package se.cag.labs.currentrace.journal;
+
+import lombok.extern.log4j.Log4j;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.PassageDetectedService.ReturnStatus;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.services.sensors.Course;
+import se.cag.labs.currentrace.services.sensors.RaceState;
+import se.cag.labs.currentrace.services.sensors.RegisterSensor;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rebuilds the races in a journal offline by running the journaled passages through the same
+ * {@link RegisterSensor} state machine as the live service. A passage whose replayed result differs from
+ * the journaled one is logged and counted as a mismatch.
+ * <br>
+ * Can be run on a journal directory, optionally with the checkpoints and laps of the course:
+ * <pre>
+ * java -cp current-race.jar -Dloader.main=se.cag.labs.currentrace.journal.JournalReplay \
+ *   org.springframework.boot.loader.PropertiesLauncher journal 1 1
+ * </pre>
+ */
+@Log4j
+public class JournalReplay {
+  private final Course course;
+  private final List<CurrentRaceStatus> races = new ArrayList<>();
+  private final Map<Integer, LaneReplay> lanes = new TreeMap<>();
+  private int mismatches;
+  private int debounced;
+
+  public JournalReplay() {
+    this(Course.DEFAULT);
+  }
+
+  public JournalReplay(Course course) {
+    this.course = course;
+  }
+
+  public static JournalReplay replay(List<JournalRecord> records) {
+    return replay(records, Course.DEFAULT);
+  }
+
+  /**
+   * @param course the course the journal was written with
+   */
+  public static JournalReplay replay(List<JournalRecord> records, Course course) {
+    JournalReplay replay = new JournalReplay(course);
+    records.forEach(replay::apply);
+    return replay;
+  }
+
+  public void apply(JournalRecord record) {
+    LaneReplay lane = lanes.computeIfAbsent((int) record.getLane(), LaneReplay::new);
+    switch (record.getType()) {
+      case JournalRecord.START:
+        lane.start(record.getTimestamp());
+        break;
+      case JournalRecord.CANCEL:
+        lane.cancel();
+        break;
+      case JournalRecord.TIMEOUT:
+        lane.timeout(RaceStatus.Event.values()[record.getResult()]);
+        break;
+      case JournalRecord.PASSAGE:
+        lane.passage(record);
+        break;
+      default:
+        log.warn("Unknown record type " + record.getType() + " in " + record);
+    }
+  }
+
+  /**
+   * @return every race started in the journal, in the state it was left in. Finished races come in the order
+   * they were replaced by a new race, followed by the last race of each lane. The raceId of a race is its
+   * lane index, except for the default lane.
+   */
+  public List<CurrentRaceStatus> getRaces() {
+    List<CurrentRaceStatus> result = new ArrayList<>(races);
+    for (LaneReplay lane : lanes.values()) {
+      if (lane.started) {
+        result.add(lane.toCurrentRaceStatus());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the state of the race in the default lane at the end of the journal
+   */
+  public CurrentRaceStatus getStatus() {
+    return getStatus(0);
+  }
+
+  /**
+   * @return the state of the race in the lane with the given index at the end of the journal
+   */
+  public CurrentRaceStatus getStatus(int lane) {
+    LaneReplay laneReplay = lanes.get(lane);
+    return laneReplay != null && laneReplay.started ? laneReplay.toCurrentRaceStatus() : null;
+  }
+
+  public int getMismatches() {
+    return mismatches;
+  }
+
+  /**
+   * @return the number of passages that were suppressed by the debouncer, and therefore not replayed
+   */
+  public int getDebounced() {
+    return debounced;
+  }
+
+  private final class LaneReplay {
+    private final int lane;
+    private final RaceState raceState = new RaceState(course);
+    private boolean started;
+
+    LaneReplay(int lane) {
+      this.lane = lane;
+    }
+
+    CurrentRaceStatus toCurrentRaceStatus() {
+      CurrentRaceStatus status = raceState.toCurrentRaceStatus();
+      if (lane != 0) {
+        status.setRaceId(String.valueOf(lane));
+      }
+      return status;
+    }
+
+    void start(long raceActivatedTime) {
+      if (started) {
+        races.add(toCurrentRaceStatus());
+        raceState.setEvent(RaceStatus.Event.NONE);
+      }
+      started = true;
+      raceState.setState(RaceStatus.State.ACTIVE);
+      raceState.setRaceActivatedTime(raceActivatedTime);
+      raceState.clearPassages();
+    }
+
+    void cancel() {
+      if (started) {
+        raceState.setRaceActivatedTime(RaceState.NOT_SET);
+        raceState.clearPassages();
+        raceState.setEvent(null);
+        raceState.setState(RaceStatus.State.INACTIVE);
+      }
+    }
+
+    void timeout(RaceStatus.Event event) {
+      if (started) {
+        raceState.setEvent(event);
+        raceState.setState(RaceStatus.State.INACTIVE);
+      }
+    }
+
+    void passage(JournalRecord record) {
+      if (record.getResult() == JournalRecord.DEBOUNCED) {
+        debounced++;
+        return;
+      }
+      ReturnStatus result = ReturnStatus.ERROR;
+      RegisterSensor sensor = record.toRegisterSensor();
+      if (sensor != null) {
+        result = ReturnStatus.IGNORED;
+        if (raceState.isActive()) {
+          raceState.setSensorClock(record.getClockEpoch(), record.getNanoTime());
+          if (sensor.updateStatus(raceState, record.getTimestamp())) {
+            result = ReturnStatus.ACCEPTED;
+          }
+        }
+      }
+
+      if (result.ordinal() != record.getResult()) {
+        mismatches++;
+        log.warn("Replayed " + result + " but journal has " + ReturnStatus.values()[record.getResult()] + " for " + record);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    Course course = args.length > 2 ? new Course(Integer.parseInt(args[1]), Integer.parseInt(args[2])) : Course.DEFAULT;
+    JournalReplay replay = replay(JournalReader.read(Paths.get(args.length > 0 ? args[0] : "journal")), course);
+    for (CurrentRaceStatus race : replay.getRaces()) {
+      System.out.printf("race=%s activated=%d start=%s split=%s finish=%s event=%s state=%s%n",
+        race.getRaceId(), race.getRaceActivatedTime(), race.getStartTime(), race.getSplitTime(), race.getFinishTime(),
+        race.getEvent(), race.getState());
+    }
+    System.out.printf("%d races, %d mismatches, %d debounced%n", replay.getRaces().size(), replay.getMismatches(),
+      replay.getDebounced());
+  }
+}
@@ -0,0 +1,247 @@
+package se.cag.labs.currentrace.journal;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.PassageDetectedService;
+import se.cag.labs.currentrace.services.sensors.RaceState;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of everything that happens to the races in all lanes: starts, cancels, timeouts and every
+ * passage with the result it got, including the passages suppressed by the debouncer. Records are written to
+ * memory-mapped segment files in the journal directory and a new segment is started when one is full, and
+ * when the journal is opened again. Use {@link JournalReader} to read them back and {@link JournalReplay} to
+ * rebuild the races.
+ * <br>
+ * Appends take no lock, so lanes never wait for each other. Each record reserves its sequence number, which
+ * also gives its slot in the segments, from a single counter and is then written in place. Only the append
+ * that first reaches a new segment maps it. The last few segments stay mapped for appends that lag behind, and
+ * a segment is mapped again for an append that lags further. Records of different lanes may be written out of
+ * order, so a crash can leave an empty slot among the last records, where {@link JournalReader} stops. The
+ * records of a lane that change or read its race are appended by the CurrentRaceStore while it holds the
+ * lane, so they are in the order they were applied and a replay reaches the same results.
+ * <br>
+ * Appending does not allocate, except when a new segment is mapped and the first time a thread appends. If
+ * the journal can not be written it logs an error and stops journaling, it never fails the race.
+ */
+@Component
+@Log4j
+public class PassageJournal {
+  private static final int MAPPED_SEGMENTS = 8;
+
+  @Value("${currentrace.journal.dir}")
+  private String dir;
+  @Value("${currentrace.journal.segment-size:4194304}")
+  private int segmentSize;
+
+  private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+  private final AtomicLong nextRecord = new AtomicLong();
+  private final Object mapLock = new Object();
+  private Path directory;
+  private int recordsPerSegment;
+  private int firstSegment;
+  private long firstSequence;
+  // The most recently mapped segments, by index modulo the length
+  private final AtomicReferenceArray<Segment> mapped = new AtomicReferenceArray<>(MAPPED_SEGMENTS);
+  private volatile boolean disabled = true;
+
+  @PostConstruct
+  public void open() {
+    synchronized (mapLock) {
+      try {
+        directory = Paths.get(dir);
+        Files.createDirectories(directory);
+        recordsPerSegment = Math.max(1, segmentSize / JournalRecord.SIZE);
+        firstSequence = 0;
+        firstSegment = 0;
+        List<Path> segments = JournalReader.segments(directory);
+        for (int i = segments.size() - 1; i >= 0 && firstSequence == 0; i--) {
+          firstSequence = JournalReader.lastSequence(segments.get(i));
+        }
+        if (!segments.isEmpty()) {
+          Path last = segments.get(segments.size() - 1);
+          firstSegment = JournalReader.segmentIndex(last) + (JournalReader.lastSequence(last) == 0 ? 0 : 1);
+        }
+        nextRecord.set(0);
+        for (int i = 0; i < MAPPED_SEGMENTS; i++) {
+          mapped.set(i, null);
+        }
+        mapped.set(firstSegment % MAPPED_SEGMENTS, map(firstSegment));
+        disabled = false;
+        log.info("Journaling to " + directory.toAbsolutePath() + ", next sequence " + (firstSequence + 1));
+      } catch (IOException e) {
+        log.error("Could not open journal in " + dir + ", journaling disabled: " + e.getLocalizedMessage(), e);
+        disabled = true;
+      }
+    }
+  }
+
+  @PreDestroy
+  public void close() {
+    synchronized (mapLock) {
+      disabled = true;
+      for (int i = 0; i < MAPPED_SEGMENTS; i++) {
+        Segment segment = mapped.getAndSet(i, null);
+        if (segment != null) {
+          segment.buffer.force();
+        }
+      }
+    }
+  }
+
+  public void recordStart(int lane, long raceActivatedTime) {
+    append(JournalRecord.START, lane, (byte) -1, (byte) -1, raceActivatedTime, RaceState.NOT_SET, RaceState.NOT_SET);
+  }
+
+  public void recordCancel(int lane) {
+    append(JournalRecord.CANCEL, lane, (byte) -1, (byte) -1, 0, RaceState.NOT_SET, RaceState.NOT_SET);
+  }
+
+  public void recordTimeout(int lane, RaceStatus.Event event) {
+    append(JournalRecord.TIMEOUT, lane, (byte) -1, (byte) event.ordinal(), 0, RaceState.NOT_SET, RaceState.NOT_SET);
+  }
+
+  public void recordPassage(int lane, RegisterSensorType sensor, PassageDetectedService.ReturnStatus result, long timestamp) {
+    recordPassage(lane, sensor, sensor == RegisterSensorType.SPLIT ? 1 : 0, result, timestamp);
+  }
+
+  public void recordPassage(int lane, RegisterSensorType sensor, int checkpoint, PassageDetectedService.ReturnStatus result, long timestamp) {
+    recordPassage(lane, sensor, checkpoint, result, timestamp, RaceState.NOT_SET, RaceState.NOT_SET);
+  }
+
+  /**
+   * Records a passage with the reading of the monotonic sensor clock it was applied with, so that a replay
+   * measures the same elapsed times.
+   */
+  public void recordPassage(int lane, RegisterSensorType sensor, int checkpoint, PassageDetectedService.ReturnStatus result,
+                            long timestamp, long clockEpoch, long nanoTime) {
+    append(JournalRecord.PASSAGE, lane, sensor == null ? -1 : JournalRecord.sensor(sensor, checkpoint), (byte) result.ordinal(),
+      timestamp, clockEpoch, nanoTime);
+  }
+
+  /**
+   * Records a passage that was suppressed by the DebounceService, with the result {@link JournalRecord#DEBOUNCED}.
+   */
+  public void recordDebounced(int lane, RegisterSensorType sensor, int checkpoint, long timestamp) {
+    append(JournalRecord.PASSAGE, lane, JournalRecord.sensor(sensor, checkpoint), JournalRecord.DEBOUNCED, timestamp,
+      RaceState.NOT_SET, RaceState.NOT_SET);
+  }
+
+  private void append(byte type, int lane, byte sensor, byte result, long timestamp, long clockEpoch, long nanoTime) {
+    if (disabled) {
+      return;
+    }
+
+    long record = nextRecord.getAndIncrement();
+    int index = firstSegment + (int) (record / recordsPerSegment);
+    Segment segment = segment(index);
+    if (segment == null) {
+      return;
+    }
+
+    Scratch buffer = scratch.get();
+    buffer.record.clear();
+    buffer.record.put(4, type)
+      .put(5, sensor)
+      .put(6, result)
+      .put(7, (byte) lane)
+      .putLong(8, firstSequence + record + 1)
+      .putLong(16, System.currentTimeMillis())
+      .putLong(24, timestamp)
+      .putLong(32, clockEpoch)
+      .putLong(40, nanoTime);
+    buffer.record.position(4);
+    buffer.crc.reset();
+    buffer.crc.update(buffer.record);
+
+    int offset = (int) (record % recordsPerSegment) * JournalRecord.SIZE;
+    segment.buffer
+      .putInt(offset, (int) buffer.crc.getValue())
+      .putLong(offset + 8, buffer.record.getLong(8))
+      .putLong(offset + 16, buffer.record.getLong(16))
+      .putLong(offset + 24, timestamp)
+      .putLong(offset + 32, clockEpoch)
+      .putLong(offset + 40, nanoTime)
+      .put(offset + 5, sensor)
+      .put(offset + 6, result)
+      .put(offset + 7, (byte) lane)
+      .put(offset + 4, type);
+  }
+
+  /**
+   * @return the mapped segment with the given index, mapping it if it is not, or null if the journal is disabled
+   */
+  private Segment segment(int index) {
+    int slot = index % MAPPED_SEGMENTS;
+    Segment segment = mapped.get(slot);
+    if (segment != null && segment.index == index) {
+      return segment;
+    }
+
+    synchronized (mapLock) {
+      segment = mapped.get(slot);
+      if (disabled) {
+        return null;
+      } else if (segment != null && segment.index == index) {
+        return segment;
+      }
+      try {
+        if (segment != null && segment.index > index) {
+          // Overtaken by appends to a later segment, map it again just for this record
+          return map(index);
+        } else if (segment != null) {
+          segment.buffer.force();
+        }
+        segment = map(index);
+        mapped.set(slot, segment);
+        return segment;
+      } catch (IOException e) {
+        log.error("Could not start new journal segment, journaling disabled: " + e.getLocalizedMessage(), e);
+        disabled = true;
+        return null;
+      }
+    }
+  }
+
+  private Segment map(int index) throws IOException {
+    try (FileChannel channel = FileChannel.open(JournalReader.segmentPath(directory, index),
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return new Segment(index, channel.map(FileChannel.MapMode.READ_WRITE, 0, recordsPerSegment * JournalRecord.SIZE));
+    }
+  }
+
+  private static final class Segment {
+    private final int index;
+    private final MappedByteBuffer buffer;
+
+    Segment(int index, MappedByteBuffer buffer) {
+      this.index = index;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * The record of an append is put together and checksummed here before it is copied to the segment.
+   */
+  private static final class Scratch {
+    private final ByteBuffer record = ByteBuffer.allocateDirect(JournalRecord.SIZE);
+    private final CRC32 crc = new CRC32();
+  }
+}
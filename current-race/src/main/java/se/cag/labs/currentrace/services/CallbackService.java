@@ -1,25 +1,235 @@
 package se.cag.labs.currentrace.services;
 
 import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
 import se.cag.labs.currentrace.apicontroller.mapper.ModelMapper;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.RaceClock;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports race status changes to the callback URL given when the race was started.
+ * <br>
+ * Reports are queued per lane and callback URL and delivered in order on a pool from the {@link SchedulerService},
+ * so the caller never waits for the receiver. A queued ACTIVE status is dropped when a newer status is reported before
+ * it has been sent, while INACTIVE statuses are always delivered. A full queue drops its oldest ACTIVE status,
+ * or the new one if only INACTIVE statuses are queued. Failed deliveries are retried with exponential backoff,
+ * and only given up after currentrace.callback.max-attempts attempts.
+ */
 @Component
 @Scope("singleton")
 @Log4j
-public class CallbackService {
+public class CallbackService implements PublicMetrics {
+  private static final long INITIAL_BACKOFF = 100;
+  private static final long MAX_BACKOFF = 10 * 1000;
+
+  @Value("${currentrace.callback.capacity:64}")
+  private int capacity;
+  @Value("${currentrace.callback.max-attempts:10}")
+  private int maxAttempts;
+  @Autowired
+  private SchedulerService schedulerService;
+  @Autowired
+  private RaceClock raceClock;
+
   private RestTemplate restTemplate = new RestTemplate();
 
+  private ExecutorService dispatcher;
+  private final Map<String, CallbackQueue> queues = new ConcurrentHashMap<>();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
   public void reportStatus(CurrentRaceStatus status) {
     log.debug("Report status:" + status);
+    if (status.getCallbackUrl() == null) {
+      log.debug("No callback URL, status not reported");
+      return;
+    }
+
+    CallbackQueue queue = queues.computeIfAbsent(status.getRaceId() + " " + status.getCallbackUrl(),
+      key -> new CallbackQueue(status.getCallbackUrl()));
+    if (queue.offer(ModelMapper.createStatusResponse(status, raceClock))) {
+      try {
+        dispatcher.execute(() -> drain(queue));
+      } catch (RejectedExecutionException e) {
+        log.warn("Callback dispatcher is busy, retrying: " + e.getLocalizedMessage());
+        retryLater(queue, INITIAL_BACKOFF);
+      }
+    }
+  }
+
+  @PostConstruct
+  public void init() {
+    dispatcher = schedulerService.newPool("callback", 2);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    dispatcher.shutdown();
+  }
+
+  private void drain(CallbackQueue queue) {
+    RaceStatus raceStatus;
+    while ((raceStatus = queue.next()) != null) {
+      try {
+        restTemplate.postForLocation(queue.callbackUrl, raceStatus);
+        delivered.incrementAndGet();
+        queue.delivered();
+      } catch (RuntimeException e) {
+        failed.incrementAndGet();
+        int attempt = queue.failed();
+        if (attempt >= maxAttempts) {
+          log.error("Rest call failed " + attempt + " times, dropping " + raceStatus + ": " + e.getLocalizedMessage(), e);
+          dropped.incrementAndGet();
+          queue.delivered();
+          continue;
+        }
+
+        long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << (attempt - 1));
+        log.warn("Rest call failed, retrying in " + backoff + " ms: " + e.getLocalizedMessage());
+        retryLater(queue, backoff);
+        return;
+      }
+    }
+  }
+
+  private void retryLater(CallbackQueue queue, long backoff) {
     try {
-      restTemplate.postForLocation(status.getCallbackUrl(), ModelMapper.createStatusResponse(status));
-    } catch (RestClientException e) {
-      log.error("Rest call failed: " + e.getLocalizedMessage(), e);
+      schedulerService.schedule(() -> {
+        try {
+          dispatcher.execute(() -> drain(queue));
+        } catch (RejectedExecutionException e) {
+          log.error("Could not dispatch retry, waiting for next status: " + e.getLocalizedMessage());
+          queue.pause();
+        }
+      }, backoff, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      log.error("Could not schedule retry, waiting for next status: " + e.getLocalizedMessage());
+      queue.pause();
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    int queued = queues.values().stream().mapToInt(CallbackQueue::size).sum();
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("currentrace.callback.queued", queued));
+    metrics.add(new Metric<>("currentrace.callback.delivered", delivered.get()));
+    metrics.add(new Metric<>("currentrace.callback.failed", failed.get()));
+    metrics.add(new Metric<>("currentrace.callback.coalesced", coalesced.get()));
+    metrics.add(new Metric<>("currentrace.callback.dropped", dropped.get()));
+    return metrics;
+  }
+
+  private static boolean isTerminal(RaceStatus raceStatus) {
+    return raceStatus.getState() != RaceStatus.State.ACTIVE;
+  }
+
+  private final class CallbackQueue {
+    private final String callbackUrl;
+    private final Deque<RaceStatus> pending = new ArrayDeque<>();
+    private RaceStatus inFlight;
+    private boolean draining;
+    private int attempts;
+
+    CallbackQueue(String callbackUrl) {
+      this.callbackUrl = callbackUrl;
+    }
+
+    /**
+     * @return true if the caller must start draining the queue
+     */
+    synchronized boolean offer(RaceStatus raceStatus) {
+      while (!pending.isEmpty() && !isTerminal(pending.peekLast())) {
+        pending.pollLast();
+        coalesced.incrementAndGet();
+      }
+      if (pending.size() >= capacity && !dropActive()) {
+        if (!isTerminal(raceStatus)) {
+          log.warn("Callback queue for " + callbackUrl + " is full of INACTIVE statuses, dropping " + raceStatus);
+          dropped.incrementAndGet();
+          return false;
+        }
+        log.warn("Callback queue for " + callbackUrl + " is full of INACTIVE statuses, queueing " + raceStatus + " anyway");
+      }
+      pending.addLast(raceStatus);
+
+      if (draining) {
+        return false;
+      }
+      draining = true;
+      return true;
+    }
+
+    /**
+     * @return true if the oldest queued ACTIVE status was dropped, false if only INACTIVE statuses are queued
+     */
+    private boolean dropActive() {
+      for (Iterator<RaceStatus> iterator = pending.iterator(); iterator.hasNext(); ) {
+        RaceStatus queued = iterator.next();
+        if (!isTerminal(queued)) {
+          iterator.remove();
+          log.warn("Callback queue for " + callbackUrl + " is full, dropping " + queued);
+          dropped.incrementAndGet();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    synchronized RaceStatus next() {
+      if (inFlight != null && !isTerminal(inFlight) && !pending.isEmpty()) {
+        inFlight = null;
+        attempts = 0;
+        coalesced.incrementAndGet();
+      }
+      if (inFlight == null) {
+        inFlight = pending.pollFirst();
+      }
+      if (inFlight == null) {
+        draining = false;
+      }
+      return inFlight;
+    }
+
+    synchronized void delivered() {
+      inFlight = null;
+      attempts = 0;
+    }
+
+    synchronized int failed() {
+      return ++attempts;
+    }
+
+    synchronized void pause() {
+      draining = false;
+    }
+
+    synchronized int size() {
+      return pending.size() + (inFlight == null ? 0 : 1);
     }
   }
 }
@@ -3,29 +3,54 @@ package se.cag.labs.currentrace.services;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
-import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
+import se.cag.labs.currentrace.journal.PassageJournal;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
 
 @Service
 public class CancelRaceService {
   @Autowired
-  private CurrentRaceRepository repository;
+  private CurrentRaceStore currentRaceStore;
   @Autowired
   private CallbackService callbackService;
+  @Autowired
+  private TimerService timerService;
+  @Autowired
+  private PassageJournal passageJournal;
+  @Autowired
+  private LaneService laneService;
+  @Autowired
+  private StatusStreamService statusStreamService;
 
   public ReturnStatus cancelRace() {
-    CurrentRaceStatus currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
+    return cancelRace(LaneService.DEFAULT_LANE);
+  }
+
+  public ReturnStatus cancelRace(String lane) {
+    if (!laneService.isLane(lane)) {
+      return ReturnStatus.NOT_FOUND;
+    }
+
+    CurrentRaceStatus currentRaceStatus = currentRaceStore.modify(lane, status -> {
+      if (status == null) {
+        return null;
+      }
+      status.setRaceActivatedTime(null);
+      status.setFinishTime(null);
+      status.setSplitTime(null);
+      status.setStartTime(null);
+      status.setPassageTimes(null);
+      status.setClockEpoch(null);
+      status.setStartNanos(null);
+      status.setPassageNanos(null);
+      status.setEvent(null);
+      status.setState(RaceStatus.State.INACTIVE);
+      return status;
+    }, cancelled -> passageJournal.recordCancel(laneService.indexOf(lane)));
 
     if (currentRaceStatus != null) {
-      currentRaceStatus.setRaceActivatedTime(null);
-      currentRaceStatus.setFinishTime(null);
-      currentRaceStatus.setSplitTime(null);
-      currentRaceStatus.setStartTime(null);
-      currentRaceStatus.setEvent(null);
-      currentRaceStatus.setState(RaceStatus.State.INACTIVE);
-
-      repository.save(currentRaceStatus);
+      timerService.scheduleTimeout(currentRaceStatus);
       callbackService.reportStatus(currentRaceStatus);
+      statusStreamService.publish(currentRaceStatus);
       return ReturnStatus.ACCEPTED;
     }
 
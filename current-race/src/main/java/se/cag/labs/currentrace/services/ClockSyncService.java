@@ -0,0 +1,84 @@
+package se.cag.labs.currentrace.services;
+
+import lombok.extern.log4j.Log4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+import se.cag.labs.currentrace.apicontroller.apimodel.TimeSync;
+import se.cag.labs.currentrace.apicontroller.apimodel.TimeSyncResponse;
+import se.cag.labs.currentrace.time.RaceClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a {@link SensorClock} per sensor controller, by the sensorId it registered with, and moves the
+ * timestamps of its passages onto the {@link RaceClock} of current-race. Passages from controllers that have
+ * not synced keep their timestamps.
+ */
+@Service
+@Log4j
+public class ClockSyncService implements PublicMetrics {
+  @Autowired
+  private RaceClock raceClock;
+
+  private final Map<String, SensorClock> clocks = new ConcurrentHashMap<>();
+
+  /**
+   * Answers a time sync request and adds the previous exchange it carries to the estimate of the controller.
+   *
+   * @param receiveTime when the request was received, on the race clock
+   */
+  public TimeSyncResponse timeSync(TimeSync timeSync, long receiveTime) {
+    if (StringUtils.isNotBlank(timeSync.getSensorId()) && hasLastExchange(timeSync)) {
+      SensorClock clock = clocks.computeIfAbsent(timeSync.getSensorId(), sensorId -> new SensorClock());
+      if (!clock.add(timeSync.getLastOriginateTime(), timeSync.getLastReceiveTime(),
+        timeSync.getLastTransmitTime(), timeSync.getLastDestinationTime())) {
+        log.warn("Ignoring invalid time sync exchange: " + timeSync);
+      }
+    }
+
+    return TimeSyncResponse.builder()
+      .originateTime(timeSync.getOriginateTime())
+      .receiveTime(receiveTime)
+      .transmitTime(raceClock.millis())
+      .build();
+  }
+
+  /**
+   * @return the timestamp on the server clock, or unchanged if the controller is unknown or has not synced
+   */
+  public long toServerTime(String sensorId, long timestamp) {
+    SensorClock clock = sensorId == null ? null : clocks.get(sensorId);
+    return clock == null ? timestamp : clock.toServerTime(timestamp);
+  }
+
+  /**
+   * @return the clock estimate of the controller or null if it has not synced
+   */
+  public SensorClock getClock(String sensorId) {
+    SensorClock clock = sensorId == null ? null : clocks.get(sensorId);
+    return clock != null && clock.isSynced() ? clock : null;
+  }
+
+  private static boolean hasLastExchange(TimeSync timeSync) {
+    return timeSync.getLastOriginateTime() != null && timeSync.getLastReceiveTime() != null
+      && timeSync.getLastTransmitTime() != null && timeSync.getLastDestinationTime() != null;
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    clocks.forEach((sensorId, clock) -> {
+      metrics.add(new Metric<>("currentrace.clock." + sensorId + ".offset", clock.getOffset()));
+      metrics.add(new Metric<>("currentrace.clock." + sensorId + ".drift-ppm", clock.getDriftPpm()));
+      metrics.add(new Metric<>("currentrace.clock." + sensorId + ".round-trip", clock.getRoundTrip()));
+    });
+    return metrics;
+  }
+}
@@ -0,0 +1,584 @@
+package se.cag.labs.currentrace.services;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.archive.RaceArchive;
+import se.cag.labs.currentrace.journal.PassageJournal;
+import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.services.sensors.Course;
+import se.cag.labs.currentrace.services.sensors.RaceState;
+import se.cag.labs.currentrace.services.sensors.SensorMapping;
+import se.cag.labs.currentrace.time.RaceClock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the live race status of every lane in memory. This is the source of truth for all race services,
+ * MongoDB is only written behind on a separate thread and read when the service boots. Each lane is
+ * stored as its own document, with the lane as both id and raceId, so a lane can never be inserted twice.
+ * Nothing is written until the stored documents have been read. If MongoDB cannot be read at boot, the
+ * lanes start empty and the read is retried on the writer thread, merging what is stored into the lanes
+ * the same way as a conflicting write, see {@link #isAhead}.
+ * <br>
+ * Each lane keeps its state in a single {@link RaceState} guarded by the lane, so lanes never wait for
+ * each other. Passages are applied to it in place by {@link #update}, which does not allocate, and the
+ * writer thread makes the copy that is persisted.
+ * <br>
+ * Every change of a lane bumps its revision. Changes that read the status before they write it go through
+ * {@link #modify}, which only saves if the revision is unchanged and otherwise starts over, so a passage
+ * applied in between is never overwritten by a stale copy. The documents are versioned the same way in
+ * MongoDB. A write that lost against another writer reloads the stored document, merges it into the lane
+ * through {@link #modify} if it is ahead, see {@link #isAhead}, and writes the result with the stored version.
+ * <br>
+ * Passages, starts, cancels and timeouts are appended to the {@link PassageJournal} while the lane is held,
+ * passages by {@link #update} and the rest by the callers of {@link #modify}, so the journal of a lane is in
+ * the order its changes were applied.
+ * <br>
+ * Requests waiting for a lane to change, see {@link #awaitChange}, are parked in the lane without a thread
+ * and all of them are woken with the same copy of the status when the revision changes. They are woken on
+ * the "waiters" pool of the {@link SchedulerService}, so the thread that made the change never answers them.
+ * <br>
+ * A race that goes from active to inactive, whatever made it end, is appended to the {@link RaceArchive}
+ * on the writer thread.
+ */
+@Component
+@Log4j
+public class CurrentRaceStore {
+  private static final long RETRY_DELAY = 1000;
+  private static final int MAX_WRITE_ATTEMPTS = 3;
+
+  @Autowired
+  private CurrentRaceRepository repository;
+  @Autowired
+  private LaneService laneService;
+  @Autowired
+  private RaceArchive raceArchive;
+  @Autowired
+  private RaceClock raceClock;
+  @Autowired
+  private PassageJournal passageJournal;
+  @Autowired
+  private SchedulerService schedulerService;
+
+  private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "CurrentRaceWriteBehind");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+  private volatile boolean rehydrated;
+  private ExecutorService waker;
+
+  @PostConstruct
+  public void rehydrate() {
+    if (lanes.isEmpty()) {
+      waker = schedulerService.newPool("waiters", 1);
+      laneService.getLanes().forEach(lane -> lanes.put(lane, new Lane(lane, laneService.getCourse())));
+    }
+
+    rehydrated = false;
+    lanes.values().forEach(lane -> lane.load(null));
+    List<CurrentRaceStatus> stored = findStored();
+    if (stored == null) {
+      log.error("Starting without race status, retrying to load it every " + RETRY_DELAY + " ms");
+      writer.schedule(this::retryRehydrate, RETRY_DELAY, TimeUnit.MILLISECONDS);
+      return;
+    }
+    for (CurrentRaceStatus status : stored) {
+      Lane lane = lanes.get(laneOf(status));
+      if (lane == null) {
+        log.warn("Ignoring race status for unknown lane: " + status);
+      } else {
+        lane.load(status);
+        log.info("Rehydrated race status: " + status);
+      }
+    }
+    rehydrated = true;
+  }
+
+  /**
+   * Loads the stored documents on the writer thread after they could not be read at boot, merges them into
+   * the lanes and writes what was held back.
+   */
+  private void retryRehydrate() {
+    if (rehydrated) {
+      return;
+    }
+    List<CurrentRaceStatus> stored = findStored();
+    if (stored == null) {
+      writer.schedule(this::retryRehydrate, RETRY_DELAY, TimeUnit.MILLISECONDS);
+      return;
+    }
+    for (CurrentRaceStatus status : stored) {
+      Lane lane = lanes.get(laneOf(status));
+      if (lane == null) {
+        log.warn("Ignoring race status for unknown lane: " + status);
+      } else {
+        lane.merge(status);
+        log.info("Rehydrated race status: " + status);
+      }
+    }
+    rehydrated = true;
+    lanes.values().forEach(Lane::writePending);
+  }
+
+  /**
+   * @return the stored documents or null if they could not be read
+   */
+  private List<CurrentRaceStatus> findStored() {
+    try {
+      return repository.findAll();
+    } catch (RuntimeException e) {
+      log.error("Could not load race status: " + e.getLocalizedMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * @return a copy of the race status of the default lane or null if no race has ever been started
+   */
+  public CurrentRaceStatus find() {
+    return find(LaneService.DEFAULT_LANE);
+  }
+
+  /**
+   * @return a copy of the race status of the lane or null if no race has ever been started in it
+   */
+  public CurrentRaceStatus find(String lane) {
+    Lane storedLane = lanes.get(lane);
+    return storedLane == null ? null : storedLane.find();
+  }
+
+  /**
+   * @return copies of the race status of every lane where a race has been started
+   */
+  public List<CurrentRaceStatus> findAll() {
+    List<CurrentRaceStatus> statuses = new ArrayList<>();
+    for (String lane : laneService.getLanes()) {
+      CurrentRaceStatus status = find(lane);
+      if (status != null) {
+        statuses.add(status);
+      }
+    }
+    return statuses;
+  }
+
+  /**
+   * Replaces the race status of the lane given by its raceId, the default lane if it has none, and queues it
+   * to be persisted. If several saves happen before the writer gets to run, only the latest one is written.
+   *
+   * @throws IllegalArgumentException if the lane is unknown
+   */
+  public void save(CurrentRaceStatus status) {
+    Lane lane = lanes.get(laneOf(status));
+    if (lane == null) {
+      throw new IllegalArgumentException("Unknown lane: " + status.getRaceId());
+    }
+    lane.save(status);
+  }
+
+  /**
+   * Applies a change to the race status of the lane and saves it, unless the lane was changed after the
+   * status was read, in which case the change is applied again to a fresh copy. The change may be called
+   * several times and must not have side effects.
+   *
+   * @param change gets a copy of the status, or null if no race has been started in the lane, and returns
+   *               the status to save or null to leave the lane unchanged
+   * @return the saved status or null if nothing was saved
+   * @throws IllegalArgumentException if the lane is unknown
+   */
+  public CurrentRaceStatus modify(String lane, UnaryOperator<CurrentRaceStatus> change) {
+    return modify(lane, change, null);
+  }
+
+  /**
+   * Like {@link #modify(String, UnaryOperator)}, and calls the journal with the saved status while the lane is
+   * still held, before any other change can be applied to it.
+   *
+   * @param journal records the change, or null
+   */
+  public CurrentRaceStatus modify(String lane, UnaryOperator<CurrentRaceStatus> change, Consumer<CurrentRaceStatus> journal) {
+    Lane storedLane = lanes.get(lane);
+    if (storedLane == null) {
+      throw new IllegalArgumentException("Unknown lane: " + lane);
+    }
+
+    while (true) {
+      long revision;
+      CurrentRaceStatus status;
+      synchronized (storedLane) {
+        revision = storedLane.revision;
+        status = storedLane.find();
+      }
+
+      CurrentRaceStatus changed = change.apply(status);
+      if (changed == null) {
+        return null;
+      }
+      changed.setRaceId(lane);
+      if (storedLane.compareAndSave(revision, changed, journal)) {
+        return changed;
+      }
+      log.debug("Race status of lane " + lane + " changed while it was modified, retrying");
+    }
+  }
+
+  /**
+   * Calls the listener once the revision of the lane differs from the given one, at once on this thread if
+   * it already does, otherwise on the waiters pool. A lane where no race has been started has
+   * revision 0. All listeners woken by a change get the same status, which they must not modify.
+   *
+   * @param listener gets the status of the lane, or null if no race has been started in it
+   * @return cancels the wait, does nothing if the listener has already been called
+   * @throws IllegalArgumentException if the lane is unknown
+   */
+  public Runnable awaitChange(String lane, long sinceRevision, Consumer<CurrentRaceStatus> listener) {
+    Lane storedLane = lanes.get(lane);
+    if (storedLane == null) {
+      throw new IllegalArgumentException("Unknown lane: " + lane);
+    }
+
+    if (!storedLane.addWaiter(sinceRevision, listener)) {
+      listener.accept(storedLane.find());
+      return () -> {
+      };
+    }
+    return () -> storedLane.removeWaiter(listener);
+  }
+
+  /**
+   * Applies a passage to the race in the lane if it is active, in place and without allocating, and journals
+   * it with its result and the reading of the monotonic sensor clock, see {@link RaceState#setSensorClock}.
+   *
+   * @return true if the passage changed the race, it is then queued to be persisted
+   */
+  public boolean update(SensorMapping mapping, long timestamp, long clockEpoch, long nanoTime) {
+    Lane storedLane = lanes.get(mapping.getLane());
+    return storedLane != null && storedLane.update(mapping, timestamp, clockEpoch, nanoTime);
+  }
+
+  /**
+   * Blocks until all saves made before this call have been handed to MongoDB.
+   */
+  public void flush() {
+    try {
+      writer.submit(() -> lanes.values().forEach(Lane::writePending)).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.error("Could not flush race status", e);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    flush();
+    writer.shutdown();
+  }
+
+  /**
+   * Decides which of two statuses of a lane to keep when another writer has changed the stored one. A race
+   * activated later wins, and of the same race the one that has ended wins over one that is still active,
+   * otherwise the one with more passages.
+   *
+   * @return true if the stored status is ahead of the current one
+   */
+  static boolean isAhead(CurrentRaceStatus stored, CurrentRaceStatus current) {
+    if (stored.getRaceActivatedTime() == null) {
+      return false;
+    } else if (current == null || current.getRaceActivatedTime() == null) {
+      return true;
+    } else if (!stored.getRaceActivatedTime().equals(current.getRaceActivatedTime())) {
+      return stored.getRaceActivatedTime() > current.getRaceActivatedTime();
+    }
+    boolean storedEnded = stored.getState() == RaceStatus.State.INACTIVE;
+    boolean currentEnded = current.getState() == RaceStatus.State.INACTIVE;
+    if (storedEnded != currentEnded) {
+      return storedEnded;
+    }
+    return passages(stored) > passages(current);
+  }
+
+  private static int passages(CurrentRaceStatus status) {
+    return status.getPassageTimes() == null ? 0 : status.getPassageTimes().length;
+  }
+
+  private static String laneOf(CurrentRaceStatus status) {
+    return status.getRaceId() == null ? LaneService.DEFAULT_LANE : status.getRaceId();
+  }
+
+  private final class Lane {
+    private final String lane;
+    private final RaceState raceState;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final Runnable writePending = this::writePending;
+    private boolean present;
+    private long revision;
+    private List<Consumer<CurrentRaceStatus>> waiters = new ArrayList<>();
+    private volatile String legacyId;
+    private volatile Long persistedVersion;
+
+    Lane(String lane, Course course) {
+      this.lane = lane;
+      this.raceState = new RaceState(course, raceClock);
+    }
+
+    void load(CurrentRaceStatus stored) {
+      List<Consumer<CurrentRaceStatus>> woken;
+      synchronized (this) {
+        adopt(stored);
+        present = stored != null;
+        raceState.copyFrom(stored == null ? new CurrentRaceStatus() : stored);
+        woken = nextRevision();
+      }
+      wake(woken);
+    }
+
+    /**
+     * Merges a document that could only be read after the lane had been used, the lane is queued to be
+     * written whether the document was ahead or not.
+     */
+    void merge(CurrentRaceStatus stored) {
+      adopt(stored);
+      modify(lane, current -> isAhead(stored, current) ? stored.toBuilder().build() : null);
+      markDirty();
+    }
+
+    /**
+     * Takes over the version of the stored document of the lane. A document stored under another id, as all
+     * of them were before they were keyed by lane, is deleted once the lane has been written.
+     */
+    private void adopt(CurrentRaceStatus stored) {
+      boolean legacy = stored != null && !lane.equals(stored.getId());
+      legacyId = legacy ? stored.getId() : null;
+      persistedVersion = stored == null || legacy ? null : stored.getVersion();
+    }
+
+    synchronized CurrentRaceStatus find() {
+      if (!present) {
+        return null;
+      }
+      CurrentRaceStatus status = raceState.toCurrentRaceStatus();
+      status.setRaceId(lane);
+      status.setRevision(revision);
+      return status;
+    }
+
+    void save(CurrentRaceStatus status) {
+      List<Consumer<CurrentRaceStatus>> woken;
+      CurrentRaceStatus ended;
+      synchronized (this) {
+        boolean wasActive = raceState.isActive();
+        raceState.copyFrom(status);
+        present = true;
+        ended = endedRace(wasActive);
+        woken = nextRevision();
+      }
+      markDirty();
+      archive(ended);
+      wake(woken);
+    }
+
+    boolean compareAndSave(long expectedRevision, CurrentRaceStatus status, Consumer<CurrentRaceStatus> journal) {
+      List<Consumer<CurrentRaceStatus>> woken;
+      CurrentRaceStatus ended;
+      synchronized (this) {
+        if (revision != expectedRevision) {
+          return false;
+        }
+        boolean wasActive = raceState.isActive();
+        raceState.copyFrom(status);
+        present = true;
+        if (journal != null) {
+          journal.accept(status);
+        }
+        ended = endedRace(wasActive);
+        woken = nextRevision();
+      }
+      markDirty();
+      archive(ended);
+      wake(woken);
+      return true;
+    }
+
+    boolean update(SensorMapping mapping, long timestamp, long clockEpoch, long nanoTime) {
+      boolean changed;
+      List<Consumer<CurrentRaceStatus>> woken = null;
+      CurrentRaceStatus ended = null;
+      synchronized (this) {
+        raceState.setSensorClock(clockEpoch, nanoTime);
+        changed = raceState.isActive() && mapping.getSensor().updateStatus(raceState, timestamp);
+        passageJournal.recordPassage(mapping.getLaneIndex(), mapping.getType(), mapping.getCheckpoint(),
+          changed ? PassageDetectedService.ReturnStatus.ACCEPTED : PassageDetectedService.ReturnStatus.IGNORED,
+          timestamp, clockEpoch, nanoTime);
+        if (changed) {
+          ended = endedRace(true);
+          woken = nextRevision();
+        }
+      }
+      if (changed) {
+        markDirty();
+        archive(ended);
+        wake(woken);
+      }
+      return changed;
+    }
+
+    synchronized boolean addWaiter(long sinceRevision, Consumer<CurrentRaceStatus> listener) {
+      if ((present ? revision : 0) != sinceRevision) {
+        return false;
+      }
+      waiters.add(listener);
+      return true;
+    }
+
+    synchronized void removeWaiter(Consumer<CurrentRaceStatus> listener) {
+      waiters.remove(listener);
+    }
+
+    /**
+     * Copies the race if it was active and no longer is, must be called holding the lane. Only allocates
+     * when the race has ended.
+     */
+    private CurrentRaceStatus endedRace(boolean wasActive) {
+      if (!wasActive || raceState.isActive()) {
+        return null;
+      }
+      CurrentRaceStatus ended = raceState.toCurrentRaceStatus();
+      ended.setRaceId(lane);
+      return ended;
+    }
+
+    private void archive(CurrentRaceStatus ended) {
+      if (ended != null) {
+        long endTime = raceClock.millis();
+        writer.execute(() -> raceArchive.append(ended, endTime));
+      }
+    }
+
+    /**
+     * Bumps the revision, must be called holding the lane.
+     *
+     * @return the waiters to wake once the lane is released, or null if there are none
+     */
+    private List<Consumer<CurrentRaceStatus>> nextRevision() {
+      revision++;
+      if (waiters.isEmpty()) {
+        return null;
+      }
+      List<Consumer<CurrentRaceStatus>> woken = waiters;
+      waiters = new ArrayList<>();
+      return woken;
+    }
+
+    private void wake(List<Consumer<CurrentRaceStatus>> woken) {
+      if (woken == null) {
+        return;
+      }
+      CurrentRaceStatus status = find();
+      Runnable wakeAll = () -> {
+        for (Consumer<CurrentRaceStatus> listener : woken) {
+          try {
+            listener.accept(status);
+          } catch (RuntimeException e) {
+            log.error("Could not wake waiter of lane " + lane + ": " + e.getLocalizedMessage(), e);
+          }
+        }
+      };
+      try {
+        waker.execute(wakeAll);
+      } catch (RejectedExecutionException e) {
+        log.warn("Waking " + woken.size() + " waiters of lane " + lane + " on this thread: " + e.getLocalizedMessage());
+        wakeAll.run();
+      }
+    }
+
+    private void markDirty() {
+      if (dirty.compareAndSet(false, true)) {
+        writer.execute(writePending);
+      }
+    }
+
+    private void writePending() {
+      if (!rehydrated || !dirty.getAndSet(false)) {
+        return;
+      }
+
+      CurrentRaceStatus document = find();
+      try {
+        write(document);
+      } catch (RuntimeException e) {
+        log.error("Could not persist race status of lane " + lane + ", retrying: " + e.getLocalizedMessage(), e);
+        if (dirty.compareAndSet(false, true)) {
+          writer.schedule(writePending, RETRY_DELAY, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+
+    private void write(CurrentRaceStatus document) {
+      for (int attempt = 1; ; attempt++) {
+        document.setId(lane);
+        document.setVersion(persistedVersion);
+        try {
+          CurrentRaceStatus saved = repository.save(document);
+          persistedVersion = saved.getVersion();
+          deleteLegacy();
+          return;
+        } catch (OptimisticLockingFailureException | DuplicateKeyException e) {
+          if (attempt >= MAX_WRITE_ATTEMPTS) {
+            throw e;
+          }
+          log.warn("Race status of lane " + lane + " was changed by another writer, merging it: " + e.getLocalizedMessage());
+          CurrentRaceStatus stored = reload();
+          if (stored != null) {
+            modify(lane, current -> isAhead(stored, current) ? stored.toBuilder().build() : null);
+          }
+          document = find();
+        }
+      }
+    }
+
+    /**
+     * Reads the stored document and its version.
+     *
+     * @return the stored document or null if there is none to merge
+     */
+    private CurrentRaceStatus reload() {
+      CurrentRaceStatus stored = repository.findOne(lane);
+      if (stored != null && stored.getVersion() == null) {
+        // Written before the documents were versioned, it can only be replaced
+        repository.delete(lane);
+        stored = null;
+      }
+      persistedVersion = stored == null ? null : stored.getVersion();
+      return stored;
+    }
+
+    private void deleteLegacy() {
+      String id = legacyId;
+      if (id != null) {
+        repository.delete(id);
+        legacyId = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package se.cag.labs.currentrace.services;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+import se.cag.labs.currentrace.services.sensors.SensorMapping;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drops the extra passages a chattering gate reports for a single car. A passage is suppressed when it is
+ * within currentrace.debounce.window millis of the last passage let through from the same sensor, 0 turns
+ * debouncing off. Suppressed passages never reach the race state, they are journaled as DEBOUNCED so that a
+ * replay can tell them from the passages the race ignored.
+ * <br>
+ * The last timestamp of each sensor is kept in a table indexed by {@link SensorMapping#getIndex()} and
+ * updated with compare-and-set, so passages from different sensors and threads never wait for each other.
+ */
+@Service
+@Log4j
+public class DebounceService implements PublicMetrics {
+  private static final long NOT_SET = Long.MIN_VALUE;
+
+  @Value("${currentrace.debounce.window}")
+  private long window;
+  @Autowired
+  private LaneService laneService;
+
+  private AtomicLongArray lastTimestamps;
+  private AtomicLongArray suppressed;
+
+  @PostConstruct
+  public void init() {
+    int sensors = laneService.getSensors().size();
+    lastTimestamps = new AtomicLongArray(sensors);
+    suppressed = new AtomicLongArray(sensors);
+    reset();
+    log.info("Debounce window " + window + " ms");
+  }
+
+  /**
+   * @return true if the passage should be handled, false if it is a duplicate of a recent passage
+   */
+  public boolean accept(SensorMapping sensor, long timestamp) {
+    if (window <= 0) {
+      return true;
+    }
+
+    int index = sensor.getIndex();
+    while (true) {
+      long last = lastTimestamps.get(index);
+      if (last != NOT_SET && Math.abs(timestamp - last) < window) {
+        suppressed.incrementAndGet(index);
+        return false;
+      }
+      // An old passage let through must not move the window backwards
+      if (timestamp < last || lastTimestamps.compareAndSet(index, last, timestamp)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Forgets the last passage of every sensor.
+   */
+  public void reset() {
+    for (int i = 0; i < lastTimestamps.length(); i++) {
+      lastTimestamps.set(i, NOT_SET);
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    long total = 0;
+    for (SensorMapping sensor : laneService.getSensors()) {
+      long count = suppressed.get(sensor.getIndex());
+      total += count;
+      metrics.add(new Metric<>("currentrace.debounce.suppressed." + sensor.getLane() + "." + sensor.getSensorID(), count));
+    }
+    metrics.add(new Metric<>("currentrace.debounce.suppressed", total));
+    return metrics;
+  }
+}
@@ -0,0 +1,151 @@
+package se.cag.labs.currentrace.services;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.services.sensors.Course;
+import se.cag.labs.currentrace.services.sensors.RegisterSensor;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorFactory;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+import se.cag.labs.currentrace.services.sensors.SensorMapping;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the lanes of the track, each lane runs its own race on the same {@link Course}. The lanes
+ * are given by currentrace.lanes, the default lane "ID" always exists and is the lane used when none is given.
+ * The course is given by currentrace.course.checkpoints and currentrace.course.laps.
+ * <br>
+ * Sensors report with the plain START/FINISH ids, SPLIT for the first checkpoint and SPLIT2, SPLIT3 and so on
+ * for the following ones, and a lane. Sensors can also report with an id of their own that is mapped to a lane
+ * and sensor in currentrace.lane-sensors, e.g. "START-2=2:START,FINISH-2=2:FINISH".
+ */
+@Service
+@Log4j
+public class LaneService {
+  public static final String DEFAULT_LANE = CurrentRaceStatus.ID;
+  /**
+   * The journal and the UDP frames store the index of the lane in a byte
+   */
+  public static final int MAX_LANES = Byte.MAX_VALUE;
+
+  // No defaults in the placeholders, springfox resolves those before the profile properties are applied
+  @Value("${currentrace.lanes}")
+  private String[] laneIds;
+  @Value("${currentrace.lane-sensors}")
+  private String[] laneSensors;
+  @Value("${currentrace.course.checkpoints}")
+  private int checkpoints;
+  @Value("${currentrace.course.laps}")
+  private int laps;
+
+  private List<String> lanes;
+  private Course course;
+  private final Map<String, Map<String, SensorMapping>> laneMappings = new HashMap<>();
+  private final Map<String, SensorMapping> sensorMappings = new HashMap<>();
+  private final List<SensorMapping> sensors = new ArrayList<>();
+
+  @PostConstruct
+  public void init() {
+    course = new Course(checkpoints, laps);
+
+    List<String> configured = new ArrayList<>();
+    configured.add(DEFAULT_LANE);
+    for (String lane : laneIds) {
+      if (!lane.trim().isEmpty() && !configured.contains(lane.trim())) {
+        configured.add(lane.trim());
+      }
+    }
+    if (configured.size() > MAX_LANES) {
+      throw new IllegalArgumentException("At most " + MAX_LANES + " lanes are supported, got " + configured.size());
+    }
+    lanes = Collections.unmodifiableList(configured);
+
+    for (int laneIndex = 0; laneIndex < lanes.size(); laneIndex++) {
+      String lane = lanes.get(laneIndex);
+      Map<String, SensorMapping> mappings = new HashMap<>();
+      add(mappings, RegisterSensorType.START.getId(), lane, laneIndex, RegisterSensorType.START, 0,
+        RegisterSensorFactory.INSTANCE.getRegisterSensor(RegisterSensorType.START));
+      for (int checkpoint = 1; checkpoint <= course.getCheckpoints(); checkpoint++) {
+        add(mappings, checkpointId(checkpoint), lane, laneIndex, RegisterSensorType.SPLIT, checkpoint,
+          RegisterSensorFactory.INSTANCE.getCheckpointSensor(checkpoint));
+      }
+      add(mappings, RegisterSensorType.FINISH.getId(), lane, laneIndex, RegisterSensorType.FINISH, 0,
+        RegisterSensorFactory.INSTANCE.getRegisterSensor(RegisterSensorType.FINISH));
+      laneMappings.put(lane, mappings);
+    }
+
+    for (String laneSensor : laneSensors) {
+      String[] sensorAndTarget = laneSensor.trim().split("=");
+      String[] laneAndSensor = sensorAndTarget.length == 2 ? sensorAndTarget[1].split(":") : new String[0];
+      Map<String, SensorMapping> mappings = laneAndSensor.length == 2 ? laneMappings.get(laneAndSensor[0]) : null;
+      if (mappings == null || !mappings.containsKey(laneAndSensor[1])) {
+        if (!laneSensor.trim().isEmpty()) {
+          log.error("Ignoring invalid lane sensor mapping: " + laneSensor);
+        }
+        continue;
+      }
+      sensorMappings.put(sensorAndTarget[0], mappings.get(laneAndSensor[1]));
+    }
+    log.info("Lanes: " + lanes + ", lane sensors: " + sensorMappings.keySet() + ", course: " + course);
+  }
+
+  public List<String> getLanes() {
+    return lanes;
+  }
+
+  /**
+   * @return the sensors of all lanes, in the order of their index
+   */
+  public List<SensorMapping> getSensors() {
+    return Collections.unmodifiableList(sensors);
+  }
+
+  public Course getCourse() {
+    return course;
+  }
+
+  public boolean isLane(String lane) {
+    return laneMappings.containsKey(lane);
+  }
+
+  /**
+   * @return the position of the lane in currentrace.lanes, the default lane is 0, or -1 for an unknown lane
+   */
+  public int indexOf(String lane) {
+    return lanes.indexOf(lane);
+  }
+
+  /**
+   * Finds the lane and sensor of a passage without allocating.
+   *
+   * @param lane the lane given with the passage or null to use the lane the sensor is mapped to
+   * @return null if the sensor or lane is unknown, or the sensor is mapped to another lane than the given one
+   */
+  public SensorMapping resolve(String sensorID, String lane) {
+    SensorMapping mapping = sensorMappings.get(sensorID);
+    if (mapping != null) {
+      return lane == null || lane.equals(mapping.getLane()) ? mapping : null;
+    }
+
+    Map<String, SensorMapping> mappings = laneMappings.get(lane == null ? DEFAULT_LANE : lane);
+    return mappings == null ? null : mappings.get(sensorID);
+  }
+
+  private void add(Map<String, SensorMapping> mappings, String sensorID, String lane, int laneIndex,
+                   RegisterSensorType type, int checkpoint, RegisterSensor sensor) {
+    SensorMapping mapping = new SensorMapping(sensors.size(), sensorID, lane, laneIndex, type, checkpoint, sensor);
+    sensors.add(mapping);
+    mappings.put(sensorID, mapping);
+  }
+
+  private static String checkpointId(int checkpoint) {
+    return checkpoint == 1 ? RegisterSensorType.SPLIT.getId() : RegisterSensorType.SPLIT.getId() + checkpoint;
+  }
+}
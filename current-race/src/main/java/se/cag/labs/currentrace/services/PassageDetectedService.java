@@ -2,39 +2,159 @@ package se.cag.labs.currentrace.services;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
-import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
+import se.cag.labs.currentrace.apicontroller.apimodel.Passage;
+import se.cag.labs.currentrace.journal.PassageJournal;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
-import se.cag.labs.currentrace.services.sensors.RegisterSensor;
-import se.cag.labs.currentrace.services.sensors.RegisterSensorFactory;
-import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+import se.cag.labs.currentrace.services.sensors.RaceState;
+import se.cag.labs.currentrace.services.sensors.SensorMapping;
+import se.cag.labs.currentrace.time.RaceClock;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Service
 public class PassageDetectedService {
   @Autowired
-  private CurrentRaceRepository repository;
+  private CurrentRaceStore currentRaceStore;
   @Autowired
   private CallbackService callbackService;
+  @Autowired
+  private TimerService timerService;
+  @Autowired
+  private PassageJournal passageJournal;
+  @Autowired
+  private LaneService laneService;
+  @Autowired
+  private DebounceService debounceService;
+  @Autowired
+  private StatusStreamService statusStreamService;
+  @Autowired
+  private ClockSyncService clockSyncService;
+  @Autowired
+  private SensorService sensorService;
+  @Autowired
+  private RaceClock raceClock;
 
   public ReturnStatus passageDetected(String sensorID, long timestamp) {
-    CurrentRaceStatus currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
+    return passageDetected(sensorID, null, timestamp);
+  }
+
+  /**
+   * Passages suppressed by the {@link DebounceService} are IGNORED and journaled as debounced.
+   *
+   * @param lane the lane of the passage or null to use the lane the sensor is mapped to, see {@link LaneService}
+   */
+  public ReturnStatus passageDetected(String sensorID, String lane, long timestamp) {
+    return passageDetected(sensorID, lane, timestamp, RaceState.NOT_SET, RaceState.NOT_SET);
+  }
+
+  /**
+   * Elapsed times are measured on the monotonic sensor clock when the start and the passages all read the
+   * same clock, see {@link RaceState#setSensorClock}.
+   *
+   * @param clockEpoch identifies the sensor clock, {@link RaceState#NOT_SET} if the sensor has none
+   * @param nanoTime   the monotonic sensor clock at the passage, {@link RaceState#NOT_SET} if the sensor has none
+   */
+  public ReturnStatus passageDetected(String sensorID, String lane, long timestamp, long clockEpoch, long nanoTime) {
+    return passageDetected(sensorID, lane, null, timestamp, clockEpoch, nanoTime);
+  }
+
+  /**
+   * The timestamp is moved onto the clock of current-race before anything else, see {@link ClockSyncService},
+   * and the passage is counted for the controller in the {@link SensorService}.
+   *
+   * @param controllerId the sensorId the sensor controller syncs its clock with, or null to keep the timestamp
+   */
+  public ReturnStatus passageDetected(String sensorID, String lane, String controllerId, long sensorTimestamp,
+                                      long clockEpoch, long nanoTime) {
+    long timestamp = clockSyncService.toServerTime(controllerId, sensorTimestamp);
+    sensorService.passageReceived(controllerId, raceClock.millis() - timestamp);
+    SensorMapping mapping = laneService.resolve(sensorID, lane);
+    if (mapping != null && !debounceService.accept(mapping, timestamp)) {
+      recordDebounced(mapping, timestamp);
+      return ReturnStatus.IGNORED;
+    }
+    ReturnStatus result = updateStatus(mapping, timestamp, clockEpoch, nanoTime);
+    if (mapping == null) {
+      recordError(lane, timestamp);
+    }
+    return result;
+  }
 
-    RegisterSensorType registerSensorType = RegisterSensorType.get(sensorID);
-    if (registerSensorType == null) {
+  /**
+   * The passage is journaled by the {@link CurrentRaceStore} while it holds the lane. Ignored passages do not
+   * allocate. An accepted passage makes one copy of the status, which the timer, the
+   * callback and the stream share, and those allocate what they queue for their own threads.
+   */
+  private ReturnStatus updateStatus(SensorMapping mapping, long timestamp, long clockEpoch, long nanoTime) {
+    if (mapping == null) {
       return ReturnStatus.ERROR;
     }
 
-    if (currentRaceStatus != null && RaceStatus.State.ACTIVE.equals(currentRaceStatus.getState())) {
-      RegisterSensor sensor = RegisterSensorFactory.INSTANCE.createRegisterSensorObject(registerSensorType);
-      if (sensor.updateStatus(currentRaceStatus, timestamp)) {
-        repository.save(currentRaceStatus);
+    if (currentRaceStore.update(mapping, timestamp, clockEpoch, nanoTime)) {
+      CurrentRaceStatus currentRaceStatus = currentRaceStore.find(mapping.getLane());
+      timerService.scheduleTimeout(currentRaceStatus);
+      callbackService.reportStatus(currentRaceStatus);
+      statusStreamService.publish(currentRaceStatus);
+      return ReturnStatus.ACCEPTED;
+    }
+
+    return ReturnStatus.IGNORED;
+  }
+
+  private void recordError(String lane, long timestamp) {
+    passageJournal.recordPassage(Math.max(0, laneService.indexOf(lane)), null, ReturnStatus.ERROR, timestamp);
+  }
+
+  private void recordDebounced(SensorMapping mapping, long timestamp) {
+    passageJournal.recordDebounced(mapping.getLaneIndex(), mapping.getType(), mapping.getCheckpoint(), timestamp);
+  }
+
+  /**
+   * Applies a batch of passages in timestamp order. The races are persisted and their timeouts rescheduled
+   * once after the batch. Passages with equal timestamps keep their request order.
+   *
+   * @return one status per passage, in the same order as the given passages
+   */
+  public List<ReturnStatus> passagesDetected(List<Passage> passages) {
+    List<ReturnStatus> result = new ArrayList<>(Collections.nCopies(passages.size(), ReturnStatus.IGNORED));
+    List<Integer> order = IntStream.range(0, passages.size()).boxed()
+      .sorted(Comparator.comparingLong(i -> passages.get(i).getTimestamp()))
+      .collect(Collectors.toList());
+
+    Set<String> changedLanes = new LinkedHashSet<>();
+    for (int i : order) {
+      Passage passage = passages.get(i);
+      long timestamp = clockSyncService.toServerTime(passage.getControllerId(), passage.getTimestamp());
+      sensorService.passageReceived(passage.getControllerId(), raceClock.millis() - timestamp);
+      SensorMapping mapping = laneService.resolve(passage.getSensorID(), passage.getLane());
+      if (mapping == null) {
+        result.set(i, ReturnStatus.ERROR);
+        recordError(passage.getLane(), timestamp);
+      } else if (!debounceService.accept(mapping, timestamp)) {
+        recordDebounced(mapping, timestamp);
+        continue;
+      } else if (currentRaceStore.update(mapping, timestamp, toClock(passage.getClockEpoch()), toClock(passage.getNanoTime()))) {
+        CurrentRaceStatus currentRaceStatus = currentRaceStore.find(mapping.getLane());
         callbackService.reportStatus(currentRaceStatus);
-        return ReturnStatus.ACCEPTED;
+        statusStreamService.publish(currentRaceStatus);
+        result.set(i, ReturnStatus.ACCEPTED);
+        changedLanes.add(mapping.getLane());
       }
     }
 
-    return ReturnStatus.IGNORED;
+    changedLanes.forEach(lane -> timerService.scheduleTimeout(currentRaceStore.find(lane)));
+    return result;
+  }
+
+  private static long toClock(Long clock) {
+    return clock == null ? RaceState.NOT_SET : clock;
   }
 
   public enum ReturnStatus {
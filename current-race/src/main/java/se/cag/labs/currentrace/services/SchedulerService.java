@@ -0,0 +1,154 @@
+package se.cag.labs.currentrace.services;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one place where current-race runs deferred work. A fixed number of threads serve a queue
+ * with a bounded number of pending tasks, and queue depth and scheduling lag are published as metrics.
+ * <br>
+ * Work that blocks on the network, like callbacks and status streams, must not hold up the timers, so it runs
+ * in pools created by {@link #newPool}. Their queues have the same bound and they are published with the
+ * scheduler metrics.
+ */
+@Service
+@Log4j
+public class SchedulerService implements PublicMetrics {
+  @Value("${currentrace.scheduler.threads:2}")
+  private int threads;
+  @Value("${currentrace.scheduler.capacity:1024}")
+  private int capacity;
+
+  private ScheduledThreadPoolExecutor executor;
+  private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+  private final AtomicLong executed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong lastLag = new AtomicLong();
+  private final AtomicLong maxLag = new AtomicLong();
+
+  @PostConstruct
+  public void init() {
+    AtomicInteger threadNumber = new AtomicInteger();
+    executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+      Thread thread = new Thread(runnable, "RaceScheduler-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    log.info("Scheduler started with " + threads + " threads");
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+    pools.values().forEach(pool -> pool.executor.shutdown());
+  }
+
+  /**
+   * Runs the task once after the given delay.
+   *
+   * @throws RejectedExecutionException if the queue is full
+   */
+  public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+    if (executor.getQueue().size() >= capacity) {
+      rejected.incrementAndGet();
+      throw new RejectedExecutionException("Scheduler queue is full (" + capacity + " tasks)");
+    }
+    long dueTime = System.nanoTime() + unit.toNanos(delay);
+    return executor.schedule(() -> run(task, dueTime), delay, unit);
+  }
+
+  /**
+   * Runs the task every period, starting one period from now. Runs that are late are reported as lag.
+   */
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period, TimeUnit unit) {
+    long[] dueTime = {System.nanoTime() + unit.toNanos(period)};
+    return executor.scheduleAtFixedRate(() -> {
+      run(task, dueTime[0]);
+      dueTime[0] += unit.toNanos(period);
+    }, period, period, unit);
+  }
+
+  /**
+   * Creates a pool for work that may block. The pool rejects tasks with
+   * RejectedExecutionException when currentrace.scheduler.capacity tasks are waiting, and is published as
+   * currentrace.scheduler.&lt;name&gt;.* metrics.
+   */
+  public ExecutorService newPool(String name, int threads) {
+    Pool pool = new Pool();
+    AtomicInteger threadNumber = new AtomicInteger();
+    pool.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(capacity),
+      runnable -> {
+        Thread thread = new Thread(runnable, "RaceScheduler-" + name + "-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      },
+      (task, rejectingExecutor) -> {
+        pool.rejected.incrementAndGet();
+        throw new RejectedExecutionException(name + " queue is full (" + capacity + " tasks)");
+      });
+    pools.put(name, pool);
+    return pool.executor;
+  }
+
+  private void run(Runnable task, long dueTime) {
+    long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dueTime);
+    lastLag.set(lag);
+    maxLag.accumulateAndGet(lag, Math::max);
+    executed.incrementAndGet();
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      log.error("Scheduled task failed: " + e.getLocalizedMessage(), e);
+    }
+  }
+
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("currentrace.scheduler.threads", executor.getPoolSize()));
+    metrics.add(new Metric<>("currentrace.scheduler.queue", getQueueDepth()));
+    metrics.add(new Metric<>("currentrace.scheduler.executed", executed.get()));
+    metrics.add(new Metric<>("currentrace.scheduler.rejected", rejected.get()));
+    metrics.add(new Metric<>("currentrace.scheduler.lag.last", lastLag.get()));
+    metrics.add(new Metric<>("currentrace.scheduler.lag.max", maxLag.get()));
+    pools.forEach((name, pool) -> {
+      String prefix = "currentrace.scheduler." + name;
+      metrics.add(new Metric<>(prefix + ".threads", pool.executor.getPoolSize()));
+      metrics.add(new Metric<>(prefix + ".active", pool.executor.getActiveCount()));
+      metrics.add(new Metric<>(prefix + ".queue", pool.executor.getQueue().size()));
+      metrics.add(new Metric<>(prefix + ".executed", pool.executor.getCompletedTaskCount()));
+      metrics.add(new Metric<>(prefix + ".rejected", pool.rejected.get()));
+    });
+    return metrics;
+  }
+
+  private static final class Pool {
+    private ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+  }
+}
@@ -0,0 +1,132 @@
+package se.cag.labs.currentrace.services;
+
+/**
+ * Offset and drift of the clock of a sensor controller against the clock of current-race, estimated from
+ * time sync exchanges.
+ * <br>
+ * The offset is taken from the exchange with the shortest round trip among the latest ones, since its
+ * timestamps are the least delayed by the network. Drift is the least-squares slope of those filtered
+ * offsets over time, once they span long enough to tell drift from jitter.
+ */
+public final class SensorClock {
+  static final int SAMPLES = 8;
+  static final int ESTIMATES = 32;
+  static final long MIN_DRIFT_SPAN = 60 * 1000;
+
+  private final long[] sampleTimes = new long[SAMPLES];
+  private final long[] sampleOffsets = new long[SAMPLES];
+  private final long[] sampleRoundTrips = new long[SAMPLES];
+  private int samples;
+  private int nextSample;
+  private final long[] estimateTimes = new long[ESTIMATES];
+  private final long[] estimateOffsets = new long[ESTIMATES];
+  private int estimates;
+  private int nextEstimate;
+
+  private long offset;
+  private long reference;
+  private long roundTrip;
+  private double drift;
+
+  /**
+   * Adds the four timestamps of an exchange, sensor send and receive times on the sensor clock and server
+   * receive and send times on the server clock.
+   *
+   * @return false if the timestamps do not make up a valid exchange
+   */
+  public synchronized boolean add(long originateTime, long receiveTime, long transmitTime, long destinationTime) {
+    long sampleRoundTrip = (destinationTime - originateTime) - (transmitTime - receiveTime);
+    if (sampleRoundTrip < 0 || transmitTime < receiveTime) {
+      return false;
+    }
+
+    sampleTimes[nextSample] = receiveTime;
+    sampleOffsets[nextSample] = ((receiveTime - originateTime) + (transmitTime - destinationTime)) / 2;
+    sampleRoundTrips[nextSample] = sampleRoundTrip;
+    nextSample = (nextSample + 1) % SAMPLES;
+    samples = Math.min(samples + 1, SAMPLES);
+
+    int best = 0;
+    for (int i = 1; i < samples; i++) {
+      if (sampleRoundTrips[i] < sampleRoundTrips[best]) {
+        best = i;
+      }
+    }
+    offset = sampleOffsets[best];
+    reference = sampleTimes[best];
+    roundTrip = sampleRoundTrips[best];
+
+    int latest = (nextEstimate + ESTIMATES - 1) % ESTIMATES;
+    if (estimates == 0 || estimateTimes[latest] != reference) {
+      estimateTimes[nextEstimate] = reference;
+      estimateOffsets[nextEstimate] = offset;
+      nextEstimate = (nextEstimate + 1) % ESTIMATES;
+      estimates = Math.min(estimates + 1, ESTIMATES);
+      drift = estimateDrift();
+    }
+    return true;
+  }
+
+  private double estimateDrift() {
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+    double meanTime = 0;
+    double meanOffset = 0;
+    for (int i = 0; i < estimates; i++) {
+      first = Math.min(first, estimateTimes[i]);
+      last = Math.max(last, estimateTimes[i]);
+      meanTime += estimateTimes[i] - reference;
+      meanOffset += estimateOffsets[i];
+    }
+    if (last - first < MIN_DRIFT_SPAN) {
+      return drift;
+    }
+    meanTime /= estimates;
+    meanOffset /= estimates;
+
+    double covariance = 0;
+    double variance = 0;
+    for (int i = 0; i < estimates; i++) {
+      double time = estimateTimes[i] - reference - meanTime;
+      covariance += time * (estimateOffsets[i] - meanOffset);
+      variance += time * time;
+    }
+    return variance == 0 ? drift : covariance / variance;
+  }
+
+  /**
+   * Moves a timestamp of the sensor clock onto the server clock, without allocating.
+   */
+  public synchronized long toServerTime(long sensorTime) {
+    if (samples == 0) {
+      return sensorTime;
+    }
+    long serverTime = sensorTime + offset;
+    return serverTime + Math.round(drift * (serverTime - reference));
+  }
+
+  public synchronized boolean isSynced() {
+    return samples > 0;
+  }
+
+  /**
+   * @return millis to add to the sensor clock to get the server clock, at the time of the best exchange
+   */
+  public synchronized long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return how much faster the server clock runs than the sensor clock, in parts per million
+   */
+  public synchronized double getDriftPpm() {
+    return drift * 1_000_000;
+  }
+
+  /**
+   * @return the round trip in millis of the exchange the offset is taken from
+   */
+  public synchronized long getRoundTrip() {
+    return roundTrip;
+  }
+}
@@ -1,6 +1,11 @@
 package se.cag.labs.currentrace.services;
 
+import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataAccessException;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import se.cag.labs.currentrace.apicontroller.apimodel.Sensor;
@@ -9,45 +14,204 @@ import se.cag.labs.currentrace.apicontroller.mapper.SensorMapper;
 import se.cag.labs.currentrace.services.repository.SensorRepository;
 import se.cag.labs.currentrace.services.repository.datamodel.SensorModel;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.stream.Collectors.toList;
 
+/**
+ * Registry of the sensor controllers, kept in memory by sensorId.
+ * <br>
+ * Controllers register every 30 s as a heartbeat. A heartbeat only touches the registry; MongoDB is written
+ * when a controller is new or has changed its IP address, and with the last heartbeat of every controller
+ * once per currentrace.sensors.snapshot millis. Controllers that have not sent a heartbeat for
+ * currentrace.sensors.ttl millis are evicted. The registry is loaded from MongoDB at startup.
+ */
 @Service
-public class SensorService {
+@Log4j
+public class SensorService implements PublicMetrics {
+  private static final int ONE_HOUR = 1000 * 60 * 60;
 
   @Autowired
   private SensorRepository sensorRepository;
+  @Autowired
+  private ClockSyncService clockSyncService;
+  @Value("${currentrace.sensors.ttl:" + ONE_HOUR + "}")
+  private long ttl;
+  @Value("${currentrace.sensors.alive:90000}")
+  private long aliveTime;
+
+  private final Map<String, RegisteredSensor> sensors = new ConcurrentHashMap<>();
+  private final Map<String, Boolean> evicted = new ConcurrentHashMap<>();
+  private final AtomicLong heartbeats = new AtomicLong();
 
-  private static final int ONE_HOUR = 1000*60*60;
+  /**
+   * Loads the registry from MongoDB, keeping the latest registration of every controller.
+   */
+  @PostConstruct
+  public void rehydrate() {
+    sensors.clear();
+    evicted.clear();
+    try {
+      for (SensorModel sensorModel : sensorRepository.findAll()) {
+        RegisteredSensor sensor = sensors.get(sensorModel.getSensorId());
+        if (sensor == null || sensor.lastSeen < sensorModel.getRegisteredTimestamp()) {
+          sensors.put(sensorModel.getSensorId(), new RegisteredSensor(sensorModel));
+        }
+        if (!sensorModel.getSensorId().equals(sensorModel.getId())) {
+          // Stored before the registry, snapshots are stored by sensorId
+          sensorRepository.delete(sensorModel);
+          sensors.get(sensorModel.getSensorId()).snapshotted = 0;
+        }
+      }
+      log.info("Loaded " + sensors.size() + " registered sensors");
+    } catch (DataAccessException e) {
+      log.error("Could not load registered sensors: " + e.getLocalizedMessage());
+    }
+  }
 
   public ReturnStatus registerSensor(Sensor sensor) {
     SensorModel sensorModel = SensorMapper.createModelFromApi(sensor);
 
     if (sensorModel != null) {
-      List<SensorModel> sensorModels = sensorRepository.findBySensorId(sensor.getSensorId());
-      sensorRepository.delete(sensorModels);
-      sensorRepository.save(sensorModel);
+      heartbeats.incrementAndGet();
+      RegisteredSensor registered = sensors.compute(sensorModel.getSensorId(), (sensorId, known) -> {
+        if (known == null || !Objects.equals(known.sensorIpAddress, sensorModel.getSensorIpAddress())) {
+          return new RegisteredSensor(sensorModel);
+        }
+        known.heartbeat(sensorModel.getRegisteredTimestamp());
+        return known;
+      });
+      evicted.remove(sensorModel.getSensorId());
+      if (registered.snapshotted == 0) {
+        save(registered);
+      }
       return ReturnStatus.REGISTERED;
     } else {
       return ReturnStatus.ILLEGAL;
     }
   }
 
-  @Scheduled(fixedDelay = ONE_HOUR)
+  /**
+   * Counts a passage from a controller, with the millis from the passage to its arrival.
+   */
+  public void passageReceived(String sensorId, long latency) {
+    RegisteredSensor sensor = sensorId == null ? null : sensors.get(sensorId);
+    if (sensor != null) {
+      sensor.passages.incrementAndGet();
+      sensor.lastLatency = latency;
+    }
+  }
+
+  @Scheduled(fixedDelay = ONE_HOUR / 60)
   public void deleteOldSensors() {
-    List<SensorModel> sensorModels = sensorRepository.findByRegisteredTimestampLessThan(System.currentTimeMillis() - ONE_HOUR);
-    sensorRepository.delete(sensorModels);
+    long expired = System.currentTimeMillis() - ttl;
+    sensors.values().removeIf(sensor -> {
+      if (sensor.lastSeen < expired) {
+        evicted.put(sensor.sensorId, Boolean.TRUE);
+        log.info("Evicted sensor " + sensor.sensorId + ", last seen " + sensor.lastSeen);
+        return true;
+      }
+      return false;
+    });
+  }
+
+  /**
+   * Stores the last heartbeat of every controller that has been heard from since the last snapshot and
+   * removes the evicted ones.
+   */
+  @Scheduled(fixedDelayString = "${currentrace.sensors.snapshot:60000}")
+  public void snapshot() {
+    try {
+      for (String sensorId : evicted.keySet()) {
+        sensorRepository.delete(sensorId);
+        evicted.remove(sensorId);
+      }
+      for (RegisteredSensor sensor : sensors.values()) {
+        if (sensor.snapshotted != sensor.lastSeen) {
+          save(sensor);
+        }
+      }
+    } catch (DataAccessException e) {
+      log.error("Could not store registered sensors: " + e.getLocalizedMessage());
+    }
+  }
+
+  private void save(RegisteredSensor sensor) {
+    long lastSeen = sensor.lastSeen;
+    try {
+      sensorRepository.save(SensorModel.builder()
+        .id(sensor.sensorId)
+        .sensorId(sensor.sensorId)
+        .sensorIpAddress(sensor.sensorIpAddress)
+        .registeredTimestamp(lastSeen)
+        .build());
+      sensor.snapshotted = lastSeen;
+    } catch (DataAccessException e) {
+      log.error("Could not store sensor " + sensor.sensorId + ": " + e.getLocalizedMessage());
+    }
   }
 
   public List<SensorResponse> getSensorList() {
-    return sensorRepository.findAll().stream()
-      .map(SensorMapper::createSensorResponseFromModel)
+    long alive = System.currentTimeMillis() - aliveTime;
+    return sensors.values().stream()
+      .map(sensor -> SensorMapper.createSensorResponseFromModel(SensorModel.builder()
+          .sensorId(sensor.sensorId)
+          .sensorIpAddress(sensor.sensorIpAddress)
+          .registeredTimestamp(sensor.lastSeen)
+          .build(),
+        clockSyncService.getClock(sensor.sensorId)).toBuilder()
+        .alive(sensor.lastSeen >= alive)
+        .heartbeats(sensor.heartbeats.get())
+        .passages(sensor.passages.get())
+        .lastLatency(sensor.lastLatency)
+        .build())
       .collect(toList());
   }
 
+  @Override
+  public Collection<Metric<?>> metrics() {
+    long alive = System.currentTimeMillis() - aliveTime;
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("currentrace.sensors.registered", sensors.size()));
+    metrics.add(new Metric<>("currentrace.sensors.alive", sensors.values().stream().filter(sensor -> sensor.lastSeen >= alive).count()));
+    metrics.add(new Metric<>("currentrace.sensors.heartbeats", heartbeats.get()));
+    return metrics;
+  }
+
   public enum ReturnStatus {
     REGISTERED,
     ILLEGAL
   }
+
+  private static final class RegisteredSensor {
+    private final String sensorId;
+    private final String sensorIpAddress;
+    private final AtomicLong heartbeats = new AtomicLong(1);
+    private final AtomicLong passages = new AtomicLong();
+    private volatile long lastSeen;
+    private volatile Long lastLatency;
+    /**
+     * The lastSeen stored in MongoDB, 0 if the sensor is not stored
+     */
+    private volatile long snapshotted;
+
+    RegisteredSensor(SensorModel sensorModel) {
+      this.sensorId = sensorModel.getSensorId();
+      this.sensorIpAddress = sensorModel.getSensorIpAddress();
+      this.lastSeen = sensorModel.getRegisteredTimestamp();
+      this.snapshotted = sensorModel.getId() == null ? 0 : lastSeen;
+    }
+
+    void heartbeat(long timestamp) {
+      heartbeats.incrementAndGet();
+      lastSeen = Math.max(lastSeen, timestamp);
+    }
+  }
 }
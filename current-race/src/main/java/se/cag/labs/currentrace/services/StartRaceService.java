@@ -4,50 +4,74 @@ import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
-import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
+import se.cag.labs.currentrace.journal.PassageJournal;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.RaceClock;
 
 @Service
 @Log4j
 public class StartRaceService {
   @Autowired
-  private CurrentRaceRepository repository;
+  private CurrentRaceStore currentRaceStore;
   @Autowired
   private TimerService timerService;
+  @Autowired
+  private PassageJournal passageJournal;
+  @Autowired
+  private LaneService laneService;
+  @Autowired
+  private StatusStreamService statusStreamService;
+  @Autowired
+  private RaceClock raceClock;
 
   public ReturnStatus startRace(String callbackUrl) {
-    CurrentRaceStatus activeCurrentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
-    if (activeCurrentRaceStatus == null) {
-      CurrentRaceStatus status = new CurrentRaceStatus();
-      status.setState(RaceStatus.State.ACTIVE);
-      status.setRaceActivatedTime(System.currentTimeMillis());
+    return startRace(LaneService.DEFAULT_LANE, callbackUrl);
+  }
+
+  public ReturnStatus startRace(String lane, String callbackUrl) {
+    if (!laneService.isLane(lane)) {
+      log.info("Unknown lane: " + lane);
+      return ReturnStatus.UNKNOWN_LANE;
+    }
+
+    long raceActivatedTime = raceClock.millis();
+    CurrentRaceStatus startedRaceStatus = currentRaceStore.modify(lane, status -> {
+      if (status == null) {
+        status = new CurrentRaceStatus();
+      } else if (RaceStatus.State.INACTIVE.equals(status.getState())) {
+        status.setEvent(RaceStatus.Event.NONE);
+        status.setStartTime(null);
+        status.setSplitTime(null);
+        status.setFinishTime(null);
+        status.setPassageTimes(null);
+        status.setClockEpoch(null);
+        status.setStartNanos(null);
+        status.setPassageNanos(null);
+      } else {
+        return null;
+      }
       status.setCallbackUrl(callbackUrl);
-      repository.save(status);
-      log.info("Starting race: " + callbackUrl);
-      timerService.trigAsyncStatusUpdate();
-      return ReturnStatus.STARTED;
-    } else if (RaceStatus.State.INACTIVE.equals(activeCurrentRaceStatus.getState())) {
-      activeCurrentRaceStatus.setCallbackUrl(callbackUrl);
-      activeCurrentRaceStatus.setEvent(RaceStatus.Event.NONE);
-      activeCurrentRaceStatus.setState(RaceStatus.State.ACTIVE);
-      activeCurrentRaceStatus.setRaceActivatedTime(System.currentTimeMillis());
-      activeCurrentRaceStatus.setStartTime(null);
-      activeCurrentRaceStatus.setSplitTime(null);
-      activeCurrentRaceStatus.setFinishTime(null);
-
-      repository.save(activeCurrentRaceStatus);
-      log.info("Restarting race");
-      timerService.trigAsyncStatusUpdate();
-      return ReturnStatus.STARTED;
-    } else {
-      log.info("Race is already started");
-      timerService.trigAsyncStatusUpdate();
+      status.setState(RaceStatus.State.ACTIVE);
+      status.setRaceActivatedTime(raceActivatedTime);
+      return status;
+    }, started -> passageJournal.recordStart(laneService.indexOf(lane), raceActivatedTime));
+
+    if (startedRaceStatus == null) {
+      log.info("Race is already started in lane " + lane);
+      timerService.trigAsyncStatusUpdate(lane);
       return ReturnStatus.FOUND;
     }
+
+    timerService.scheduleTimeout(startedRaceStatus);
+    statusStreamService.publish(startedRaceStatus);
+    log.info("Starting race in lane " + lane + ": " + callbackUrl);
+    timerService.trigAsyncStatusUpdate(lane);
+    return ReturnStatus.STARTED;
   }
 
   public enum ReturnStatus {
     STARTED,
-    FOUND
+    FOUND,
+    UNKNOWN_LANE
   }
 }
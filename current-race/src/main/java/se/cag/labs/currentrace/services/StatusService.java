@@ -1,16 +1,63 @@
 package se.cag.labs.currentrace.services;
 
+import lombok.Value;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.apicontroller.mapper.ModelMapper;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.RaceClock;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 @Service
 public class StatusService {
   @Autowired
-  private CurrentRaceRepository repository;
+  private CurrentRaceStore currentRaceStore;
+  @Autowired
+  private RaceClock raceClock;
+
+  private final Map<String, Response> lastResponses = new ConcurrentHashMap<>();
 
   public CurrentRaceStatus status() {
-    return repository.findByRaceId(CurrentRaceStatus.ID);
+    return currentRaceStore.find();
+  }
+
+  public CurrentRaceStatus status(String lane) {
+    return currentRaceStore.find(lane);
+  }
+
+  public List<CurrentRaceStatus> statusOfAllLanes() {
+    return currentRaceStore.findAll();
+  }
+
+  /**
+   * Calls the listener with the status of the lane once its version differs from the given one,
+   * see {@link CurrentRaceStore#awaitChange}. The waiters woken by the same change share one response,
+   * which is mapped by the first of them.
+   *
+   * @return cancels the wait
+   */
+  public Runnable awaitStatus(String lane, long sinceVersion, Consumer<RaceStatus> listener) {
+    return currentRaceStore.awaitChange(lane, sinceVersion, status -> listener.accept(response(lane, status)));
+  }
+
+  private RaceStatus response(String lane, CurrentRaceStatus status) {
+    Response last = lastResponses.get(lane);
+    if (last != null && last.getStatus() == status) {
+      return last.getRaceStatus();
+    }
+    RaceStatus raceStatus = ModelMapper.createStatusResponse(status, raceClock);
+    lastResponses.put(lane, new Response(status, raceStatus));
+    return raceStatus;
+  }
+
+  @Value
+  private static class Response {
+    CurrentRaceStatus status;
+    RaceStatus raceStatus;
   }
 }
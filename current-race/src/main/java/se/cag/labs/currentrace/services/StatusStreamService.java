@@ -0,0 +1,172 @@
+package se.cag.labs.currentrace.services;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.apicontroller.mapper.ModelMapper;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.RaceClock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes race status changes to any number of viewers as server-sent events.
+ * <br>
+ * Every status change is mapped once and sent as a <code>status</code> event to the viewers of its lane.
+ * Viewers that ask for it also get a <code>tick</code> event with the running time of active races, computed
+ * once per lane on the {@link SchedulerService}. Everything is read from the {@link CurrentRaceStore}, so viewers
+ * never reach MongoDB. Events are sent on a pool of one thread from the scheduler, so a slow viewer never
+ * holds up a passage or a timer.
+ */
+@Service
+@Log4j
+public class StatusStreamService implements PublicMetrics {
+  public static final String STATUS_EVENT = "status";
+  public static final String TICK_EVENT = "tick";
+
+  @Value("${currentrace.stream.tick:1000}")
+  private long tick;
+  @Value("${currentrace.stream.timeout:1800000}")
+  private long timeout;
+  @Autowired
+  private CurrentRaceStore currentRaceStore;
+  @Autowired
+  private LaneService laneService;
+  @Autowired
+  private RaceClock raceClock;
+  @Autowired
+  private SchedulerService schedulerService;
+
+  private ExecutorService sender;
+  private final List<Viewer> viewers = new CopyOnWriteArrayList<>();
+  private final AtomicLong sent = new AtomicLong();
+
+  @PostConstruct
+  public void init() {
+    sender = schedulerService.newPool("stream", 1);
+    if (tick > 0) {
+      schedulerService.scheduleAtFixedRate(this::tick, tick, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    sender.shutdownNow();
+    viewers.forEach(viewer -> viewer.emitter.complete());
+    viewers.clear();
+  }
+
+  /**
+   * Opens a stream that starts with the current status of the lane, or of every started lane.
+   *
+   * @param lane  the lane to follow, or null to follow all lanes
+   * @param ticks true to also get the running time of active races
+   */
+  public SseEmitter subscribe(String lane, boolean ticks) {
+    SseEmitter emitter = new SseEmitter(timeout);
+    Viewer viewer = new Viewer(emitter, lane, ticks);
+    emitter.onCompletion(() -> viewers.remove(viewer));
+    emitter.onTimeout(() -> viewers.remove(viewer));
+    viewers.add(viewer);
+
+    execute(() -> {
+      if (lane == null) {
+        currentRaceStore.findAll().forEach(status -> send(viewer, STATUS_EVENT, ModelMapper.createStatusResponse(status, raceClock)));
+      } else {
+        send(viewer, STATUS_EVENT, ModelMapper.createStatusResponse(currentRaceStore.find(lane), raceClock));
+      }
+    });
+    return emitter;
+  }
+
+  /**
+   * Sends a changed status to the viewers of its lane.
+   */
+  public void publish(CurrentRaceStatus status) {
+    if (viewers.isEmpty() || status == null) {
+      return;
+    }
+
+    String lane = status.getRaceId() == null ? LaneService.DEFAULT_LANE : status.getRaceId();
+    RaceStatus raceStatus = ModelMapper.createStatusResponse(status, raceClock);
+    execute(() -> viewers.stream()
+      .filter(viewer -> viewer.follows(lane))
+      .forEach(viewer -> send(viewer, STATUS_EVENT, raceStatus)));
+  }
+
+  private void tick() {
+    if (viewers.stream().noneMatch(viewer -> viewer.ticks)) {
+      return;
+    }
+
+    for (String lane : laneService.getLanes()) {
+      CurrentRaceStatus status = currentRaceStore.find(lane);
+      if (status == null || status.getState() != RaceStatus.State.ACTIVE || status.getLocalStartTime() == null) {
+        continue;
+      }
+
+      RaceStatus raceStatus = ModelMapper.createStatusResponse(status, raceClock);
+      execute(() -> viewers.stream()
+        .filter(viewer -> viewer.ticks && viewer.follows(lane))
+        .forEach(viewer -> send(viewer, TICK_EVENT, raceStatus)));
+    }
+  }
+
+  private void execute(Runnable task) {
+    try {
+      sender.execute(task);
+    } catch (RejectedExecutionException e) {
+      log.warn("Status stream event dropped: " + e.getLocalizedMessage());
+    }
+  }
+
+  private void send(Viewer viewer, String name, RaceStatus raceStatus) {
+    try {
+      viewer.emitter.send(SseEmitter.event().name(name).data(raceStatus, MediaType.APPLICATION_JSON));
+      sent.incrementAndGet();
+    } catch (IOException | IllegalStateException e) {
+      log.debug("Viewer is gone: " + e.getLocalizedMessage());
+      viewers.remove(viewer);
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("currentrace.stream.viewers", viewers.size()));
+    metrics.add(new Metric<>("currentrace.stream.sent", sent.get()));
+    return metrics;
+  }
+
+  private static final class Viewer {
+    private final SseEmitter emitter;
+    private final String lane;
+    private final boolean ticks;
+
+    Viewer(SseEmitter emitter, String lane, boolean ticks) {
+      this.emitter = emitter;
+      this.lane = lane;
+      this.ticks = ticks;
+    }
+
+    boolean follows(String lane) {
+      return this.lane == null || this.lane.equals(lane);
+    }
+  }
+}
@@ -4,48 +4,113 @@ import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.RaceClock;
 import se.cag.labs.currentrace.timer.VerifyRacePassagesTimerTask;
 
 import javax.annotation.PostConstruct;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 @Service
 @Log4j
 public class TimerService {
+  private static final long STATUS_UPDATE_DELAY = 50;
 
   @Autowired
   private VerifyRacePassagesTimerTask raceTimerTask;
+  @Autowired
+  private CurrentRaceStore currentRaceStore;
+  @Autowired
+  private SchedulerService schedulerService;
+  @Autowired
+  private RaceClock raceClock;
 
-  private Timer timer;
+  private final Map<String, ScheduledFuture<?>> pendingTimeouts = new ConcurrentHashMap<>();
+  private final Set<String> unarmed = ConcurrentHashMap.newKeySet();
 
   @PostConstruct
   public void init() {
-    startTimer();
+    currentRaceStore.findAll().forEach(this::scheduleTimeout);
+    raceClock.onJump(() -> currentRaceStore.findAll().forEach(this::scheduleTimeout));
   }
 
-  public void startTimer() {
-    log.info("Start timer.");
-    if (timer == null) {
-      timer = new Timer("RacingTimer");
-      timer.schedule(raceTimerTask, 1000, VerifyRacePassagesTimerTask.TIME_INTERVAL);
-      log.info("Timer started");
+  /**
+   * Arms a single timer for the next time limit of the race, replacing any previously armed timer of its lane.
+   * Nothing is scheduled when the race is inactive or has no pending transition. The timer runs in real time,
+   * so it is armed again whenever the race clock jumps or changes speed.
+   * <br>
+   * The previous timer is only cancelled once the new one is scheduled. When the scheduler is full the previous
+   * timer is kept, as it arms the timer again when it runs, and a lane left without a timer is armed again the
+   * next time a timer of this service runs or is armed.
+   */
+  public void scheduleTimeout(CurrentRaceStatus currentRaceStatus) {
+    String lane = currentRaceStatus == null || currentRaceStatus.getRaceId() == null
+      ? LaneService.DEFAULT_LANE : currentRaceStatus.getRaceId();
+    boolean armed = arm(lane, currentRaceStatus);
+    if (armed && !unarmed.isEmpty()) {
+      armUnarmed();
     }
   }
 
-  public void stopTimer() {
-    timer.cancel();
+  private boolean arm(String lane, CurrentRaceStatus currentRaceStatus) {
+    boolean[] armed = {true};
+    pendingTimeouts.compute(lane, (key, pendingTimeout) -> {
+      Long deadline = VerifyRacePassagesTimerTask.nextDeadline(currentRaceStatus);
+      ScheduledFuture<?> timeout = null;
+      if (deadline != null) {
+        long delay = raceClock.toRealDelay(deadline - raceClock.millis());
+        log.debug("Race in lane " + lane + " times out in " + delay + " ms");
+        try {
+          timeout = schedulerService.schedule(() -> {
+            raceTimerTask.run(lane);
+            armUnarmed();
+          }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          armed[0] = false;
+          if (pendingTimeout != null && !pendingTimeout.isDone() && pendingTimeout.getDelay(TimeUnit.MILLISECONDS) > 0) {
+            log.error("Could not arm timer of lane " + lane + ", keeping the previous one: " + e.getLocalizedMessage());
+            return pendingTimeout;
+          }
+          log.error("Could not arm timer of lane " + lane + ", arming it later: " + e.getLocalizedMessage());
+          unarmed.add(lane);
+          return null;
+        }
+      }
+
+      unarmed.remove(lane);
+      if (pendingTimeout != null) {
+        pendingTimeout.cancel(false);
+      }
+      return timeout;
+    });
+    return armed[0];
+  }
+
+  private void armUnarmed() {
+    for (String lane : unarmed) {
+      if (unarmed.remove(lane) && !arm(lane, currentRaceStore.find(lane))) {
+        return;
+      }
+    }
   }
 
   public void trigAsyncStatusUpdate() {
-    new Timer("Oneshot").schedule(
-      new TimerTask() {
-        @Override
-        public void run() {
-          log.info("Trig status update");
-          raceTimerTask.trigUpdate(CurrentRaceStatus.builder().build());
-        }
-      },
-      50);
+    trigAsyncStatusUpdate(LaneService.DEFAULT_LANE);
+  }
+
+  public void trigAsyncStatusUpdate(String lane) {
+    try {
+      schedulerService.schedule(() -> {
+        log.info("Trig status update of lane " + lane);
+        raceTimerTask.trigUpdate(lane);
+        armUnarmed();
+      }, STATUS_UPDATE_DELAY, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      log.error("Could not trig status update: " + e.getLocalizedMessage());
+    }
   }
 }
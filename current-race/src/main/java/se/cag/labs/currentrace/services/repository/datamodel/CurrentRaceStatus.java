@@ -6,6 +6,8 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.mapping.Document;
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
 
@@ -27,5 +29,15 @@ public class CurrentRaceStatus {
   private Long startTime;
   private Long splitTime;
   private Long finishTime;
+  private long[] passageTimes;
+  private Long clockEpoch;
+  private Long startNanos;
+  private long[] passageNanos;
+  @Transient
+  private Long localStartNanos;
   private RaceStatus.State state;
+  @Version
+  private Long version;
+  @Transient
+  private long revision;
 }
@@ -0,0 +1,37 @@
+package se.cag.labs.currentrace.services.sensors;
+
+import lombok.Value;
+
+/**
+ * The gates of a race: the start line, a number of ordered checkpoints and the finish line, run for a number
+ * of laps. The finish line is passed at the end of every lap, so a race has laps * (checkpoints + 1) passages
+ * after the start. A sector is the stretch from the start or a passage to the next passage.
+ */
+@Value
+public class Course {
+  public static final int MAX_CHECKPOINTS = 100;
+  public static final Course DEFAULT = new Course(1, 1);
+
+  int checkpoints;
+  int laps;
+
+  public Course(int checkpoints, int laps) {
+    if (checkpoints < 0 || checkpoints > MAX_CHECKPOINTS || laps < 1) {
+      throw new IllegalArgumentException("Invalid course, checkpoints: " + checkpoints + ", laps: " + laps);
+    }
+    this.checkpoints = checkpoints;
+    this.laps = laps;
+  }
+
+  public int getPassages() {
+    return laps * (checkpoints + 1);
+  }
+
+  /**
+   * @return the checkpoint, 1 to checkpoints, that is expected at the passage or 0 if the finish line is
+   */
+  public int gateOf(int passage) {
+    int gate = passage % (checkpoints + 1) + 1;
+    return gate > checkpoints ? 0 : gate;
+  }
+}
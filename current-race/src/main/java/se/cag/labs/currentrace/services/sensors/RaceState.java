@@ -0,0 +1,206 @@
+package se.cag.labs.currentrace.services.sensors;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.RaceClock;
+import se.cag.labs.currentrace.time.SystemRaceClock;
+
+import java.util.Arrays;
+
+/**
+ * The live state of the current race. Times are primitive longs where {@link #NOT_SET} stands for a time that
+ * has not happened, so the {@link RegisterSensor} transitions can update the state without allocating.
+ * {@link CurrentRaceStatus} is the same state as it is stored and handed out to the rest of the service.
+ * <br>
+ * The times of the passages after the start are kept in an array sized for the {@link Course}. The legacy
+ * splitTime is the time of the latest passage that did not end the race.
+ * <br>
+ * Sensors that report a monotonic nanosecond clock set it with {@link #setSensorClock} before the passage is
+ * applied. The readings are kept next to the millis as long as every passage comes from the same clock as
+ * the start, identified by its epoch, and elapsed times are then taken from them.
+ */
+@Data
+public final class RaceState {
+  public static final long NOT_SET = Long.MIN_VALUE;
+
+  private final Course course;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private final RaceClock clock;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private final long[] passageTimes;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private final long[] passageNanos;
+  @Setter(AccessLevel.NONE)
+  private int passages;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private long readingEpoch = NOT_SET;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private long readingNanos = NOT_SET;
+  @Setter(AccessLevel.NONE)
+  private long clockEpoch = NOT_SET;
+  @Setter(AccessLevel.NONE)
+  private long startNanos = NOT_SET;
+  @Setter(AccessLevel.NONE)
+  private long localStartNanos = NOT_SET;
+  private String callbackUrl;
+  private RaceStatus.Event event;
+  private RaceStatus.State state;
+  private long raceActivatedTime = NOT_SET;
+  private long localStartTime = NOT_SET;
+  private long startTime = NOT_SET;
+  private long splitTime = NOT_SET;
+  private long finishTime = NOT_SET;
+
+  public RaceState() {
+    this(Course.DEFAULT);
+  }
+
+  public RaceState(Course course) {
+    this(course, SystemRaceClock.INSTANCE);
+  }
+
+  public RaceState(Course course, RaceClock clock) {
+    this.course = course;
+    this.clock = clock;
+    this.passageTimes = new long[course.getPassages()];
+    this.passageNanos = new long[course.getPassages()];
+  }
+
+  public boolean isActive() {
+    return state == RaceStatus.State.ACTIVE;
+  }
+
+  /**
+   * @return true if the passage is the last one of the race
+   */
+  public boolean isLastPassage() {
+    return passages + 1 == passageTimes.length;
+  }
+
+  public long getPassageTime(int passage) {
+    return passageTimes[passage];
+  }
+
+  /**
+   * @return the reading of the monotonic sensor clock at the passage or {@link #NOT_SET} if there is none
+   */
+  public long getPassageNanos(int passage) {
+    return clockEpoch == NOT_SET ? NOT_SET : passageNanos[passage];
+  }
+
+  /**
+   * Sets the monotonic sensor clock reading of the passage about to be applied, {@link #NOT_SET} if the
+   * sensor did not report one.
+   */
+  public void setSensorClock(long epoch, long nanos) {
+    readingEpoch = nanos == NOT_SET ? NOT_SET : epoch;
+    readingNanos = nanos;
+  }
+
+  /**
+   * Records the start of the race, on the sensor clock if there is a reading and on the race clock.
+   */
+  public void start(long timestamp) {
+    startTime = timestamp;
+    localStartTime = clock.millis();
+    localStartNanos = clock.nanoTime();
+    clockEpoch = readingEpoch;
+    startNanos = readingNanos;
+  }
+
+  /**
+   * Records the next passage of the course.
+   */
+  public void pass(long timestamp) {
+    if (passages < passageTimes.length) {
+      if (clockEpoch != NOT_SET && readingEpoch != clockEpoch) {
+        // Not measured on the clock of the start, elapsed times fall back to millis
+        clockEpoch = NOT_SET;
+      }
+      passageNanos[passages] = readingNanos;
+      passageTimes[passages++] = timestamp;
+    }
+  }
+
+  /**
+   * Forgets the start and all passages of the race.
+   */
+  public void clearPassages() {
+    passages = 0;
+    clockEpoch = NOT_SET;
+    startNanos = NOT_SET;
+    localStartNanos = NOT_SET;
+    localStartTime = NOT_SET;
+    startTime = NOT_SET;
+    splitTime = NOT_SET;
+    finishTime = NOT_SET;
+  }
+
+  public void copyFrom(CurrentRaceStatus currentRaceStatus) {
+    callbackUrl = currentRaceStatus.getCallbackUrl();
+    event = currentRaceStatus.getEvent();
+    state = currentRaceStatus.getState();
+    raceActivatedTime = toTime(currentRaceStatus.getRaceActivatedTime());
+    localStartTime = toTime(currentRaceStatus.getLocalStartTime());
+    startTime = toTime(currentRaceStatus.getStartTime());
+    splitTime = toTime(currentRaceStatus.getSplitTime());
+    finishTime = toTime(currentRaceStatus.getFinishTime());
+
+    localStartNanos = toTime(currentRaceStatus.getLocalStartNanos());
+    clockEpoch = toTime(currentRaceStatus.getClockEpoch());
+    startNanos = toTime(currentRaceStatus.getStartNanos());
+
+    passages = 0;
+    long[] storedNanos = currentRaceStatus.getPassageNanos();
+    if (currentRaceStatus.getPassageTimes() != null) {
+      long[] storedTimes = currentRaceStatus.getPassageTimes();
+      for (int i = 0; i < storedTimes.length && i < passageTimes.length; i++) {
+        passageNanos[i] = storedNanos != null && i < storedNanos.length ? storedNanos[i] : NOT_SET;
+        passageTimes[passages++] = storedTimes[i];
+      }
+    } else if (splitTime != NOT_SET) {
+      // Stored before the course had more than one split
+      passageNanos[0] = NOT_SET;
+      passageTimes[passages++] = splitTime;
+    }
+    if (startNanos == NOT_SET || passages > 0 && (storedNanos == null || storedNanos.length < passages)) {
+      clockEpoch = NOT_SET;
+    }
+  }
+
+  public CurrentRaceStatus toCurrentRaceStatus() {
+    return CurrentRaceStatus.builder()
+      .raceId(CurrentRaceStatus.ID)
+      .callbackUrl(callbackUrl)
+      .event(event)
+      .state(state)
+      .raceActivatedTime(toLong(raceActivatedTime))
+      .localStartTime(toLong(localStartTime))
+      .startTime(toLong(startTime))
+      .splitTime(toLong(splitTime))
+      .finishTime(toLong(finishTime))
+      .passageTimes(passages == 0 ? null : Arrays.copyOf(passageTimes, passages))
+      .clockEpoch(toLong(clockEpoch))
+      .startNanos(clockEpoch == NOT_SET ? null : toLong(startNanos))
+      .passageNanos(clockEpoch == NOT_SET || passages == 0 ? null : Arrays.copyOf(passageNanos, passages))
+      .localStartNanos(toLong(localStartNanos))
+      .build();
+  }
+
+  private static long toTime(Long time) {
+    return time == null ? NOT_SET : time;
+  }
+
+  private static Long toLong(long time) {
+    return time == NOT_SET ? null : time;
+  }
+}
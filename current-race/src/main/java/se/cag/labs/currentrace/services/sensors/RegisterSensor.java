@@ -1,9 +1,12 @@
 package se.cag.labs.currentrace.services.sensors;
 
-import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
-
+/**
+ * A transition of the race state when a sensor reports a passage. Implementations are stateless and shared,
+ * and must not allocate.
+ */
 public interface RegisterSensor {
-  boolean updateStatus(CurrentRaceStatus currentRaceStatus, long timestamp);
-
-
+  /**
+   * @return true if the passage changed the state, false if it was ignored
+   */
+  boolean updateStatus(RaceState raceState, long timestamp);
 }
@@ -1,23 +1,46 @@
 package se.cag.labs.currentrace.services.sensors;
 
+import se.cag.labs.currentrace.services.sensors.impl.RegisterSensorCheckpoint;
 import se.cag.labs.currentrace.services.sensors.impl.RegisterSensorFinish;
-import se.cag.labs.currentrace.services.sensors.impl.RegisterSensorSplit;
 import se.cag.labs.currentrace.services.sensors.impl.RegisterSensorStart;
 
 public enum RegisterSensorFactory {
 
   INSTANCE;
 
-  public RegisterSensor createRegisterSensorObject(RegisterSensorType type) {
+  private final RegisterSensor start = new RegisterSensorStart();
+  private final RegisterSensor[] checkpoints = new RegisterSensor[Course.MAX_CHECKPOINTS + 1];
+  private final RegisterSensor finish = new RegisterSensorFinish();
+
+  RegisterSensorFactory() {
+    for (int checkpoint = 1; checkpoint < checkpoints.length; checkpoint++) {
+      checkpoints[checkpoint] = new RegisterSensorCheckpoint(checkpoint);
+    }
+  }
+
+  /**
+   * @return the shared, stateless sensor for the type, SPLIT is the first checkpoint
+   */
+  public RegisterSensor getRegisterSensor(RegisterSensorType type) {
     switch (type) {
       case START:
-        return new RegisterSensorStart();
+        return start;
       case SPLIT:
-        return new RegisterSensorSplit();
+        return checkpoints[1];
       case FINISH:
-        return new RegisterSensorFinish();
+        return finish;
       default:
         throw new IllegalArgumentException("Type not supported");
     }
   }
+
+  /**
+   * @return the shared, stateless sensor for the checkpoint, 1 to {@link Course#MAX_CHECKPOINTS}
+   */
+  public RegisterSensor getCheckpointSensor(int checkpoint) {
+    if (checkpoint < 1 || checkpoint >= checkpoints.length) {
+      throw new IllegalArgumentException("Checkpoint not supported: " + checkpoint);
+    }
+    return checkpoints[checkpoint];
+  }
 }
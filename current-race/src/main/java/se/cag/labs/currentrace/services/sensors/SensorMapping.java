@@ -0,0 +1,23 @@
+package se.cag.labs.currentrace.services.sensors;
+
+import lombok.Value;
+
+/**
+ * Which lane a passage belongs to and which sensor of the lane reported it.
+ */
+@Value
+public class SensorMapping {
+  /**
+   * Position of the sensor among the sensors of all lanes, for tables indexed by sensor
+   */
+  int index;
+  String sensorID;
+  String lane;
+  int laneIndex;
+  RegisterSensorType type;
+  /**
+   * 1 to the number of checkpoints of the course for SPLIT sensors, 0 for START and FINISH
+   */
+  int checkpoint;
+  RegisterSensor sensor;
+}
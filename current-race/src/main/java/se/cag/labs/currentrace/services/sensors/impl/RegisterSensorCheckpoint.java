@@ -0,0 +1,29 @@
+package se.cag.labs.currentrace.services.sensors.impl;
+
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.sensors.RaceState;
+import se.cag.labs.currentrace.services.sensors.RegisterSensor;
+
+/**
+ * A checkpoint between the start and the finish line. A passage is only accepted when the checkpoint is the
+ * next gate of the course, repeated and out of order passages are ignored.
+ */
+public class RegisterSensorCheckpoint implements RegisterSensor {
+  private final int checkpoint;
+
+  public RegisterSensorCheckpoint(int checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  @Override
+  public boolean updateStatus(RaceState raceState, long timestamp) {
+    if (raceState.getCourse().gateOf(raceState.getPassages()) != checkpoint) {
+      return false;
+    }
+
+    raceState.pass(timestamp);
+    raceState.setSplitTime(timestamp);
+    raceState.setEvent(RaceStatus.Event.SPLIT);
+    return true;
+  }
+}
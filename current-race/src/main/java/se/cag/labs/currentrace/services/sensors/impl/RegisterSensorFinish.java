@@ -1,26 +1,39 @@
 package se.cag.labs.currentrace.services.sensors.impl;
 
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
-import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.services.sensors.RaceState;
 import se.cag.labs.currentrace.services.sensors.RegisterSensor;
 
+/**
+ * The finish line ends a lap. It ends the race after the last lap, or disqualifies it if a checkpoint of the
+ * lap was missed.
+ */
 public class RegisterSensorFinish implements RegisterSensor {
   @Override
-  public boolean updateStatus(CurrentRaceStatus currentRaceStatus, long timestamp) {
+  public boolean updateStatus(RaceState raceState, long timestamp) {
 
     // The race hasn't started yet, ignore the event
-    if( currentRaceStatus.getSplitTime() == null && currentRaceStatus.getStartTime() == null) {
+    if (raceState.getPassages() == 0 && raceState.getStartTime() == RaceState.NOT_SET) {
       return false;
     }
 
-    if (!RaceStatus.Event.FINISH.equals(currentRaceStatus.getEvent())) {
-      currentRaceStatus.setFinishTime(timestamp);
-      RaceStatus.Event event = currentRaceStatus.getSplitTime() == null ? RaceStatus.Event.DISQUALIFIED : RaceStatus.Event.FINISH;
-      currentRaceStatus.setEvent(event);
-      currentRaceStatus.setState(RaceStatus.State.INACTIVE);
+    if (raceState.getCourse().gateOf(raceState.getPassages()) != 0) {
+      raceState.setFinishTime(timestamp);
+      raceState.setEvent(RaceStatus.Event.DISQUALIFIED);
+      raceState.setState(RaceStatus.State.INACTIVE);
       return true;
     }
-    
-    return false;
+
+    if (raceState.isLastPassage()) {
+      raceState.pass(timestamp);
+      raceState.setFinishTime(timestamp);
+      raceState.setEvent(RaceStatus.Event.FINISH);
+      raceState.setState(RaceStatus.State.INACTIVE);
+    } else {
+      raceState.pass(timestamp);
+      raceState.setSplitTime(timestamp);
+      raceState.setEvent(RaceStatus.Event.SPLIT);
+    }
+    return true;
   }
 }
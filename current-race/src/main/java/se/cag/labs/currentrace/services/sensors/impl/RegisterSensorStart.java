@@ -1,19 +1,19 @@
 package se.cag.labs.currentrace.services.sensors.impl;
 
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
-import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.services.sensors.RaceState;
 import se.cag.labs.currentrace.services.sensors.RegisterSensor;
 
 public class RegisterSensorStart implements RegisterSensor {
   @Override
-  public boolean updateStatus(CurrentRaceStatus currentRaceStatus, long timestamp) {
-    if (!RaceStatus.Event.START.equals(currentRaceStatus.getEvent())) {
-      currentRaceStatus.setStartTime(timestamp);
-      currentRaceStatus.setLocalStartTime(System.currentTimeMillis());
-      currentRaceStatus.setEvent(RaceStatus.Event.START);
-      return true;
+  public boolean updateStatus(RaceState raceState, long timestamp) {
+    // Started already or the start was missed and the race is under way, ignore the event
+    if (raceState.getStartTime() != RaceState.NOT_SET || raceState.getPassages() > 0) {
+      return false;
     }
 
-    return false;
+    raceState.start(timestamp);
+    raceState.setEvent(RaceStatus.Event.START);
+    return true;
   }
 }
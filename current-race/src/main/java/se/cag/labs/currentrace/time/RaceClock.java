@@ -0,0 +1,32 @@
+package se.cag.labs.currentrace.time;
+
+/**
+ * The clock races are timed by: when races are activated and started, when time limits run out and when
+ * races end. It is the system clock unless current-race runs with a {@link VirtualRaceClock}, which lets a
+ * simulation or a test move time faster than it passes.
+ * <br>
+ * Sensor heartbeats, clock sync with sensor controllers and the write times of the passage journal are about
+ * real hardware and stay on the system clock.
+ */
+public interface RaceClock {
+  /**
+   * @return the current time in millis since the epoch
+   */
+  long millis();
+
+  /**
+   * @return a monotonic time in nanos, only meaningful as a difference to another reading of this clock
+   */
+  long nanoTime();
+
+  /**
+   * @return how many real millis pass while this clock moves the given millis
+   */
+  long toRealDelay(long millis);
+
+  /**
+   * Calls the listener whenever the clock jumps or changes speed, so work scheduled in real time can be
+   * scheduled again. Never called for the system clock.
+   */
+  void onJump(Runnable listener);
+}
@@ -0,0 +1,36 @@
+package se.cag.labs.currentrace.time;
+
+/**
+ * The system clock, for real races.
+ */
+public final class SystemRaceClock implements RaceClock {
+  public static final SystemRaceClock INSTANCE = new SystemRaceClock();
+
+  private SystemRaceClock() {
+  }
+
+  @Override
+  public long millis() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public long nanoTime() {
+    return System.nanoTime();
+  }
+
+  @Override
+  public long toRealDelay(long millis) {
+    return millis;
+  }
+
+  @Override
+  public void onJump(Runnable listener) {
+    // The system clock never jumps
+  }
+
+  @Override
+  public String toString() {
+    return "system clock";
+  }
+}
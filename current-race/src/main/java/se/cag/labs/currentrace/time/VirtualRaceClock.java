@@ -0,0 +1,107 @@
+package se.cag.labs.currentrace.time;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock for simulations and tests that runs at a multiple of real time and can be moved forward at will.
+ * At speed 0 it stands still and only moves when it is advanced, at speed 60 an hour passes in a minute.
+ * Readings never go backwards.
+ */
+public final class VirtualRaceClock implements RaceClock {
+  private static final long MAX_REAL_DELAY = TimeUnit.DAYS.toMillis(1);
+
+  private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+  private long anchorNanos;
+  private long anchorVirtualNanos;
+  private long epochOffsetMillis;
+  private double speed;
+
+  /**
+   * @param startMillis the time the clock starts at, in millis since the epoch
+   * @param speed       how many times faster than real time the clock runs, 0 to stand still
+   */
+  public VirtualRaceClock(long startMillis, double speed) {
+    checkSpeed(speed);
+    this.anchorNanos = System.nanoTime();
+    this.anchorVirtualNanos = 0;
+    this.epochOffsetMillis = startMillis;
+    this.speed = speed;
+  }
+
+  @Override
+  public synchronized long millis() {
+    return epochOffsetMillis + TimeUnit.NANOSECONDS.toMillis(virtualNanos());
+  }
+
+  @Override
+  public synchronized long nanoTime() {
+    return virtualNanos();
+  }
+
+  @Override
+  public synchronized long toRealDelay(long millis) {
+    if (millis <= 0) {
+      return 0;
+    }
+    return speed == 0 ? MAX_REAL_DELAY : Math.min(MAX_REAL_DELAY, (long) Math.ceil(millis / speed));
+  }
+
+  @Override
+  public void onJump(Runnable listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Moves the clock forward, time limits that run out in between are handled at once.
+   */
+  public void advance(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("The clock can not go back: " + millis);
+    }
+    synchronized (this) {
+      anchor();
+      anchorVirtualNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+    jumped();
+  }
+
+  public void setSpeed(double speed) {
+    checkSpeed(speed);
+    synchronized (this) {
+      anchor();
+      this.speed = speed;
+    }
+    jumped();
+  }
+
+  public synchronized double getSpeed() {
+    return speed;
+  }
+
+  private static void checkSpeed(double speed) {
+    if (!(speed >= 0) || Double.isInfinite(speed)) {
+      throw new IllegalArgumentException("Invalid speed: " + speed);
+    }
+  }
+
+  private long virtualNanos() {
+    return anchorVirtualNanos + (long) ((System.nanoTime() - anchorNanos) * speed);
+  }
+
+  private void anchor() {
+    long now = System.nanoTime();
+    anchorVirtualNanos += (long) ((now - anchorNanos) * speed);
+    anchorNanos = now;
+  }
+
+  private void jumped() {
+    listeners.forEach(Runnable::run);
+  }
+
+  @Override
+  public String toString() {
+    return "virtual clock at " + getSpeed() + "x";
+  }
+}
@@ -5,72 +5,147 @@ import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.journal.PassageJournal;
 import se.cag.labs.currentrace.services.CallbackService;
-import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
+import se.cag.labs.currentrace.services.CurrentRaceStore;
+import se.cag.labs.currentrace.services.LaneService;
+import se.cag.labs.currentrace.services.StatusStreamService;
+import se.cag.labs.currentrace.services.TimerService;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
-
-import java.util.TimerTask;
+import se.cag.labs.currentrace.time.RaceClock;
 
 @Component
 @Log4j
-public class VerifyRacePassagesTimerTask extends TimerTask {
+public class VerifyRacePassagesTimerTask {
 
-  public static final long TIME_INTERVAL = 10 * 1000;
   public static final long TIME_LIMIT = 3 * 60 * 1000;
 
   @Autowired
-  private CurrentRaceRepository repository;
+  private CurrentRaceStore currentRaceStore;
 
   @Autowired
   private CallbackService callbackService;
 
-  @Override
-  public void run() {
-    CurrentRaceStatus previousState = repository.findByRaceId(CurrentRaceStatus.ID);
-    if (previousState != null) {
-      CurrentRaceStatus newState = previousState.toBuilder().build();
-      checkStateChange(previousState, newState);
+  @Autowired
+  private TimerService timerService;
+
+  @Autowired
+  private PassageJournal passageJournal;
+
+  @Autowired
+  private LaneService laneService;
+
+  @Autowired
+  private StatusStreamService statusStreamService;
+  @Autowired
+  private RaceClock raceClock;
+
+  /**
+   * Times out the race in the lane if one of its time limits has run out and arms the timer for the next one.
+   */
+  public void run(String lane) {
+    CurrentRaceStatus timedOut = timeOut(lane);
+    if (timedOut != null) {
+      callbackService.reportStatus(timedOut);
+      statusStreamService.publish(timedOut);
+    }
+    CurrentRaceStatus currentRaceStatus = timedOut == null ? currentRaceStore.find(lane) : timedOut;
+    if (currentRaceStatus != null) {
+      timerService.scheduleTimeout(currentRaceStatus);
     }
   }
 
-  public void trigUpdate(final CurrentRaceStatus previousState) {
-    CurrentRaceStatus newState = repository.findByRaceId(CurrentRaceStatus.ID);
-    checkStateChange(previousState, newState);
+  /**
+   * Reports the status of an active race in the lane, after timing it out if a time limit has run out.
+   */
+  public void trigUpdate(String lane) {
+    CurrentRaceStatus timedOut = timeOut(lane);
+    CurrentRaceStatus currentRaceStatus = timedOut == null ? currentRaceStore.find(lane) : timedOut;
+    if (timedOut != null || isActiveAndConsistent(currentRaceStatus)) {
+      callbackService.reportStatus(currentRaceStatus);
+    }
+    if (timedOut != null) {
+      statusStreamService.publish(timedOut);
+    }
   }
 
-  public void checkStateChange(final CurrentRaceStatus previousState, final CurrentRaceStatus newState) {
-    if (isActiveAndConsistent(newState)) {
-      long currentTime = System.currentTimeMillis();
-      if (newState.getStartTime() == null) {
-        if (currentTime - newState.getRaceActivatedTime() >= TIME_LIMIT) {
-          log.debug(RaceStatus.Event.TIME_OUT_NOT_STARTED.name());
-          newState.setEvent(RaceStatus.Event.TIME_OUT_NOT_STARTED);
-          newState.setState(RaceStatus.State.INACTIVE);
-        }
-      }
-      if (newState.getSplitTime() == null && newState.getStartTime() != null) {
-        if (currentTime - newState.getStartTime() >= TIME_LIMIT) {
-          log.debug(RaceStatus.Event.DISQUALIFIED.name());
-          newState.setEvent(RaceStatus.Event.DISQUALIFIED);
-          newState.setState(RaceStatus.State.INACTIVE);
-        }
+  /**
+   * Makes the race inactive with a timeout event if one of its time limits has run out.
+   *
+   * @return true if the race timed out
+   */
+  public static boolean checkTimeLimits(CurrentRaceStatus currentRaceStatus, long currentTime) {
+    if (!isActiveAndConsistent(currentRaceStatus)) {
+      return false;
+    }
+
+    RaceStatus.Event event = null;
+    if (currentRaceStatus.getStartTime() == null) {
+      if (currentTime - currentRaceStatus.getRaceActivatedTime() >= TIME_LIMIT) {
+        event = RaceStatus.Event.TIME_OUT_NOT_STARTED;
       }
-      if (newState.getFinishTime() == null && newState.getSplitTime() != null) {
-        if (currentTime - newState.getSplitTime() >= TIME_LIMIT) {
-          log.debug(RaceStatus.Event.TIME_OUT_NOT_FINISHED.name());
-          newState.setEvent(RaceStatus.Event.TIME_OUT_NOT_FINISHED);
-          newState.setState(RaceStatus.State.INACTIVE);
-        }
+    }
+    if (currentRaceStatus.getSplitTime() == null && currentRaceStatus.getStartTime() != null) {
+      if (currentTime - currentRaceStatus.getStartTime() >= TIME_LIMIT) {
+        event = RaceStatus.Event.DISQUALIFIED;
       }
-      if (!newState.equals(previousState)) {
-        log.info(newState.toString());
-        repository.save(newState);
-        callbackService.reportStatus(newState);
+    }
+    if (currentRaceStatus.getFinishTime() == null && currentRaceStatus.getSplitTime() != null) {
+      if (currentTime - currentRaceStatus.getSplitTime() >= TIME_LIMIT) {
+        event = RaceStatus.Event.TIME_OUT_NOT_FINISHED;
       }
     }
+    if (event == null) {
+      return false;
+    }
+
+    log.debug(event.name());
+    currentRaceStatus.setEvent(event);
+    currentRaceStatus.setState(RaceStatus.State.INACTIVE);
+    return true;
+  }
+
+  /**
+   * Times out the race in the lane, without overwriting a passage that was applied after the time limits
+   * were checked.
+   *
+   * @return the status of the race if it timed out, otherwise null
+   */
+  private CurrentRaceStatus timeOut(String lane) {
+    long currentTime = raceClock.millis();
+    CurrentRaceStatus timedOut = currentRaceStore.modify(lane,
+      currentRaceStatus -> checkTimeLimits(currentRaceStatus, currentTime) ? currentRaceStatus : null,
+      saved -> passageJournal.recordTimeout(laneService.indexOf(lane), saved.getEvent()));
+    if (timedOut != null) {
+      log.info(timedOut.toString());
+    }
+    return timedOut;
+  }
+
+  /**
+   * Calculates when the earliest of the time limits checked by {@link #checkTimeLimits} runs out.
+   *
+   * @return the deadline in millis or null if the race has no pending transition to time out
+   */
+  public static Long nextDeadline(CurrentRaceStatus currentRaceStatus) {
+    if (!isActiveAndConsistent(currentRaceStatus)) {
+      return null;
+    }
+
+    long deadline = Long.MAX_VALUE;
+    if (currentRaceStatus.getStartTime() == null) {
+      deadline = Math.min(deadline, currentRaceStatus.getRaceActivatedTime() + TIME_LIMIT);
+    }
+    if (currentRaceStatus.getSplitTime() == null && currentRaceStatus.getStartTime() != null) {
+      deadline = Math.min(deadline, currentRaceStatus.getStartTime() + TIME_LIMIT);
+    }
+    if (currentRaceStatus.getFinishTime() == null && currentRaceStatus.getSplitTime() != null) {
+      deadline = Math.min(deadline, currentRaceStatus.getSplitTime() + TIME_LIMIT);
+    }
+    return deadline == Long.MAX_VALUE ? null : deadline;
   }
 
-  private boolean isActiveAndConsistent(CurrentRaceStatus currentRaceStatus) {
+  private static boolean isActiveAndConsistent(CurrentRaceStatus currentRaceStatus) {
     return currentRaceStatus != null && currentRaceStatus.getRaceActivatedTime() != null && currentRaceStatus.getState() == RaceStatus.State.ACTIVE;
   }
 
@@ -0,0 +1,147 @@
+package se.cag.labs.currentrace.udp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary layout of the UDP passage and ack frames. Version 1 frames and all acks have the same fixed size:
+ * <pre>
+ *  0  int   magic "CAGR"
+ *  4  byte  version
+ *  5  byte  type, PASSAGE or ACK
+ *  6  byte  sensor, ordinal of RegisterSensorType
+ *  7  byte  status, only set in acks
+ *  8  long  sequence number, starting at 1 for each sender
+ * 16  long  passage timestamp
+ * </pre>
+ * Version 2 passage frames address any lane and checkpoint and carry what the HTTP API takes besides the
+ * timestamp. They extend version 1 to {@link #EXTENDED_SIZE} bytes, and the sensor byte is that of the journal,
+ * see JournalRecord.sensor, so SPLIT2 and later checkpoints can be given:
+ * <pre>
+ * 24  long  clockEpoch, or RaceState.NOT_SET
+ * 32  long  nanoTime, or RaceState.NOT_SET
+ * 40  byte  lane, index of the lane in LaneService
+ * 41  byte  length of the controllerId, 0 if there is none
+ * 42  22 bytes controllerId, US-ASCII
+ * </pre>
+ * All values are big-endian. The methods use absolute positions and do not allocate.
+ */
+public final class PassageFrame {
+  public static final int SIZE = 24;
+  public static final int EXTENDED_SIZE = 64;
+  public static final int MAX_CONTROLLER_ID = EXTENDED_SIZE - 42;
+  public static final byte VERSION = 1;
+  public static final byte EXTENDED_VERSION = 2;
+  public static final byte TYPE_PASSAGE = 1;
+  public static final byte TYPE_ACK = 2;
+
+  public static final byte STATUS_ACCEPTED = 0;
+  public static final byte STATUS_IGNORED = 1;
+  public static final byte STATUS_ERROR = 2;
+  /**
+   * The frame is older than the last one seen from the sender and was not applied.
+   */
+  public static final byte STATUS_STALE = 3;
+
+  private static final int MAGIC = 0x43414752;
+
+  private PassageFrame() {
+  }
+
+  public static void writePassage(ByteBuffer buffer, byte sensor, long sequence, long timestamp) {
+    write(buffer, TYPE_PASSAGE, sensor, (byte) 0, sequence, timestamp);
+  }
+
+  /**
+   * Writes a version 2 passage frame.
+   *
+   * @param controllerId US-ASCII, at most {@link #MAX_CONTROLLER_ID} characters, or null
+   * @throws IllegalArgumentException if the controllerId is too long
+   */
+  public static void writePassage(ByteBuffer buffer, int lane, byte sensor, String controllerId, long sequence,
+                                  long timestamp, long clockEpoch, long nanoTime) {
+    int length = controllerId == null ? 0 : controllerId.length();
+    if (length > MAX_CONTROLLER_ID) {
+      throw new IllegalArgumentException("controllerId longer than " + MAX_CONTROLLER_ID + ": " + controllerId);
+    }
+    write(buffer, TYPE_PASSAGE, sensor, (byte) 0, sequence, timestamp);
+    buffer.limit(EXTENDED_SIZE);
+    buffer.put(4, EXTENDED_VERSION)
+      .putLong(24, clockEpoch)
+      .putLong(32, nanoTime)
+      .put(40, (byte) lane)
+      .put(41, (byte) length);
+    for (int i = 0; i < MAX_CONTROLLER_ID; i++) {
+      buffer.put(42 + i, i < length ? (byte) controllerId.charAt(i) : 0);
+    }
+  }
+
+  public static void writeAck(ByteBuffer buffer, byte sensor, byte status, long sequence, long timestamp) {
+    write(buffer, TYPE_ACK, sensor, status, sequence, timestamp);
+  }
+
+  /**
+   * @return true if the buffer holds exactly one frame of the given type, of version 1 or, for passages, 2
+   */
+  public static boolean isValid(ByteBuffer buffer, byte type) {
+    if (buffer.remaining() < SIZE || buffer.getInt(0) != MAGIC || buffer.get(5) != type) {
+      return false;
+    }
+    if (buffer.get(4) == VERSION) {
+      return buffer.remaining() == SIZE;
+    }
+    return buffer.get(4) == EXTENDED_VERSION && type == TYPE_PASSAGE && buffer.remaining() == EXTENDED_SIZE
+      && buffer.get(41) >= 0 && buffer.get(41) <= MAX_CONTROLLER_ID;
+  }
+
+  public static byte version(ByteBuffer buffer) {
+    return buffer.get(4);
+  }
+
+  public static byte sensor(ByteBuffer buffer) {
+    return buffer.get(6);
+  }
+
+  public static byte status(ByteBuffer buffer) {
+    return buffer.get(7);
+  }
+
+  public static long sequence(ByteBuffer buffer) {
+    return buffer.getLong(8);
+  }
+
+  public static long timestamp(ByteBuffer buffer) {
+    return buffer.getLong(16);
+  }
+
+  public static long clockEpoch(ByteBuffer buffer) {
+    return buffer.getLong(24);
+  }
+
+  public static long nanoTime(ByteBuffer buffer) {
+    return buffer.getLong(32);
+  }
+
+  public static byte lane(ByteBuffer buffer) {
+    return buffer.get(40);
+  }
+
+  public static int controllerIdLength(ByteBuffer buffer) {
+    return buffer.get(41);
+  }
+
+  public static byte controllerIdByte(ByteBuffer buffer, int index) {
+    return buffer.get(42 + index);
+  }
+
+  private static void write(ByteBuffer buffer, byte type, byte sensor, byte status, long sequence, long timestamp) {
+    buffer.clear();
+    buffer.putInt(0, MAGIC)
+      .put(4, VERSION)
+      .put(5, type)
+      .put(6, sensor)
+      .put(7, status)
+      .putLong(8, sequence)
+      .putLong(16, timestamp);
+    buffer.limit(SIZE);
+  }
+}
@@ -0,0 +1,170 @@
+package se.cag.labs.currentrace.udp;
+
+import se.cag.labs.currentrace.journal.JournalRecord;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends passages to a {@link UdpPassageListener}. Can also be run on its own to load test a listener:
+ * <pre>
+ * java -cp current-race.jar -Dloader.main=se.cag.labs.currentrace.udp.UdpPassageClient \
+ *   org.springframework.boot.loader.PropertiesLauncher localhost 10081 100000 20000
+ * </pre>
+ * The arguments are host, port, number of frames and frames per second (0 for as fast as possible).
+ * The load test sends SPLIT passages, prints how many acks were missing and the round trip times.
+ */
+public class UdpPassageClient implements Closeable {
+  private static final int TIMEOUT = 200;
+  private static final int MAX_ATTEMPTS = 3;
+
+  private final DatagramSocket socket;
+  private final byte[] outBytes = new byte[PassageFrame.EXTENDED_SIZE];
+  private final byte[] inBytes = new byte[PassageFrame.SIZE];
+  private final ByteBuffer out = ByteBuffer.wrap(outBytes);
+  private final ByteBuffer in = ByteBuffer.wrap(inBytes);
+  private long sequence;
+
+  public UdpPassageClient(String host, int port) throws IOException {
+    socket = new DatagramSocket();
+    socket.connect(new InetSocketAddress(host, port));
+    socket.setSoTimeout(TIMEOUT);
+  }
+
+  /**
+   * Sends the passage with the next sequence number.
+   *
+   * @return the status of the ack, one of the PassageFrame.STATUS_ constants
+   */
+  public byte send(RegisterSensorType sensor, long timestamp) throws IOException {
+    return send(++sequence, sensor, timestamp);
+  }
+
+  /**
+   * Sends the passage with the given sequence number, resending it until it is acked.
+   *
+   * @return the status of the ack, one of the PassageFrame.STATUS_ constants
+   * @throws SocketTimeoutException if no ack was received
+   */
+  public byte send(long sequence, RegisterSensorType sensor, long timestamp) throws IOException {
+    this.sequence = sequence;
+    PassageFrame.writePassage(out, (byte) sensor.ordinal(), sequence, timestamp);
+    return sendUntilAcked(sequence);
+  }
+
+  /**
+   * Sends a passage in any lane as a version 2 frame with the next sequence number.
+   *
+   * @param lane         the index of the lane in currentrace.lanes, the default lane is 0
+   * @param checkpoint   1 to the number of checkpoints for SPLIT, ignored for START and FINISH
+   * @param controllerId the sensorId the sensor controller syncs its clock with, or null
+   * @param clockEpoch   identifies the sensor clock, RaceState.NOT_SET if the sensor has none
+   * @param nanoTime     the monotonic sensor clock at the passage, RaceState.NOT_SET if the sensor has none
+   * @return the status of the ack, one of the PassageFrame.STATUS_ constants
+   */
+  public byte send(int lane, RegisterSensorType sensor, int checkpoint, String controllerId, long timestamp,
+                   long clockEpoch, long nanoTime) throws IOException {
+    PassageFrame.writePassage(out, lane, JournalRecord.sensor(sensor, checkpoint), controllerId, ++sequence,
+      timestamp, clockEpoch, nanoTime);
+    return sendUntilAcked(sequence);
+  }
+
+  private byte sendUntilAcked(long sequence) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      socket.send(new DatagramPacket(outBytes, out.limit()));
+      try {
+        while (true) {
+          long ackSequence = receiveAck();
+          if (ackSequence == sequence) {
+            return PassageFrame.status(in);
+          }
+        }
+      } catch (SocketTimeoutException e) {
+        if (attempt >= MAX_ATTEMPTS) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    socket.close();
+  }
+
+  private long receiveAck() throws IOException {
+    DatagramPacket packet = new DatagramPacket(inBytes, inBytes.length);
+    while (true) {
+      socket.receive(packet);
+      in.clear().limit(packet.getLength());
+      if (PassageFrame.isValid(in, PassageFrame.TYPE_ACK)) {
+        return PassageFrame.sequence(in);
+      }
+    }
+  }
+
+  /**
+   * Sends count frames without waiting for acks while a second thread collects the acks.
+   */
+  private void loadTest(int count, int rate) throws IOException, InterruptedException {
+    long[] sent = new long[count + 1];
+    long[] roundTrips = new long[count + 1];
+    Thread receiver = new Thread(() -> {
+      try {
+        for (int acked = 0; acked < count; acked++) {
+          long ackSequence = receiveAck();
+          if (ackSequence > 0 && ackSequence <= count && roundTrips[(int) ackSequence] == 0) {
+            roundTrips[(int) ackSequence] = System.nanoTime() - sent[(int) ackSequence];
+          }
+        }
+      } catch (IOException ignored) {
+        // Timed out waiting for the remaining acks
+      }
+    }, "UdpPassageClientReceiver");
+    receiver.start();
+
+    long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+    long start = System.nanoTime();
+    for (int i = 1; i <= count; i++) {
+      long due = start + i * interval;
+      while (System.nanoTime() < due) {
+        Thread.yield();
+      }
+      PassageFrame.writePassage(out, (byte) RegisterSensorType.SPLIT.ordinal(), i, System.currentTimeMillis());
+      sent[i] = System.nanoTime();
+      socket.send(new DatagramPacket(outBytes, PassageFrame.SIZE));
+    }
+    long elapsed = System.nanoTime() - start;
+    receiver.join();
+
+    long[] acked = Arrays.stream(roundTrips, 1, count + 1).filter(rtt -> rtt > 0).sorted().toArray();
+    System.out.printf("Sent %d frames in %d ms, %d acks missing%n",
+      count, TimeUnit.NANOSECONDS.toMillis(elapsed), count - acked.length);
+    if (acked.length > 0) {
+      System.out.printf("Round trip us: p50=%d p99=%d p99.9=%d max=%d%n",
+        percentile(acked, 0.5), percentile(acked, 0.99), percentile(acked, 0.999), acked[acked.length - 1] / 1000);
+    }
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * percentile))] / 1000;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 10081;
+    int count = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    int rate = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+    try (UdpPassageClient client = new UdpPassageClient(host, port)) {
+      client.loadTest(count, rate);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package se.cag.labs.currentrace.udp;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import se.cag.labs.currentrace.journal.JournalRecord;
+import se.cag.labs.currentrace.services.LaneService;
+import se.cag.labs.currentrace.services.PassageDetectedService;
+import se.cag.labs.currentrace.services.sensors.Course;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+import se.cag.labs.currentrace.services.sensors.SensorMapping;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives passages as fixed-size binary UDP frames, see {@link PassageFrame}, and feeds them to the same
+ * {@link PassageDetectedService} as the HTTP API. Every frame is answered with an ack carrying the result.
+ * Version 1 frames only reach START, SPLIT and FINISH of the default lane. Version 2 frames give the lane and
+ * checkpoint like the journal does, and the controllerId and sensor clock of the passage.
+ * <br>
+ * Senders number their frames from 1. A frame with the same sequence number as the previous one is a
+ * retransmission and gets the previous result again without being applied twice. Gaps in the sequence are
+ * counted as lost frames, frames arriving after a newer one are answered as stale. Sequence number 1 starts
+ * over, so a restarted sender is not taken for a stale one.
+ * <br>
+ * Only enabled when currentrace.udp.enabled=true.
+ */
+@Component
+@ConditionalOnProperty(name = "currentrace.udp.enabled", havingValue = "true")
+@Log4j
+public class UdpPassageListener implements PublicMetrics {
+  private static final long SELECT_TIMEOUT = 1000;
+  private static final int MAX_SENDERS = 1024;
+
+  @Value("${currentrace.udp.host:0.0.0.0}")
+  private String host;
+  @Value("${currentrace.udp.port:10081}")
+  private int port;
+  @Autowired
+  private PassageDetectedService passageDetectedService;
+  @Autowired
+  private LaneService laneService;
+
+  private final ByteBuffer in = ByteBuffer.allocateDirect(PassageFrame.EXTENDED_SIZE + 1);
+  private final ByteBuffer out = ByteBuffer.allocateDirect(PassageFrame.SIZE);
+  // By lane index and sensor byte
+  private SensorMapping[][] sensors;
+  private final Map<SocketAddress, Sender> senders = new HashMap<>();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong malformed = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+  private final AtomicLong lost = new AtomicLong();
+  private final AtomicLong acksDropped = new AtomicLong();
+
+  private DatagramChannel channel;
+  private Selector selector;
+  private Thread thread;
+  private volatile boolean running;
+
+  @PostConstruct
+  public void start() throws IOException {
+    sensors = new SensorMapping[laneService.getLanes().size()][Course.MAX_CHECKPOINTS + 2];
+    for (SensorMapping mapping : laneService.getSensors()) {
+      sensors[mapping.getLaneIndex()][JournalRecord.sensor(mapping.getType(), mapping.getCheckpoint())] = mapping;
+    }
+
+    selector = Selector.open();
+    channel = DatagramChannel.open();
+    channel.bind(new InetSocketAddress(host, port));
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ);
+
+    running = true;
+    thread = new Thread(this::run, "UdpPassageListener");
+    thread.setDaemon(true);
+    thread.start();
+    log.info("Listening for UDP passages on " + channel.getLocalAddress());
+  }
+
+  @PreDestroy
+  public void stop() throws IOException, InterruptedException {
+    running = false;
+    selector.wakeup();
+    thread.join(SELECT_TIMEOUT);
+    selector.close();
+    channel.close();
+  }
+
+  public int getLocalPort() throws IOException {
+    return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+  }
+
+  private void run() {
+    while (running) {
+      try {
+        if (selector.select(SELECT_TIMEOUT) > 0) {
+          selector.selectedKeys().clear();
+          receiveAll();
+        }
+      } catch (IOException | RuntimeException e) {
+        log.error("UDP receive failed: " + e.getLocalizedMessage(), e);
+      }
+    }
+  }
+
+  private void receiveAll() throws IOException {
+    SocketAddress address;
+    in.clear();
+    while ((address = channel.receive(in)) != null) {
+      in.flip();
+      received.incrementAndGet();
+      if (PassageFrame.isValid(in, PassageFrame.TYPE_PASSAGE)) {
+        handle(address);
+      } else {
+        malformed.incrementAndGet();
+      }
+      in.clear();
+    }
+  }
+
+  private void handle(SocketAddress address) throws IOException {
+    byte sensor = PassageFrame.sensor(in);
+    long sequence = PassageFrame.sequence(in);
+    long timestamp = PassageFrame.timestamp(in);
+    Sender sender = senders.get(address);
+    if (sender != null && sequence == sender.lastSequence) {
+      duplicates.incrementAndGet();
+      ack(address, sensor, sender.lastStatus, sequence, timestamp);
+      return;
+    } else if (sender == null || sequence == 1) {
+      if (senders.size() >= MAX_SENDERS) {
+        senders.clear();
+      }
+      sender = new Sender();
+      senders.put(address, sender);
+    } else if (sequence < sender.lastSequence) {
+      stale.incrementAndGet();
+      ack(address, sensor, PassageFrame.STATUS_STALE, sequence, timestamp);
+      return;
+    } else if (sequence > sender.lastSequence + 1) {
+      lost.addAndGet(sequence - sender.lastSequence - 1);
+    }
+
+    byte status = PassageFrame.version(in) == PassageFrame.VERSION
+      ? apply(sensor, timestamp)
+      : applyExtended(sender, sensor, timestamp);
+    sender.lastSequence = sequence;
+    sender.lastStatus = status;
+    ack(address, sensor, status, sequence, timestamp);
+  }
+
+  private byte apply(byte sensor, long timestamp) {
+    RegisterSensorType[] types = RegisterSensorType.values();
+    if (sensor < 0 || sensor >= types.length) {
+      return PassageFrame.STATUS_ERROR;
+    }
+    return toStatus(passageDetectedService.passageDetected(types[sensor].getId(), timestamp));
+  }
+
+  private byte applyExtended(Sender sender, byte sensor, long timestamp) {
+    int lane = PassageFrame.lane(in);
+    if (lane < 0 || lane >= sensors.length || sensor < 0 || sensor >= sensors[lane].length
+      || sensors[lane][sensor] == null) {
+      return PassageFrame.STATUS_ERROR;
+    }
+    SensorMapping mapping = sensors[lane][sensor];
+    return toStatus(passageDetectedService.passageDetected(mapping.getSensorID(), mapping.getLane(),
+      sender.controllerId(in), timestamp, PassageFrame.clockEpoch(in), PassageFrame.nanoTime(in)));
+  }
+
+  private static byte toStatus(PassageDetectedService.ReturnStatus result) {
+    switch (result) {
+      case ACCEPTED:
+        return PassageFrame.STATUS_ACCEPTED;
+      case IGNORED:
+        return PassageFrame.STATUS_IGNORED;
+      default:
+        return PassageFrame.STATUS_ERROR;
+    }
+  }
+
+  private void ack(SocketAddress address, byte sensor, byte status, long sequence, long timestamp) throws IOException {
+    PassageFrame.writeAck(out, sensor, status, sequence, timestamp);
+    if (channel.send(out, address) == 0) {
+      acksDropped.incrementAndGet();
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("currentrace.udp.received", received.get()));
+    metrics.add(new Metric<>("currentrace.udp.malformed", malformed.get()));
+    metrics.add(new Metric<>("currentrace.udp.duplicates", duplicates.get()));
+    metrics.add(new Metric<>("currentrace.udp.stale", stale.get()));
+    metrics.add(new Metric<>("currentrace.udp.lost", lost.get()));
+    metrics.add(new Metric<>("currentrace.udp.acks.dropped", acksDropped.get()));
+    return metrics;
+  }
+
+  private static final class Sender {
+    private final byte[] controllerIdBytes = new byte[PassageFrame.MAX_CONTROLLER_ID];
+    private int controllerIdLength;
+    private String controllerId;
+    private long lastSequence;
+    private byte lastStatus;
+
+    /**
+     * @return the controllerId of the frame, only making a new String when it differs from the previous one
+     */
+    String controllerId(ByteBuffer frame) {
+      int length = PassageFrame.controllerIdLength(frame);
+      boolean same = length == controllerIdLength;
+      for (int i = 0; i < length && same; i++) {
+        same = controllerIdBytes[i] == PassageFrame.controllerIdByte(frame, i);
+      }
+      if (!same) {
+        for (int i = 0; i < length; i++) {
+          controllerIdBytes[i] = PassageFrame.controllerIdByte(frame, i);
+        }
+        controllerIdLength = length;
+        controllerId = length == 0 ? null : new String(controllerIdBytes, 0, length, StandardCharsets.US_ASCII);
+      }
+      return controllerId;
+    }
+  }
+}
@@ -34,6 +34,7 @@ import se.cag.labs.currentrace.CurrentRaceApplication;
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
 import se.cag.labs.currentrace.apicontroller.apimodel.User;
 import se.cag.labs.currentrace.services.CallbackService;
+import se.cag.labs.currentrace.services.CurrentRaceStore;
 import se.cag.labs.currentrace.services.UserManagerService;
 import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
@@ -47,8 +48,9 @@ import static com.lordofthejars.nosqlunit.mongodb.MongoDbConfigurationBuilder.mo
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -60,6 +62,8 @@ import static org.mockito.Mockito.verify;
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_CLASS)
 @ActiveProfiles("int-test")
 public class CurrentRaceControllerIT {
+  private static final long CALLBACK_TIMEOUT = 5000;
+
   @Rule
   public MongoDbRule mongoDbRule = new MongoDbRule(mongoDb().databaseName("test").build());
   @Autowired
@@ -67,6 +71,8 @@ public class CurrentRaceControllerIT {
   @Autowired
   private CurrentRaceRepository repository;
   @Autowired
+  private CurrentRaceStore currentRaceStore;
+  @Autowired
   private CallbackService callbackService; // This is a singleton and is the same instance as injected into application services
   @Autowired
   private UserManagerService userManagerService; // This is a singleton and is the same instance as injected into application services
@@ -83,7 +89,9 @@ public class CurrentRaceControllerIT {
     MockitoAnnotations.initMocks(this);
     ReflectionTestUtils.setField(callbackService, "restTemplate", restTemplateMock);
     ReflectionTestUtils.setField(userManagerService, "restTemplate", restTemplateMock);
+    currentRaceStore.flush();
     repository.deleteAll();
+    currentRaceStore.rehydrate();
     callbackUrl = "http://localhost:" + port + "/onracestatusupdate";
     RestAssured.port = port;
   }
@@ -99,6 +107,7 @@ public class CurrentRaceControllerIT {
       when().post(CurrentRaceController.START_RACE_URL).
       then().statusCode(HttpStatus.ACCEPTED.value());
 
+    currentRaceStore.flush();
     CurrentRaceStatus currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
 
     assertNotNull(currentRaceStatus);
@@ -110,6 +119,7 @@ public class CurrentRaceControllerIT {
     CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     given().param("callbackUrl", "asd").
       when().post(CurrentRaceController.START_RACE_URL).
@@ -127,13 +137,15 @@ public class CurrentRaceControllerIT {
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     currentRaceStatus.setCallbackUrl(callbackUrl);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     when().post(CurrentRaceController.CANCEL_RACE_URL).
       then().statusCode(HttpStatus.ACCEPTED.value());
 
+    currentRaceStore.flush();
     currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
 
-    verify(restTemplateMock, atLeastOnce()).postForLocation(
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).atLeastOnce()).postForLocation(
       "http://localhost:" + port + "/onracestatusupdate",
       RaceStatus.builder().state(RaceStatus.State.INACTIVE).build());
 
@@ -157,6 +169,7 @@ public class CurrentRaceControllerIT {
     CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     when().get(CurrentRaceController.STATUS_URL).
       then().statusCode(HttpStatus.OK.value()).
@@ -179,18 +192,22 @@ public class CurrentRaceControllerIT {
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     currentRaceStatus.setCallbackUrl(callbackUrl);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     given().param("sensorID", "START").param("timestamp", 1234).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(1)).postForLocation(eq(callbackUrl), any(RaceStatus.class));
     given().param("sensorID", "SPLIT").param("timestamp", 12345).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(2)).postForLocation(eq(callbackUrl), any(RaceStatus.class));
     given().param("sensorID", "FINISH").param("timestamp", 123456).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
 
+    currentRaceStore.flush();
     currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
 
     ArgumentCaptor<RaceStatus> raceStatusArgumentCaptor = ArgumentCaptor.forClass(RaceStatus.class);
-    verify(restTemplateMock, times(3)).postForLocation(
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(3)).postForLocation(
       eq("http://localhost:" + port + "/onracestatusupdate"),
       raceStatusArgumentCaptor.capture());
 
@@ -224,6 +241,7 @@ public class CurrentRaceControllerIT {
     CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     given().param("sensorID", "FAULTY").param("timestamp", 1234)
       .when().post(CurrentRaceController.PASSAGE_DETECTED_URL)
@@ -236,14 +254,16 @@ public class CurrentRaceControllerIT {
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     currentRaceStatus.setCallbackUrl(callbackUrl);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     given().param("sensorID", "SPLIT").param("timestamp", 1234).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
     given().param("sensorID", "SPLIT").param("timestamp", 12345).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ALREADY_REPORTED.value());
 
+    currentRaceStore.flush();
     currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
-    verify(restTemplateMock, times(1)).postForLocation(
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(1)).postForLocation(
       "http://localhost:" + port + "/onracestatusupdate",
       RaceStatus.builder()
         .event(RaceStatus.Event.SPLIT)
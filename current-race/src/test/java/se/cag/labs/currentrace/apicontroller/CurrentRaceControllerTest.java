@@ -32,19 +32,36 @@ import se.cag.labs.currentrace.CurrentRaceApplication;
 import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
 import se.cag.labs.currentrace.apicontroller.apimodel.User;
 import se.cag.labs.currentrace.services.CallbackService;
+import se.cag.labs.currentrace.services.CurrentRaceStore;
+import se.cag.labs.currentrace.services.DebounceService;
 import se.cag.labs.currentrace.services.UserManagerService;
 import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
 import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static com.jayway.restassured.RestAssured.given;
 import static com.jayway.restassured.RestAssured.when;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -56,11 +73,17 @@ import static org.mockito.Mockito.verify;
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_CLASS)
 @ActiveProfiles("test")
 public class CurrentRaceControllerTest {
+  private static final long CALLBACK_TIMEOUT = 5000;
+
   @Autowired
   private ApplicationContext applicationContext; //Needed by nosqlunit
   @Autowired
   private CurrentRaceRepository repository;
   @Autowired
+  private CurrentRaceStore currentRaceStore;
+  @Autowired
+  private DebounceService debounceService;
+  @Autowired
   private CallbackService callbackService; // This is a singleton and is the same instance as injected into application services
   @Autowired
   private UserManagerService userManagerService; // This is a singleton and is the same instance as injected into application services
@@ -78,7 +101,10 @@ public class CurrentRaceControllerTest {
     MockitoAnnotations.initMocks(this);
     ReflectionTestUtils.setField(callbackService, "restTemplate", restTemplateMock);
     ReflectionTestUtils.setField(userManagerService, "restTemplate", restTemplateMock);
+    currentRaceStore.flush();
     repository.deleteAll();
+    currentRaceStore.rehydrate();
+    debounceService.reset();
     callbackUrl = "http://localhost:" + port + "/onracestatusupdate";
     RestAssured.port = port;
   }
@@ -94,6 +120,7 @@ public class CurrentRaceControllerTest {
       when().post(CurrentRaceController.START_RACE_URL).
       then().statusCode(HttpStatus.ACCEPTED.value());
 
+    currentRaceStore.flush();
     CurrentRaceStatus currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
 
     assertNotNull(currentRaceStatus);
@@ -105,6 +132,7 @@ public class CurrentRaceControllerTest {
     CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     given().param("callbackUrl", "asd").
       when().post(CurrentRaceController.START_RACE_URL).
@@ -122,13 +150,15 @@ public class CurrentRaceControllerTest {
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     currentRaceStatus.setCallbackUrl(callbackUrl);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     when().post(CurrentRaceController.CANCEL_RACE_URL).
       then().statusCode(HttpStatus.ACCEPTED.value());
 
+    currentRaceStore.flush();
     currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
 
-    verify(restTemplateMock, atLeastOnce()).postForLocation(
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).atLeastOnce()).postForLocation(
       "http://localhost:" + port + "/onracestatusupdate",
       RaceStatus.builder().state(RaceStatus.State.INACTIVE).build());
 
@@ -152,6 +182,7 @@ public class CurrentRaceControllerTest {
     CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     when().get(CurrentRaceController.STATUS_URL).
       then().statusCode(HttpStatus.OK.value()).
@@ -174,19 +205,23 @@ public class CurrentRaceControllerTest {
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     currentRaceStatus.setCallbackUrl(callbackUrl);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     assertEquals(1, repository.findAll().size());
     given().param("sensorID", "START").param("timestamp", 1234).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(1)).postForLocation(eq(callbackUrl), any(RaceStatus.class));
     given().param("sensorID", "SPLIT").param("timestamp", 12345).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(2)).postForLocation(eq(callbackUrl), any(RaceStatus.class));
     given().param("sensorID", "FINISH").param("timestamp", 123456).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
 
+    currentRaceStore.flush();
     currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
 
     ArgumentCaptor<RaceStatus> raceStatusArgumentCaptor = ArgumentCaptor.forClass(RaceStatus.class);
-    verify(restTemplateMock, times(3)).postForLocation(
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(3)).postForLocation(
       eq("http://localhost:" + port + "/onracestatusupdate"),
       raceStatusArgumentCaptor.capture());
 
@@ -206,8 +241,11 @@ public class CurrentRaceControllerTest {
     assertEquals(Long.valueOf(12345), capturedStatuses.get(2).getSplitTime());
     assertEquals(Long.valueOf(123456), capturedStatuses.get(2).getFinishTime());
     assertEquals(RaceStatus.State.INACTIVE, capturedStatuses.get(2).getState());
+    assertArrayEquals(new long[]{12345, 123456}, capturedStatuses.get(2).getPassageTimes());
+    assertArrayEquals(new long[]{11111, 111111}, capturedStatuses.get(2).getSectorTimes());
 
     assertNotNull(currentRaceStatus);
+    assertEquals(1, repository.findAll().size());
     assertEquals(Long.valueOf(1234), currentRaceStatus.getStartTime());
     assertEquals(Long.valueOf(12345), currentRaceStatus.getSplitTime());
     assertEquals(Long.valueOf(123456), currentRaceStatus.getFinishTime());
@@ -217,11 +255,65 @@ public class CurrentRaceControllerTest {
     assertTrue(capturedStatuses.get(1).getCurrentTime() < capturedStatuses.get(2).getCurrentTime());
   }
 
+  @Test
+  public void passagesOnTheSensorClockHaveMicrosecondTimes() {
+    CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
+    currentRaceStatus.setState(RaceStatus.State.ACTIVE);
+    repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
+
+    given().param("sensorID", "START").param("timestamp", 1234).param("clockEpoch", 5).param("nanoTime", 1_000_000_000L).
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    given().param("sensorID", "SPLIT").param("timestamp", 12345).param("clockEpoch", 5).param("nanoTime", 1_011_111_500L).
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    given().param("sensorID", "FINISH").param("timestamp", 123456).param("clockEpoch", 5).param("nanoTime", 1_123_456_250L).
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+
+    when().get(CurrentRaceController.STATUS_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("event", is(RaceStatus.Event.FINISH.name())).
+      body("elapsedMicros", is(Arrays.asList(11111, 123456))).
+      body("sectorTimes", is(Arrays.asList(11111, 111111)));
+  }
+
+  @Test
+  public void endedRaceIsArchived() {
+    long from = System.currentTimeMillis();
+    CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
+    currentRaceStatus.setRaceId("2");
+    currentRaceStatus.setState(RaceStatus.State.ACTIVE);
+    repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
+
+    given().param("sensorID", "START").param("timestamp", 1234).param("lane", "2").
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    given().param("sensorID", "SPLIT").param("timestamp", 12345).param("lane", "2").
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    given().param("sensorID", "FINISH").param("timestamp", 123456).param("lane", "2").
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    currentRaceStore.flush();
+
+    given().param("from", from).param("lane", "2").
+      when().get(ArchiveController.ARCHIVED_RACES_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("size()", is(1)).
+      body("[0].event", is(RaceStatus.Event.FINISH.name())).
+      body("[0].passageTimes", is(Arrays.asList(12345, 123456)));
+    given().param("from", from).param("sensorID", "FINISH").
+      when().get(ArchiveController.ARCHIVED_PASSAGES_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("elapsed", is(Collections.singletonList(122222)));
+    given().param("sensorID", "FAULTY").
+      when().get(ArchiveController.ARCHIVED_PASSAGES_URL).
+      then().statusCode(HttpStatus.EXPECTATION_FAILED.value());
+  }
+
   @Test
   public void canNotUpdatePassageTime_WithFaultySensorID() {
     CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     given().param("sensorID", "FAULTY").param("timestamp", 1234).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.EXPECTATION_FAILED.value());
@@ -233,24 +325,185 @@ public class CurrentRaceControllerTest {
     currentRaceStatus.setState(RaceStatus.State.ACTIVE);
     currentRaceStatus.setCallbackUrl(callbackUrl);
     repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
 
     given().param("sensorID", "SPLIT").param("timestamp", 1234).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
     given().param("sensorID", "SPLIT").param("timestamp", 12345).
       when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ALREADY_REPORTED.value());
 
+    currentRaceStore.flush();
     currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
-    verify(restTemplateMock, times(1)).postForLocation(
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(1)).postForLocation(
       "http://localhost:" + port + "/onracestatusupdate",
       RaceStatus.builder()
         .event(RaceStatus.Event.SPLIT)
         .splitTime(1234L)
+        .passageTimes(new long[]{1234L})
         .state(RaceStatus.State.ACTIVE)
         .build());
     assertNotNull(currentRaceStatus);
     assertEquals(Long.valueOf(1234L), currentRaceStatus.getSplitTime());
   }
 
+  @Test
+  public void canUpdatePassageTimesInBatch() {
+    CurrentRaceStatus currentRaceStatus = new CurrentRaceStatus();
+    currentRaceStatus.setState(RaceStatus.State.ACTIVE);
+    currentRaceStatus.setCallbackUrl(callbackUrl);
+    repository.save(currentRaceStatus);
+    currentRaceStore.rehydrate();
+
+    given().contentType("application/json").
+      body("[{\"sensorID\":\"FINISH\",\"timestamp\":123456}," +
+        "{\"sensorID\":\"FAULTY\",\"timestamp\":1}," +
+        "{\"sensorID\":\"START\",\"timestamp\":1234}," +
+        "{\"sensorID\":\"SPLIT\",\"timestamp\":12345}," +
+        "{\"sensorID\":\"SPLIT\",\"timestamp\":12346}]").
+      when().post(CurrentRaceController.PASSAGES_DETECTED_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("status", is(Arrays.asList("ACCEPTED", "ERROR", "ACCEPTED", "ACCEPTED", "IGNORED"))).
+      body("sensorID[0]", is("FINISH"));
+
+    currentRaceStore.flush();
+    currentRaceStatus = repository.findByRaceId(CurrentRaceStatus.ID);
+
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).times(1)).postForLocation(
+      eq(callbackUrl),
+      argThat(allOf(
+        hasProperty("event", is(RaceStatus.Event.FINISH)),
+        hasProperty("finishTime", is(123456L)),
+        hasProperty("state", is(RaceStatus.State.INACTIVE)))));
+    assertNotNull(currentRaceStatus);
+    assertEquals(1, repository.findAll().size());
+    assertEquals(Long.valueOf(1234), currentRaceStatus.getStartTime());
+    assertEquals(Long.valueOf(12345), currentRaceStatus.getSplitTime());
+    assertEquals(Long.valueOf(123456), currentRaceStatus.getFinishTime());
+    assertEquals(RaceStatus.State.INACTIVE, currentRaceStatus.getState());
+  }
+
+  @Test
+  public void lanesRunIndependentRaces() {
+    given().param("callbackUrl", callbackUrl).
+      when().post(CurrentRaceController.START_RACE_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    given().param("callbackUrl", callbackUrl).param("lane", "2").
+      when().post(CurrentRaceController.START_RACE_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    given().param("callbackUrl", callbackUrl).param("lane", "3").
+      when().post(CurrentRaceController.START_RACE_URL).then().statusCode(HttpStatus.NOT_FOUND.value());
+
+    given().param("sensorID", "START").param("timestamp", 1234).param("lane", "2").
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    given().param("sensorID", "START").param("timestamp", 1234).param("lane", "3").
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.EXPECTATION_FAILED.value());
+    given().param("lane", "2").
+      when().post(CurrentRaceController.CANCEL_RACE_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+
+    when().get(CurrentRaceController.STATUS_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("state", is(RaceStatus.State.ACTIVE.name())).
+      body("startTime", is((Object) null));
+    given().param("lane", "2").
+      when().get(CurrentRaceController.STATUS_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("state", is(RaceStatus.State.INACTIVE.name())).
+      body("lane", is("2"));
+    when().get(CurrentRaceController.LANES_STATUS_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("state", is(Arrays.asList(RaceStatus.State.ACTIVE.name(), RaceStatus.State.INACTIVE.name())));
+
+    verify(restTemplateMock, timeout(CALLBACK_TIMEOUT).atLeastOnce()).postForLocation(
+      eq(callbackUrl),
+      argThat(allOf(
+        hasProperty("state", is(RaceStatus.State.INACTIVE)),
+        hasProperty("lane", is("2")))));
+    currentRaceStore.flush();
+    assertEquals(2, repository.findAll().size());
+    assertEquals(RaceStatus.State.ACTIVE, repository.findByRaceId(CurrentRaceStatus.ID).getState());
+    assertEquals(RaceStatus.State.INACTIVE, repository.findByRaceId("2").getState());
+  }
+
+  @Test
+  public void statusStreamPushesChangesOfTheLane() throws Exception {
+    given().param("lane", "3").
+      when().get(CurrentRaceController.STATUS_STREAM_URL).then().statusCode(HttpStatus.NOT_FOUND.value());
+
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port
+      + CurrentRaceController.STATUS_STREAM_URL + "?lane=2").openConnection();
+    connection.setReadTimeout((int) CALLBACK_TIMEOUT);
+    BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+    Thread reader = new Thread(() -> {
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          lines.add(line);
+        }
+      } catch (IOException e) {
+        // Stream closed
+      }
+    });
+    reader.start();
+    try {
+      assertEquals("event:status", awaitLine(lines, "event:"));
+      assertTrue(awaitLine(lines, "data:").contains("\"state\":\"INACTIVE\""));
+
+      given().param("callbackUrl", callbackUrl).
+        when().post(CurrentRaceController.START_RACE_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+      given().param("callbackUrl", callbackUrl).param("lane", "2").
+        when().post(CurrentRaceController.START_RACE_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+      given().param("sensorID", "START").param("timestamp", System.currentTimeMillis()).param("lane", "2").
+        when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+
+      String started = awaitLine(lines, "data:");
+      assertTrue(started, started.contains("\"state\":\"ACTIVE\"") && started.contains("\"lane\":\"2\""));
+      String passed = awaitLine(lines, "data:");
+      assertTrue(passed, passed.contains("\"event\":\"START\"") && passed.contains("\"lane\":\"2\""));
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  @Test
+  public void statusWaitsForTheNextChange() throws Exception {
+    given().param("sinceVersion", 0).param("waitMs", 100).
+      when().get(CurrentRaceController.STATUS_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("state", is(RaceStatus.State.INACTIVE.name())).
+      body("version", is((Object) null));
+
+    given().param("callbackUrl", callbackUrl).
+      when().post(CurrentRaceController.START_RACE_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+    long version = when().get(CurrentRaceController.STATUS_URL).then().extract().jsonPath().getLong("version");
+
+    CompletableFuture<RaceStatus> changed = CompletableFuture.supplyAsync(() -> given().
+      param("sinceVersion", version).param("waitMs", CALLBACK_TIMEOUT).
+      when().get(CurrentRaceController.STATUS_URL).
+      then().statusCode(HttpStatus.OK.value()).extract().as(RaceStatus.class));
+    Thread.sleep(200);
+    assertFalse(changed.isDone());
+    given().param("sensorID", "START").param("timestamp", System.currentTimeMillis()).
+      when().post(CurrentRaceController.PASSAGE_DETECTED_URL).then().statusCode(HttpStatus.ACCEPTED.value());
+
+    RaceStatus raceStatus = changed.get(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+    assertEquals(RaceStatus.Event.START, raceStatus.getEvent());
+    assertNotEquals(Long.valueOf(version), raceStatus.getVersion());
+
+    given().param("sinceVersion", version).
+      when().get(CurrentRaceController.STATUS_URL).
+      then().statusCode(HttpStatus.OK.value()).
+      body("event", is(RaceStatus.Event.START.name()));
+    given().param("sinceVersion", 0).param("lane", "3").
+      when().get(CurrentRaceController.STATUS_URL).then().statusCode(HttpStatus.NOT_FOUND.value());
+  }
+
+  private static String awaitLine(BlockingQueue<String> lines, String prefix) throws InterruptedException {
+    String line;
+    do {
+      line = lines.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+      assertNotNull("No line starting with " + prefix, line);
+    } while (!line.startsWith(prefix));
+    return line;
+  }
+
   @Test
   public void getUsersFromExternalService() {
     ResponseEntity<List<User>> responseEntity = new ResponseEntity<>(Collections.singletonList(User.builder().name("nisse").build()), HttpStatus.OK);
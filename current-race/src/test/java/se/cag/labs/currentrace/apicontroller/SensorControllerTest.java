@@ -2,6 +2,7 @@ package se.cag.labs.currentrace.apicontroller;
 
 import com.jayway.restassured.RestAssured;
 import com.jayway.restassured.http.ContentType;
+import com.jayway.restassured.path.json.JsonPath;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -14,7 +15,10 @@ import org.springframework.http.HttpStatus;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import se.cag.labs.currentrace.CurrentRaceApplication;
+import se.cag.labs.currentrace.apicontroller.apimodel.TimeSyncResponse;
+import se.cag.labs.currentrace.services.SensorService;
 import se.cag.labs.currentrace.services.repository.SensorRepository;
 import se.cag.labs.currentrace.services.repository.datamodel.SensorModel;
 
@@ -33,6 +37,8 @@ public class SensorControllerTest {
   private ApplicationContext applicationContext; //Needed by nosqlunit
   @Autowired
   private SensorRepository repository;
+  @Autowired
+  private SensorService sensorService;
 
   @Value("${local.server.port}")
   private int port;
@@ -41,6 +47,7 @@ public class SensorControllerTest {
   public void setup() {
     MockitoAnnotations.initMocks(this);
     repository.deleteAll();
+    sensorService.rehydrate();
     RestAssured.port = port;
   }
 
@@ -112,4 +119,77 @@ public class SensorControllerTest {
 
     assertTrue(repository.findBySensorId("pi1").isEmpty());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void heartbeatsStayInMemoryUntilSnapshot() throws InterruptedException {
+    String bodyAsString = "{\"sensorId\": \"pi1\",\"sensorIpAddress\": \"10.0.0.1\"}";
+    given().body(bodyAsString).with().contentType(ContentType.JSON)
+      .when().post(SensorController.REGISTER_SENSOR_URL)
+      .then().statusCode(HttpStatus.ACCEPTED.value());
+    long registered = repository.findOne("pi1").getRegisteredTimestamp();
+
+    Thread.sleep(5);
+    given().body(bodyAsString).with().contentType(ContentType.JSON)
+      .when().post(SensorController.REGISTER_SENSOR_URL)
+      .then().statusCode(HttpStatus.ACCEPTED.value());
+    assertEquals(registered, repository.findOne("pi1").getRegisteredTimestamp().longValue());
+
+    JsonPath sensors = given().when().get(SensorController.SHOW_REGISTERED_SENSORS_URL).jsonPath();
+    assertEquals(2, sensors.getLong("[0].heartbeats"));
+    assertTrue(sensors.getBoolean("[0].alive"));
+
+    sensorService.snapshot();
+    assertTrue(repository.findOne("pi1").getRegisteredTimestamp() > registered);
+    assertEquals(1, repository.count());
+
+    ReflectionTestUtils.setField(sensorService, "ttl", -1000L);
+    try {
+      given().when().delete(SensorController.SHOW_REGISTERED_SENSORS_URL)
+        .then().statusCode(HttpStatus.OK.value());
+    } finally {
+      ReflectionTestUtils.setField(sensorService, "ttl", 60 * 60 * 1000L);
+    }
+    assertTrue(given().when().get(SensorController.SHOW_REGISTERED_SENSORS_URL).jsonPath().getList("").isEmpty());
+    sensorService.snapshot();
+    assertEquals(0, repository.count());
+  }
+
+  @Test
+  public void timeSyncEstimatesTheOffsetOfTheSensorClock() {
+    long behind = 5000;
+    given()
+      .body("{\"sensorId\": \"pi1\",\"sensorIpAddress\": \"10.0.0.1\"}").with().contentType(ContentType.JSON)
+      .when()
+      .post(SensorController.REGISTER_SENSOR_URL)
+      .then()
+      .statusCode(HttpStatus.ACCEPTED.value());
+
+    long originateTime = System.currentTimeMillis() - behind;
+    TimeSyncResponse response = given()
+      .body("{\"sensorId\": \"pi1\",\"originateTime\": " + originateTime + "}").with().contentType(ContentType.JSON)
+      .when()
+      .post(SensorController.TIME_SYNC_URL)
+      .as(TimeSyncResponse.class);
+    long destinationTime = System.currentTimeMillis() - behind;
+    assertEquals(originateTime, response.getOriginateTime());
+    assertTrue(response.getReceiveTime() <= response.getTransmitTime());
+
+    given()
+      .body("{\"sensorId\": \"pi1\",\"originateTime\": " + destinationTime
+        + ",\"lastOriginateTime\": " + originateTime
+        + ",\"lastReceiveTime\": " + response.getReceiveTime()
+        + ",\"lastTransmitTime\": " + response.getTransmitTime()
+        + ",\"lastDestinationTime\": " + destinationTime + "}").with().contentType(ContentType.JSON)
+      .when()
+      .post(SensorController.TIME_SYNC_URL)
+      .then()
+      .statusCode(HttpStatus.OK.value());
+
+    // The offset can be wrong by at most half the round trip
+    JsonPath sensors = given()
+      .when().get(SensorController.SHOW_REGISTERED_SENSORS_URL)
+      .jsonPath();
+    assertEquals(1, sensors.getList("").size());
+    assertEquals(behind, sensors.getLong("[0].clockOffset"), sensors.getLong("[0].clockRoundTrip") / 2 + 1);
+  }
+}
@@ -0,0 +1,163 @@
+package se.cag.labs.currentrace.archive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.LaneService;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RaceArchiveTest {
+  private static final long DAY = 1_500_000_000_000L;
+  private static final int RACES = 2000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private Path directory;
+  private LaneService laneService;
+
+  @Before
+  public void setup() {
+    directory = folder.getRoot().toPath();
+    laneService = new LaneService();
+    ReflectionTestUtils.setField(laneService, "laneIds", new String[]{LaneService.DEFAULT_LANE, "2"});
+    ReflectionTestUtils.setField(laneService, "laneSensors", new String[0]);
+    ReflectionTestUtils.setField(laneService, "checkpoints", 2);
+    ReflectionTestUtils.setField(laneService, "laps", 1);
+    laneService.init();
+  }
+
+  @Test
+  public void racesAreFoundByTimeAndSensorAcrossSegmentsAndRestarts() throws Exception {
+    RaceArchive archive = open(4096);
+    for (int race = 0; race < RACES / 2; race++) {
+      archive.append(finishedRace(race), endTime(race));
+    }
+    archive.close();
+    archive = open(4096);
+    for (int race = RACES / 2; race < RACES; race++) {
+      archive.append(finishedRace(race), endTime(race));
+    }
+
+    assertTrue(RaceArchive.segmentPaths(directory).size() > 2);
+    long bytes = 0;
+    for (Path segment : RaceArchive.segmentPaths(directory)) {
+      bytes += Files.size(segment);
+    }
+    assertTrue("Bytes per race: " + bytes / RACES, bytes / RACES <= 32);
+
+    List<ArchivedRace> races = archive.races(endTime(500), endTime(1600), null);
+    assertEquals(1100, races.size());
+    for (int i = 0; i < races.size(); i++) {
+      CurrentRaceStatus expected = finishedRace(500 + i);
+      ArchivedRace race = races.get(i);
+      assertEquals(endTime(500 + i), race.getEndTime());
+      assertEquals(expected.getRaceId(), race.getLane());
+      assertEquals(RaceStatus.Event.FINISH, race.getEvent());
+      assertEquals(2, race.getCheckpoints());
+      assertEquals(expected.getRaceActivatedTime(), race.getRaceActivatedTime());
+      assertEquals(expected.getStartTime(), race.getStartTime());
+      assertArrayEquals(expected.getPassageTimes(), race.getPassageTimes());
+      assertEquals(expected.getFinishTime(), race.getFinishTime());
+    }
+    assertEquals(550, archive.races(endTime(500), endTime(1600), "2").size());
+    assertEquals(RACES, archive.races(0, Long.MAX_VALUE, null).size());
+
+    List<ArchivedPassage> passages = archive.passages("SPLIT2", endTime(10), endTime(20), LaneService.DEFAULT_LANE);
+    assertEquals(5, passages.size());
+    assertEquals(finishedRace(10).getPassageTimes()[1], passages.get(0).getTimestamp());
+    assertEquals(20000 + 10, passages.get(0).getElapsed());
+  }
+
+  @Test
+  public void finishOfDisqualifiedRaceIsAPassage() throws Exception {
+    RaceArchive archive = open(4096);
+    archive.append(CurrentRaceStatus.builder()
+      .raceId("2")
+      .event(RaceStatus.Event.DISQUALIFIED)
+      .state(RaceStatus.State.INACTIVE)
+      .raceActivatedTime(DAY)
+      .startTime(DAY + 1000)
+      .passageTimes(new long[]{DAY + 11000})
+      .finishTime(DAY + 15000)
+      .build(), DAY + 15001);
+    archive.append(CurrentRaceStatus.builder()
+      .event(RaceStatus.Event.TIME_OUT_NOT_STARTED)
+      .state(RaceStatus.State.INACTIVE)
+      .raceActivatedTime(DAY)
+      .build(), DAY + 60000);
+
+    List<ArchivedPassage> finishes = archive.passages("FINISH", 0, Long.MAX_VALUE, null);
+    assertEquals(1, finishes.size());
+    assertEquals("2", finishes.get(0).getLane());
+    assertEquals(14000, finishes.get(0).getElapsed());
+    assertTrue(archive.passages("SPLIT2", 0, Long.MAX_VALUE, null).isEmpty());
+
+    ArchivedRace timedOut = archive.races(DAY + 15002, Long.MAX_VALUE, null).get(0);
+    assertEquals(LaneService.DEFAULT_LANE, timedOut.getLane());
+    assertEquals(RaceStatus.Event.TIME_OUT_NOT_STARTED, timedOut.getEvent());
+    assertNull(timedOut.getStartTime());
+    assertEquals(0, timedOut.getPassageTimes().length);
+  }
+
+  @Test
+  public void damagedRaceIsDroppedAndArchivingGoesOn() throws Exception {
+    RaceArchive archive = open(4096);
+    for (int race = 0; race < 3; race++) {
+      archive.append(finishedRace(race), endTime(race));
+    }
+    archive.close();
+
+    Path segment = RaceArchive.segmentPath(directory, 0);
+    try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      file.seek(file.length() - 1);
+      file.write(0x7f);
+    }
+
+    archive = open(4096);
+    assertEquals(2, archive.races(0, Long.MAX_VALUE, null).size());
+    archive.append(finishedRace(3), endTime(3));
+    List<ArchivedRace> races = archive.races(0, Long.MAX_VALUE, null);
+    assertEquals(3, races.size());
+    assertEquals(endTime(3), races.get(2).getEndTime());
+  }
+
+  private RaceArchive open(int segmentSize) {
+    RaceArchive archive = new RaceArchive();
+    ReflectionTestUtils.setField(archive, "dir", directory.toString());
+    ReflectionTestUtils.setField(archive, "segmentSize", segmentSize);
+    ReflectionTestUtils.setField(archive, "laneService", laneService);
+    archive.open();
+    return archive;
+  }
+
+  private static long endTime(int race) {
+    return DAY + race * 60_000L + 50_000;
+  }
+
+  private static CurrentRaceStatus finishedRace(int race) {
+    long activated = DAY + race * 60_000L;
+    long start = activated + 5000 + race % 7;
+    return CurrentRaceStatus.builder()
+      .raceId(race % 2 == 0 ? LaneService.DEFAULT_LANE : "2")
+      .event(RaceStatus.Event.FINISH)
+      .state(RaceStatus.State.INACTIVE)
+      .raceActivatedTime(activated)
+      .startTime(start)
+      .passageTimes(new long[]{start + 10000 + race % 13, start + 20000 + race, start + 30000 + race % 100})
+      .finishTime(start + 30000 + race % 100)
+      .build();
+  }
+}
@@ -0,0 +1,167 @@
+package se.cag.labs.currentrace.journal;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.PassageDetectedService.ReturnStatus;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PassageJournalTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private Path directory;
+
+  @Before
+  public void setup() {
+    directory = folder.getRoot().toPath();
+  }
+
+  @Test
+  public void recordsAreReadBackInOrderAcrossSegmentsAndRestarts() throws Exception {
+    PassageJournal journal = open(2 * JournalRecord.SIZE);
+    journal.recordStart(0, 1000);
+    journal.recordPassage(0, RegisterSensorType.START, ReturnStatus.ACCEPTED, 1234);
+    journal.recordPassage(0, RegisterSensorType.SPLIT, ReturnStatus.ACCEPTED, 12345);
+    journal.close();
+
+    journal = open(2 * JournalRecord.SIZE);
+    journal.recordPassage(0, RegisterSensorType.SPLIT, ReturnStatus.IGNORED, 12346);
+    journal.recordPassage(0, null, ReturnStatus.ERROR, 12347);
+    journal.close();
+
+    List<JournalRecord> records = JournalReader.read(directory);
+    assertEquals(3, JournalReader.segments(directory).size());
+    assertEquals(5, records.size());
+    for (int i = 0; i < records.size(); i++) {
+      assertEquals(i + 1, records.get(i).getSequence());
+    }
+    assertEquals(JournalRecord.START, records.get(0).getType());
+    assertEquals(1000, records.get(0).getTimestamp());
+    assertEquals(RegisterSensorType.SPLIT.ordinal(), records.get(3).getSensor());
+    assertEquals(ReturnStatus.IGNORED.ordinal(), records.get(3).getResult());
+    assertEquals(-1, records.get(4).getSensor());
+  }
+
+  @Test
+  public void lanesAppendConcurrentlyAcrossSegments() throws Exception {
+    PassageJournal journal = open(64 * JournalRecord.SIZE);
+    int lanes = 8;
+    int perLane = 1000;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(lanes);
+    for (int lane = 0; lane < lanes; lane++) {
+      int index = lane;
+      executor.execute(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < perLane; i++) {
+          journal.recordPassage(index, RegisterSensorType.SPLIT, ReturnStatus.IGNORED, i);
+        }
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    journal.close();
+
+    List<JournalRecord> records = JournalReader.read(directory);
+    assertEquals(lanes * perLane, records.size());
+    long[] next = new long[lanes];
+    for (int i = 0; i < records.size(); i++) {
+      JournalRecord record = records.get(i);
+      assertEquals(i + 1, record.getSequence());
+      assertEquals(next[record.getLane()]++, record.getTimestamp());
+    }
+  }
+
+  @Test
+  public void readingStopsAtDamagedRecord() throws Exception {
+    PassageJournal journal = open(1024);
+    journal.recordStart(0, 1000);
+    journal.recordPassage(0, RegisterSensorType.START, ReturnStatus.ACCEPTED, 1234);
+    journal.recordPassage(0, RegisterSensorType.SPLIT, ReturnStatus.ACCEPTED, 12345);
+    journal.close();
+
+    try (RandomAccessFile file = new RandomAccessFile(JournalReader.segmentPath(directory, 0).toFile(), "rw")) {
+      file.seek(JournalRecord.SIZE + 24);
+      file.write(0x7f);
+    }
+
+    assertEquals(1, JournalReader.read(directory).size());
+  }
+
+  @Test
+  public void replayRebuildsRaces() throws Exception {
+    PassageJournal journal = open(1024);
+    journal.recordStart(0, 1000);
+    journal.recordPassage(0, RegisterSensorType.START, ReturnStatus.ACCEPTED, 1234);
+    journal.recordPassage(0, RegisterSensorType.SPLIT, ReturnStatus.ACCEPTED, 12345);
+    journal.recordPassage(0, RegisterSensorType.SPLIT, ReturnStatus.IGNORED, 12346);
+    journal.recordPassage(0, RegisterSensorType.FINISH, ReturnStatus.ACCEPTED, 123456);
+    journal.recordStart(0, 200000);
+    journal.recordPassage(0, RegisterSensorType.START, ReturnStatus.ACCEPTED, 201000);
+    journal.recordTimeout(0, RaceStatus.Event.DISQUALIFIED);
+    journal.recordPassage(0, RegisterSensorType.SPLIT, ReturnStatus.ACCEPTED, 400000);
+    journal.close();
+
+    JournalReplay replay = JournalReplay.replay(JournalReader.read(directory));
+
+    assertEquals(2, replay.getRaces().size());
+    CurrentRaceStatus first = replay.getRaces().get(0);
+    assertEquals(Long.valueOf(1234), first.getStartTime());
+    assertEquals(Long.valueOf(12345), first.getSplitTime());
+    assertEquals(Long.valueOf(123456), first.getFinishTime());
+    assertEquals(RaceStatus.Event.FINISH, first.getEvent());
+    assertEquals(RaceStatus.State.INACTIVE, first.getState());
+    CurrentRaceStatus second = replay.getRaces().get(1);
+    assertEquals(RaceStatus.Event.DISQUALIFIED, second.getEvent());
+    assertEquals(1, replay.getMismatches());
+  }
+
+  @Test
+  public void appendDoesNotAllocate() throws Exception {
+    PassageJournal journal = open(1024 * 1024);
+    ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    for (int i = 0; i < 1000; i++) {
+      journal.recordPassage(0, RegisterSensorType.SPLIT, ReturnStatus.IGNORED, i);
+    }
+
+    long before = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 10000; i++) {
+      journal.recordPassage(0, RegisterSensorType.SPLIT, ReturnStatus.IGNORED, i);
+    }
+    long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    journal.close();
+
+    assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+  }
+
+  private PassageJournal open(int segmentSize) {
+    PassageJournal journal = new PassageJournal();
+    ReflectionTestUtils.setField(journal, "dir", directory.toString());
+    ReflectionTestUtils.setField(journal, "segmentSize", segmentSize);
+    journal.open();
+    return journal;
+  }
+}
@@ -0,0 +1,137 @@
+package se.cag.labs.currentrace.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.SystemRaceClock;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class CallbackServiceTest {
+  private static final String CALLBACK_URL = "http://localhost/onracestatusupdate";
+
+  @Mock
+  private RestTemplate restTemplateMock;
+  private SchedulerService schedulerService;
+  private CallbackService callbackService;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    schedulerService = new SchedulerService();
+    ReflectionTestUtils.setField(schedulerService, "threads", 1);
+    ReflectionTestUtils.setField(schedulerService, "capacity", 16);
+    schedulerService.init();
+
+    callbackService = new CallbackService();
+    ReflectionTestUtils.setField(callbackService, "restTemplate", restTemplateMock);
+    ReflectionTestUtils.setField(callbackService, "schedulerService", schedulerService);
+    ReflectionTestUtils.setField(callbackService, "raceClock", SystemRaceClock.INSTANCE);
+    ReflectionTestUtils.setField(callbackService, "capacity", 16);
+    ReflectionTestUtils.setField(callbackService, "maxAttempts", 3);
+    callbackService.init();
+  }
+
+  @After
+  public void tearDown() {
+    callbackService.shutdown();
+    schedulerService.shutdown();
+  }
+
+  @Test
+  public void supersededActiveStatusesAreCoalesced() throws Exception {
+    CountDownLatch firstCallStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstCall = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      if (firstCallStarted.getCount() > 0) {
+        firstCallStarted.countDown();
+        releaseFirstCall.await(5, TimeUnit.SECONDS);
+      }
+      return null;
+    }).when(restTemplateMock).postForLocation(eq(CALLBACK_URL), any(RaceStatus.class));
+
+    callbackService.reportStatus(status(RaceStatus.Event.NONE, RaceStatus.State.ACTIVE));
+    firstCallStarted.await(5, TimeUnit.SECONDS);
+    callbackService.reportStatus(status(RaceStatus.Event.START, RaceStatus.State.ACTIVE));
+    callbackService.reportStatus(status(RaceStatus.Event.SPLIT, RaceStatus.State.ACTIVE));
+    callbackService.reportStatus(status(RaceStatus.Event.FINISH, RaceStatus.State.INACTIVE));
+    callbackService.reportStatus(status(RaceStatus.Event.NONE, RaceStatus.State.ACTIVE));
+    releaseFirstCall.countDown();
+
+    ArgumentCaptor<RaceStatus> captor = ArgumentCaptor.forClass(RaceStatus.class);
+    verify(restTemplateMock, timeout(5000).times(3)).postForLocation(eq(CALLBACK_URL), captor.capture());
+    List<RaceStatus> delivered = captor.getAllValues();
+    assertEquals(RaceStatus.Event.NONE, delivered.get(0).getEvent());
+    assertEquals(RaceStatus.Event.FINISH, delivered.get(1).getEvent());
+    assertEquals(RaceStatus.State.INACTIVE, delivered.get(1).getState());
+    assertEquals(RaceStatus.Event.NONE, delivered.get(2).getEvent());
+    assertEquals(RaceStatus.State.ACTIVE, delivered.get(2).getState());
+  }
+
+  @Test
+  public void fullQueueNeverDropsInactiveStatuses() throws Exception {
+    ReflectionTestUtils.setField(callbackService, "capacity", 2);
+    CountDownLatch firstCallStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstCall = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      if (firstCallStarted.getCount() > 0) {
+        firstCallStarted.countDown();
+        releaseFirstCall.await(5, TimeUnit.SECONDS);
+      }
+      return null;
+    }).when(restTemplateMock).postForLocation(eq(CALLBACK_URL), any(RaceStatus.class));
+
+    callbackService.reportStatus(status(RaceStatus.Event.FINISH, RaceStatus.State.INACTIVE));
+    firstCallStarted.await(5, TimeUnit.SECONDS);
+    callbackService.reportStatus(status(RaceStatus.Event.DISQUALIFIED, RaceStatus.State.INACTIVE));
+    callbackService.reportStatus(status(RaceStatus.Event.TIME_OUT_NOT_STARTED, RaceStatus.State.INACTIVE));
+    callbackService.reportStatus(status(RaceStatus.Event.START, RaceStatus.State.ACTIVE));
+    callbackService.reportStatus(status(RaceStatus.Event.TIME_OUT_NOT_FINISHED, RaceStatus.State.INACTIVE));
+    releaseFirstCall.countDown();
+
+    ArgumentCaptor<RaceStatus> captor = ArgumentCaptor.forClass(RaceStatus.class);
+    verify(restTemplateMock, timeout(5000).times(4)).postForLocation(eq(CALLBACK_URL), captor.capture());
+    List<RaceStatus> delivered = captor.getAllValues();
+    assertEquals(RaceStatus.Event.FINISH, delivered.get(0).getEvent());
+    assertEquals(RaceStatus.Event.DISQUALIFIED, delivered.get(1).getEvent());
+    assertEquals(RaceStatus.Event.TIME_OUT_NOT_STARTED, delivered.get(2).getEvent());
+    assertEquals(RaceStatus.Event.TIME_OUT_NOT_FINISHED, delivered.get(3).getEvent());
+  }
+
+  @Test
+  public void failedCallbackIsRetried() {
+    doThrow(new ResourceAccessException("down"))
+      .doReturn(null)
+      .when(restTemplateMock).postForLocation(eq(CALLBACK_URL), any(RaceStatus.class));
+
+    callbackService.reportStatus(status(RaceStatus.Event.FINISH, RaceStatus.State.INACTIVE));
+
+    verify(restTemplateMock, timeout(5000).times(2)).postForLocation(eq(CALLBACK_URL), any(RaceStatus.class));
+  }
+
+  private static CurrentRaceStatus status(RaceStatus.Event event, RaceStatus.State state) {
+    return CurrentRaceStatus.builder()
+      .callbackUrl(CALLBACK_URL)
+      .event(event)
+      .state(state)
+      .build();
+  }
+}
@@ -0,0 +1,89 @@
+package se.cag.labs.currentrace.services;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import se.cag.labs.currentrace.apicontroller.apimodel.TimeSync;
+import se.cag.labs.currentrace.apicontroller.apimodel.TimeSyncResponse;
+import se.cag.labs.currentrace.time.VirtualRaceClock;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ClockSyncServiceTest {
+  private static final long START = 1_500_000_000_000L;
+  private static final long OFFSET = 500;
+  private static final double DRIFT = 100e-6;
+
+  private final VirtualRaceClock raceClock = new VirtualRaceClock(START, 0);
+  private final ClockSyncService clockSyncService = new ClockSyncService();
+  private final Random random = new Random(17);
+
+  @Before
+  public void setup() {
+    ReflectionTestUtils.setField(clockSyncService, "raceClock", raceClock);
+  }
+
+  @Test
+  public void offsetAndDriftAreEstimatedThroughAsymmetricDelays() {
+    TimeSync.TimeSyncBuilder request = TimeSync.builder().sensorId("pi1");
+    for (long serverTime = START; serverTime < START + 10 * 60 * 1000; serverTime += 10 * 1000) {
+      // The network is mostly slow on the way out, now and then both ways are quick
+      boolean quick = random.nextInt(4) == 0;
+      long out = quick ? 1 : 5 + random.nextInt(50);
+      long back = quick ? 1 : 1 + random.nextInt(5);
+
+      long originateTime = sensorTime(serverTime);
+      long receiveTime = serverTime + out;
+      raceClock.advance(receiveTime + 1 - raceClock.millis());
+      TimeSyncResponse response = clockSyncService.timeSync(request.originateTime(originateTime).build(), receiveTime);
+      assertEquals(originateTime, response.getOriginateTime());
+      long transmitTime = response.getTransmitTime();
+      assertEquals(receiveTime + 1, transmitTime);
+      long destinationTime = sensorTime(transmitTime + back);
+
+      request = TimeSync.builder().sensorId("pi1")
+        .lastOriginateTime(originateTime)
+        .lastReceiveTime(receiveTime)
+        .lastTransmitTime(transmitTime)
+        .lastDestinationTime(destinationTime);
+    }
+    long serverTime = START + 10 * 60 * 1000;
+    clockSyncService.timeSync(request.originateTime(sensorTime(serverTime)).build(), serverTime);
+
+    SensorClock clock = clockSyncService.getClock("pi1");
+    assertEquals(DRIFT * 1_000_000, clock.getDriftPpm(), 20);
+    assertEquals(2, clock.getRoundTrip());
+    assertEquals(serverTime, clockSyncService.toServerTime("pi1", sensorTime(serverTime)), 2);
+  }
+
+  @Test
+  public void invalidExchangeIsIgnored() {
+    clockSyncService.timeSync(TimeSync.builder().sensorId("pi1")
+      .lastOriginateTime(1000L)
+      .lastReceiveTime(2000L)
+      .lastTransmitTime(2100L)
+      .lastDestinationTime(1050L)
+      .build(), 3000);
+
+    assertNull(clockSyncService.getClock("pi1"));
+    assertEquals(1234, clockSyncService.toServerTime("pi1", 1234));
+  }
+
+  @Test
+  public void timestampsOfUnknownControllersAreKept() {
+    assertFalse(new SensorClock().isSynced());
+    assertEquals(1234, clockSyncService.toServerTime(null, 1234));
+    assertEquals(1234, clockSyncService.toServerTime("pi2", 1234));
+  }
+
+  /**
+   * The sensor clock is behind by {@link #OFFSET} at the start and runs slower by {@link #DRIFT}.
+   */
+  private static long sensorTime(long serverTime) {
+    return serverTime - OFFSET - Math.round(DRIFT * (serverTime - START));
+  }
+}
@@ -0,0 +1,331 @@
+package se.cag.labs.currentrace.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.journal.JournalReader;
+import se.cag.labs.currentrace.journal.JournalReplay;
+import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.SystemRaceClock;
+import se.cag.labs.currentrace.time.VirtualRaceClock;
+import se.cag.labs.currentrace.timer.VerifyRacePassagesTimerTask;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Writers racing for the same race status. Every passage that was accepted must be in the final status,
+ * and the race may only have timed out in the state it was in before the passages that were rejected.
+ */
+public class ConcurrentRaceUpdatesTest {
+  private static final int RACES = 250;
+  private static final int TIMER_THREADS = 8;
+  private static final long TIME_LIMIT = VerifyRacePassagesTimerTask.TIME_LIMIT;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private RaceServices services;
+  private CurrentRaceRepository repository;
+  private CurrentRaceStore currentRaceStore;
+  private PassageDetectedService passageDetectedService;
+  private VerifyRacePassagesTimerTask timerTask;
+
+  @Before
+  public void setup() {
+    services = new RaceServices(folder.getRoot().toPath(), SystemRaceClock.INSTANCE);
+    repository = services.repository;
+    currentRaceStore = services.currentRaceStore;
+    passageDetectedService = services.passageDetectedService;
+    timerTask = services.timerTask;
+  }
+
+  @After
+  public void tearDown() {
+    services.close();
+  }
+
+  @Test
+  public void noTransitionIsLostToATimeout() throws InterruptedException {
+    for (int race = 0; race < RACES; race++) {
+      // The race may time out until the split, the start and the split are both past the time limit
+      long now = System.currentTimeMillis();
+      long raceActivatedTime = now - TIME_LIMIT - 60 * 1000;
+      long[] timestamps = {raceActivatedTime + 1000, now - 1000, now};
+      currentRaceStore.save(CurrentRaceStatus.builder()
+        .state(RaceStatus.State.ACTIVE)
+        .raceActivatedTime(raceActivatedTime)
+        .build());
+
+      CountDownLatch go = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<>();
+      PassageDetectedService.ReturnStatus[] results = new PassageDetectedService.ReturnStatus[3];
+      threads.add(new Thread(() -> {
+        await(go);
+        String[] sensors = {"START", "SPLIT", "FINISH"};
+        for (int i = 0; i < sensors.length; i++) {
+          results[i] = passageDetectedService.passageDetected(sensors[i], timestamps[i]);
+        }
+      }));
+      for (int i = 0; i < TIMER_THREADS; i++) {
+        boolean trig = i % 2 == 0;
+        threads.add(new Thread(() -> {
+          await(go);
+          if (trig) {
+            timerTask.trigUpdate(LaneService.DEFAULT_LANE);
+          } else {
+            timerTask.run(LaneService.DEFAULT_LANE);
+          }
+        }));
+      }
+      threads.forEach(Thread::start);
+      go.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      assertRaceConsistent(results, timestamps, currentRaceStore.find());
+    }
+  }
+
+  @Test
+  public void conflictingWriteIsRetriedWithTheStoredVersion() {
+    CurrentRaceStatus stored = CurrentRaceStatus.builder().id(LaneService.DEFAULT_LANE).version(7L).build();
+    when(repository.findOne(LaneService.DEFAULT_LANE)).thenReturn(stored);
+    when(repository.save(any(CurrentRaceStatus.class)))
+      .thenAnswer(invocation -> {
+        CurrentRaceStatus document = (CurrentRaceStatus) invocation.getArguments()[0];
+        document.setVersion(5L);
+        return document;
+      })
+      .thenThrow(new OptimisticLockingFailureException("Conflict"))
+      .thenAnswer(invocation -> invocation.getArguments()[0]);
+
+    currentRaceStore.save(CurrentRaceStatus.builder().state(RaceStatus.State.ACTIVE).raceActivatedTime(1000L).build());
+    currentRaceStore.flush();
+    currentRaceStore.save(CurrentRaceStatus.builder().state(RaceStatus.State.INACTIVE).raceActivatedTime(1000L).build());
+    currentRaceStore.flush();
+
+    ArgumentCaptor<CurrentRaceStatus> saved = ArgumentCaptor.forClass(CurrentRaceStatus.class);
+    verify(repository, times(3)).save(saved.capture());
+    assertEquals(Long.valueOf(7L), saved.getAllValues().get(2).getVersion());
+    assertEquals(LaneService.DEFAULT_LANE, saved.getAllValues().get(2).getId());
+    assertEquals(RaceStatus.State.INACTIVE, saved.getAllValues().get(2).getState());
+  }
+
+  @Test
+  public void finishWrittenByAnotherWriterIsMergedOnConflict() {
+    CurrentRaceStatus stored = CurrentRaceStatus.builder()
+      .id(LaneService.DEFAULT_LANE)
+      .version(7L)
+      .state(RaceStatus.State.INACTIVE)
+      .event(RaceStatus.Event.FINISH)
+      .raceActivatedTime(1000L)
+      .startTime(1234L)
+      .splitTime(12345L)
+      .finishTime(123456L)
+      .passageTimes(new long[]{12345L, 123456L})
+      .build();
+    when(repository.findOne(LaneService.DEFAULT_LANE)).thenReturn(stored);
+    when(repository.save(any(CurrentRaceStatus.class)))
+      .thenAnswer(invocation -> {
+        CurrentRaceStatus document = (CurrentRaceStatus) invocation.getArguments()[0];
+        document.setVersion(5L);
+        return document;
+      })
+      .thenThrow(new OptimisticLockingFailureException("Conflict"))
+      .thenAnswer(invocation -> invocation.getArguments()[0]);
+
+    currentRaceStore.save(CurrentRaceStatus.builder().state(RaceStatus.State.ACTIVE).raceActivatedTime(1000L).build());
+    currentRaceStore.flush();
+    passageDetectedService.passageDetected("START", 1234);
+    currentRaceStore.flush();
+
+    ArgumentCaptor<CurrentRaceStatus> saved = ArgumentCaptor.forClass(CurrentRaceStatus.class);
+    verify(repository, atLeast(3)).save(saved.capture());
+    CurrentRaceStatus merged = saved.getAllValues().get(2);
+    assertEquals(Long.valueOf(7L), merged.getVersion());
+    assertEquals(RaceStatus.Event.FINISH, merged.getEvent());
+    assertEquals(Long.valueOf(123456L), merged.getFinishTime());
+    assertEquals(RaceStatus.Event.FINISH, currentRaceStore.find().getEvent());
+    assertEquals(RaceStatus.State.INACTIVE, currentRaceStore.find().getState());
+  }
+
+  @Test
+  public void nothingIsWrittenUntilTheStoredStatusHasBeenRead() {
+    CurrentRaceStatus stored = CurrentRaceStatus.builder()
+      .id(LaneService.DEFAULT_LANE)
+      .version(3L)
+      .state(RaceStatus.State.INACTIVE)
+      .raceActivatedTime(500L)
+      .build();
+    when(repository.findAll())
+      .thenThrow(new DataAccessResourceFailureException("Down"))
+      .thenReturn(Collections.singletonList(stored));
+    currentRaceStore.rehydrate();
+
+    currentRaceStore.save(CurrentRaceStatus.builder().state(RaceStatus.State.ACTIVE).raceActivatedTime(1000L).build());
+    currentRaceStore.flush();
+    verify(repository, never()).save(any(CurrentRaceStatus.class));
+
+    ArgumentCaptor<CurrentRaceStatus> saved = ArgumentCaptor.forClass(CurrentRaceStatus.class);
+    verify(repository, timeout(5000)).save(saved.capture());
+    assertEquals(LaneService.DEFAULT_LANE, saved.getValue().getId());
+    assertEquals(Long.valueOf(3L), saved.getValue().getVersion());
+    assertEquals(RaceStatus.State.ACTIVE, saved.getValue().getState());
+  }
+
+  @Test
+  public void documentNotKeyedByLaneIsReplaced() {
+    CurrentRaceStatus stored = CurrentRaceStatus.builder()
+      .id("legacy")
+      .version(3L)
+      .state(RaceStatus.State.INACTIVE)
+      .raceActivatedTime(500L)
+      .build();
+    when(repository.findAll()).thenReturn(Collections.singletonList(stored));
+    currentRaceStore.rehydrate();
+
+    currentRaceStore.save(CurrentRaceStatus.builder().state(RaceStatus.State.ACTIVE).raceActivatedTime(1000L).build());
+    currentRaceStore.flush();
+
+    ArgumentCaptor<CurrentRaceStatus> saved = ArgumentCaptor.forClass(CurrentRaceStatus.class);
+    verify(repository).save(saved.capture());
+    assertEquals(LaneService.DEFAULT_LANE, saved.getValue().getId());
+    assertNull(saved.getValue().getVersion());
+    verify(repository).delete("legacy");
+  }
+
+  @Test
+  public void waitersAreWokenOffTheChangingThread() throws InterruptedException {
+    CountDownLatch woken = new CountDownLatch(2);
+    List<Thread> wakingThreads = Collections.synchronizedList(new ArrayList<>());
+    List<CurrentRaceStatus> statuses = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < 2; i++) {
+      currentRaceStore.awaitChange(LaneService.DEFAULT_LANE, 0, status -> {
+        wakingThreads.add(Thread.currentThread());
+        statuses.add(status);
+        woken.countDown();
+      });
+    }
+
+    currentRaceStore.save(CurrentRaceStatus.builder().state(RaceStatus.State.ACTIVE).raceActivatedTime(1000L).build());
+
+    assertTrue(woken.await(5, TimeUnit.SECONDS));
+    assertFalse(wakingThreads.contains(Thread.currentThread()));
+    assertSame(statuses.get(0), statuses.get(1));
+  }
+
+  @Test
+  public void journalReplaysRacesThatRacedTheirTimeouts() throws IOException, InterruptedException {
+    VirtualRaceClock clock = new VirtualRaceClock(1000000, 0);
+    Path journal = folder.newFolder().toPath();
+    RaceServices virtual = new RaceServices(journal, clock);
+
+    for (int race = 0; race < RACES; race++) {
+      assertEquals(StartRaceService.ReturnStatus.STARTED, virtual.startRaceService.startRace("http://localhost/callback"));
+      long raceActivatedTime = clock.millis();
+      clock.advance(TIME_LIMIT + 60 * 1000);
+      long[] timestamps = {raceActivatedTime + 1000, clock.millis() - 1000, clock.millis()};
+
+      CountDownLatch go = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<>();
+      threads.add(new Thread(() -> {
+        await(go);
+        String[] sensors = {"START", "SPLIT", "FINISH"};
+        for (int i = 0; i < sensors.length; i++) {
+          virtual.passageDetectedService.passageDetected(sensors[i], null, timestamps[i], 1, timestamps[i] * 1000000);
+        }
+      }));
+      for (int i = 0; i < TIMER_THREADS; i++) {
+        threads.add(new Thread(() -> {
+          await(go);
+          virtual.timerTask.run(LaneService.DEFAULT_LANE);
+        }));
+      }
+      threads.forEach(Thread::start);
+      go.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      clock.advance(1000);
+    }
+
+    virtual.close();
+    JournalReplay replay = JournalReplay.replay(JournalReader.read(journal));
+    assertEquals(0, replay.getMismatches());
+    List<CurrentRaceStatus> replayed = replay.getRaces();
+    assertEquals(RACES, replayed.size());
+    CurrentRaceStatus live = virtual.currentRaceStore.find();
+    CurrentRaceStatus last = replayed.get(RACES - 1);
+    assertEquals(live.getEvent(), last.getEvent());
+    assertEquals(live.getStartTime(), last.getStartTime());
+    assertEquals(live.getFinishTime(), last.getFinishTime());
+    assertArrayEquals(live.getPassageNanos(), last.getPassageNanos());
+  }
+
+  private static void assertRaceConsistent(PassageDetectedService.ReturnStatus[] results, long[] timestamps, CurrentRaceStatus status) {
+    int accepted = 0;
+    while (accepted < results.length && results[accepted] == PassageDetectedService.ReturnStatus.ACCEPTED) {
+      accepted++;
+    }
+    for (int i = accepted; i < results.length; i++) {
+      assertEquals(PassageDetectedService.ReturnStatus.IGNORED, results[i]);
+    }
+
+    assertEquals(RaceStatus.State.INACTIVE, status.getState());
+    switch (accepted) {
+      case 0:
+        assertEquals(RaceStatus.Event.TIME_OUT_NOT_STARTED, status.getEvent());
+        assertNull(status.getStartTime());
+        break;
+      case 1:
+        assertEquals(RaceStatus.Event.DISQUALIFIED, status.getEvent());
+        assertEquals(Long.valueOf(timestamps[0]), status.getStartTime());
+        assertNull(status.getSplitTime());
+        break;
+      case 3:
+        assertEquals(RaceStatus.Event.FINISH, status.getEvent());
+        assertEquals(Long.valueOf(timestamps[0]), status.getStartTime());
+        assertEquals(Long.valueOf(timestamps[1]), status.getSplitTime());
+        assertEquals(Long.valueOf(timestamps[2]), status.getFinishTime());
+        break;
+      default:
+        fail("Race timed out after the split");
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
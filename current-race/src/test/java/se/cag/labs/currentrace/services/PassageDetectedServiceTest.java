@@ -0,0 +1,227 @@
+package se.cag.labs.currentrace.services;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.test.util.ReflectionTestUtils;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.journal.JournalReader;
+import se.cag.labs.currentrace.journal.JournalRecord;
+import se.cag.labs.currentrace.journal.JournalReplay;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.services.sensors.RaceState;
+import se.cag.labs.currentrace.services.sensors.RegisterSensor;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorFactory;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+import se.cag.labs.currentrace.time.SystemRaceClock;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PassageDetectedServiceTest {
+  private static final int WARMUP = 20000;
+  private static final int PASSAGES = 10000;
+  private static final long MAX_ALLOCATED_BYTES = 1024;
+  private static final long MEASUREMENT_SLACK_BYTES = 16;
+  private static final int MEASUREMENT_ROUNDS = 3;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private RaceServices services;
+  private CurrentRaceStore currentRaceStore;
+  private PassageDetectedService passageDetectedService;
+  private final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  @Before
+  public void setup() {
+    services = new RaceServices(folder.getRoot().toPath(), SystemRaceClock.INSTANCE);
+    currentRaceStore = services.currentRaceStore;
+    passageDetectedService = services.passageDetectedService;
+  }
+
+  @After
+  public void tearDown() {
+    services.close();
+  }
+
+  @Test
+  public void sensorTransitionsDoNotAllocate() {
+    RaceState raceState = new RaceState();
+    RegisterSensor start = RegisterSensorFactory.INSTANCE.getRegisterSensor(RegisterSensorType.START);
+    RegisterSensor split = RegisterSensorFactory.INSTANCE.getRegisterSensor(RegisterSensorType.SPLIT);
+    RegisterSensor finish = RegisterSensorFactory.INSTANCE.getRegisterSensor(RegisterSensorType.FINISH);
+    runRace(raceState, start, split, finish, WARMUP);
+
+    long allocated = leastAllocatedBytes(() -> assertEquals(3 * PASSAGES, runRace(raceState, start, split, finish, PASSAGES)));
+
+    assertTrue("Allocated " + allocated + " bytes", allocated < MAX_ALLOCATED_BYTES);
+  }
+
+  @Test
+  public void ignoredPassagesDoNotAllocate() {
+    currentRaceStore.save(CurrentRaceStatus.builder()
+      .state(RaceStatus.State.ACTIVE)
+      .event(RaceStatus.Event.SPLIT)
+      .raceActivatedTime(1000L)
+      .startTime(1234L)
+      .splitTime(12345L)
+      .build());
+    for (int i = 0; i < WARMUP; i++) {
+      passageDetectedService.passageDetected("SPLIT", i);
+      passageDetectedService.passageDetected("FAULTY", i);
+    }
+
+    long allocated = leastAllocatedBytes(() -> {
+      for (int i = 0; i < PASSAGES; i++) {
+        assertEquals(PassageDetectedService.ReturnStatus.IGNORED, passageDetectedService.passageDetected("SPLIT", i));
+        assertEquals(PassageDetectedService.ReturnStatus.ERROR, passageDetectedService.passageDetected("FAULTY", i));
+      }
+    });
+
+    assertTrue("Allocated " + allocated + " bytes", allocated < MAX_ALLOCATED_BYTES);
+  }
+
+  @Test
+  public void acceptedPassagesAllocateOneStatusCopy() {
+    ReflectionTestUtils.setField(passageDetectedService, "callbackService", new CallbackService() {
+      @Override
+      public void reportStatus(CurrentRaceStatus status) {
+      }
+    });
+    ReflectionTestUtils.setField(passageDetectedService, "statusStreamService", new StatusStreamService() {
+      @Override
+      public void publish(CurrentRaceStatus status) {
+      }
+    });
+    ReflectionTestUtils.setField(passageDetectedService, "timerService", new TimerService() {
+      @Override
+      public void scheduleTimeout(CurrentRaceStatus currentRaceStatus) {
+      }
+    });
+    CurrentRaceStatus activeRace = CurrentRaceStatus.builder()
+      .state(RaceStatus.State.ACTIVE)
+      .raceActivatedTime(0L)
+      .build();
+    runRaces(activeRace, WARMUP / 3);
+
+    long before = allocatedBytes();
+    int accepted = runRaces(activeRace, PASSAGES / 3);
+    long allocated = allocatedBytes() - before;
+
+    assertEquals(PASSAGES / 3 * 3, accepted);
+    // A race copies the status once per accepted passage and once more for the archive when it finishes,
+    // and queues at most one write-behind task per passage and one for the archive
+    long statusCopy = allocatedBytes(() -> currentRaceStore.find());
+    long writerTask = writerTaskBytes();
+    long perRace = allocated / (PASSAGES / 3);
+    assertTrue("Allocated " + perRace + " bytes per race, one status copy is " + statusCopy + " bytes and one writer task "
+        + writerTask + " bytes",
+      perRace <= 4 * statusCopy + 4 * writerTask + MEASUREMENT_SLACK_BYTES);
+  }
+
+  @Test
+  public void chatteringSensorIsDebounced() throws Exception {
+    ReflectionTestUtils.setField(services.debounceService, "window", 20L);
+    assertEquals(StartRaceService.ReturnStatus.STARTED, services.startRaceService.startRace("http://localhost/callback"));
+    long start = currentRaceStore.find().getRaceActivatedTime() + 234;
+
+    assertEquals(PassageDetectedService.ReturnStatus.ACCEPTED, passageDetectedService.passageDetected("START", start));
+    assertEquals(PassageDetectedService.ReturnStatus.IGNORED, passageDetectedService.passageDetected("START", start + 2));
+    assertEquals(PassageDetectedService.ReturnStatus.IGNORED, passageDetectedService.passageDetected("START", start - 4));
+    assertEquals(PassageDetectedService.ReturnStatus.ACCEPTED, passageDetectedService.passageDetected("SPLIT", start + 6));
+    assertEquals(PassageDetectedService.ReturnStatus.IGNORED, passageDetectedService.passageDetected("SPLIT", start + 25));
+    assertEquals(PassageDetectedService.ReturnStatus.ACCEPTED, passageDetectedService.passageDetected("FINISH", start + 26));
+
+    Map<String, Number> metrics = services.debounceService.metrics().stream()
+      .collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    assertEquals(2L, metrics.get("currentrace.debounce.suppressed.ID.START"));
+    assertEquals(1L, metrics.get("currentrace.debounce.suppressed.ID.SPLIT"));
+    assertEquals(0L, metrics.get("currentrace.debounce.suppressed.ID.FINISH"));
+    assertEquals(3L, metrics.get("currentrace.debounce.suppressed"));
+
+    services.passageJournal.close();
+    List<JournalRecord> records = JournalReader.read(folder.getRoot().toPath());
+    assertEquals(3, records.stream().filter(record -> record.getResult() == JournalRecord.DEBOUNCED).count());
+    JournalReplay replay = JournalReplay.replay(records);
+    assertEquals(3, replay.getDebounced());
+    assertEquals(0, replay.getMismatches());
+    assertEquals(RaceStatus.Event.FINISH, replay.getRaces().get(0).getEvent());
+  }
+
+  private int runRaces(CurrentRaceStatus activeRace, int races) {
+    int accepted = 0;
+    for (long i = 0; i < races; i++) {
+      currentRaceStore.save(activeRace);
+      accepted += passageDetectedService.passageDetected("START", i * 10 + 1) == PassageDetectedService.ReturnStatus.ACCEPTED ? 1 : 0;
+      accepted += passageDetectedService.passageDetected("SPLIT", i * 10 + 2) == PassageDetectedService.ReturnStatus.ACCEPTED ? 1 : 0;
+      accepted += passageDetectedService.passageDetected("FINISH", i * 10 + 3) == PassageDetectedService.ReturnStatus.ACCEPTED ? 1 : 0;
+    }
+    return accepted;
+  }
+
+  private static int runRace(RaceState raceState, RegisterSensor start, RegisterSensor split, RegisterSensor finish, int races) {
+    int accepted = 0;
+    for (long i = 0; i < races; i++) {
+      raceState.setEvent(RaceStatus.Event.NONE);
+      raceState.setState(RaceStatus.State.ACTIVE);
+      raceState.clearPassages();
+      accepted += start.updateStatus(raceState, i) ? 1 : 0;
+      accepted += split.updateStatus(raceState, i + 1) ? 1 : 0;
+      accepted += finish.updateStatus(raceState, i + 2) ? 1 : 0;
+    }
+    return accepted;
+  }
+
+  /**
+   * @return the bytes the action allocates on average on this thread, once it has been warmed up
+   */
+  private long allocatedBytes(Runnable action) {
+    for (int i = 0; i < WARMUP; i++) {
+      action.run();
+    }
+    long before = allocatedBytes();
+    for (int i = 0; i < PASSAGES; i++) {
+      action.run();
+    }
+    return (allocatedBytes() - before) / PASSAGES;
+  }
+
+  /**
+   * @return the least bytes the passages allocate on this thread in a few rounds. An allocation per passage
+   * shows in every round, while a one-off allocation by the JVM, such as a recompilation, shows in one
+   */
+  private long leastAllocatedBytes(Runnable passages) {
+    long least = Long.MAX_VALUE;
+    for (int round = 0; round < MEASUREMENT_ROUNDS; round++) {
+      long before = allocatedBytes();
+      passages.run();
+      least = Math.min(least, allocatedBytes() - before);
+    }
+    return least;
+  }
+
+  private long writerTaskBytes() {
+    ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    try {
+      return allocatedBytes(() -> writer.execute(() -> {
+      }));
+    } finally {
+      writer.shutdownNow();
+    }
+  }
+
+  private long allocatedBytes() {
+    return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
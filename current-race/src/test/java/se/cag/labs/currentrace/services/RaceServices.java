@@ -0,0 +1,90 @@
+package se.cag.labs.currentrace.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.ReflectionUtils;
+import se.cag.labs.currentrace.archive.RaceArchive;
+import se.cag.labs.currentrace.journal.PassageJournal;
+import se.cag.labs.currentrace.services.repository.CurrentRaceRepository;
+import se.cag.labs.currentrace.services.repository.SensorRepository;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.RaceClock;
+import se.cag.labs.currentrace.timer.VerifyRacePassagesTimerTask;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+/**
+ * The race services of one lane with one checkpoint, wired by type into their @Autowired fields the way
+ * Spring wires them. MongoDB, the archive, the callbacks, the timers and the stream are mocks, and the
+ * journal is written to the given directory. A new collaborator only has to be added here.
+ */
+final class RaceServices {
+  final CurrentRaceRepository repository = mock(CurrentRaceRepository.class);
+  final RaceArchive raceArchive = mock(RaceArchive.class);
+  final CallbackService callbackService = mock(CallbackService.class);
+  final TimerService timerService = mock(TimerService.class);
+  final StatusStreamService statusStreamService = mock(StatusStreamService.class);
+  final LaneService laneService = new LaneService();
+  final DebounceService debounceService = new DebounceService();
+  final PassageJournal passageJournal = new PassageJournal();
+  final CurrentRaceStore currentRaceStore = new CurrentRaceStore();
+  final PassageDetectedService passageDetectedService = new PassageDetectedService();
+  final StartRaceService startRaceService = new StartRaceService();
+  final VerifyRacePassagesTimerTask timerTask = new VerifyRacePassagesTimerTask();
+  final SchedulerService schedulerService = new SchedulerService();
+
+  private final List<Object> beans = new ArrayList<>();
+
+  RaceServices(Path journal, RaceClock raceClock) {
+    when(repository.save(any(CurrentRaceStatus.class))).thenAnswer(invocation -> invocation.getArguments()[0]);
+    ReflectionTestUtils.setField(laneService, "laneIds", new String[]{LaneService.DEFAULT_LANE});
+    ReflectionTestUtils.setField(laneService, "laneSensors", new String[0]);
+    ReflectionTestUtils.setField(laneService, "checkpoints", 1);
+    ReflectionTestUtils.setField(laneService, "laps", 1);
+    ReflectionTestUtils.setField(passageJournal, "dir", journal.toString());
+    ReflectionTestUtils.setField(passageJournal, "segmentSize", 4 * 1024 * 1024);
+    ReflectionTestUtils.setField(schedulerService, "threads", 1);
+    ReflectionTestUtils.setField(schedulerService, "capacity", 1024);
+
+    register(repository, raceArchive, callbackService, timerService, statusStreamService, laneService, debounceService,
+      passageJournal, currentRaceStore, passageDetectedService, startRaceService, timerTask, schedulerService, raceClock,
+      mock(SensorRepository.class), new ClockSyncService(), new SensorService());
+    beans.stream().filter(bean -> !mockingDetails(bean).isMock()).forEach(this::wire);
+
+    laneService.init();
+    debounceService.init();
+    schedulerService.init();
+    passageJournal.open();
+    currentRaceStore.rehydrate();
+  }
+
+  void close() {
+    currentRaceStore.shutdown();
+    passageJournal.close();
+    schedulerService.shutdown();
+  }
+
+  private void register(Object... instances) {
+    for (Object instance : instances) {
+      beans.add(instance);
+    }
+  }
+
+  private void wire(Object bean) {
+    ReflectionUtils.doWithFields(bean.getClass(), field -> {
+      Object collaborator = beans.stream()
+        .filter(field.getType()::isInstance)
+        .findFirst()
+        .orElseThrow(() -> new IllegalStateException("No " + field.getType().getSimpleName() + " for " + bean.getClass().getSimpleName()));
+      ReflectionUtils.makeAccessible(field);
+      field.set(bean, collaborator);
+    }, field -> field.isAnnotationPresent(Autowired.class));
+  }
+}
@@ -0,0 +1,86 @@
+package se.cag.labs.currentrace.services;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.SystemRaceClock;
+import se.cag.labs.currentrace.timer.VerifyRacePassagesTimerTask;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TimerServiceTest {
+  @Mock
+  private SchedulerService schedulerService;
+  @Mock
+  private CurrentRaceStore currentRaceStore;
+  @Mock
+  private VerifyRacePassagesTimerTask raceTimerTask;
+  private TimerService timerService;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    timerService = new TimerService();
+    ReflectionTestUtils.setField(timerService, "schedulerService", schedulerService);
+    ReflectionTestUtils.setField(timerService, "currentRaceStore", currentRaceStore);
+    ReflectionTestUtils.setField(timerService, "raceTimerTask", raceTimerTask);
+    ReflectionTestUtils.setField(timerService, "raceClock", SystemRaceClock.INSTANCE);
+  }
+
+  @Test
+  public void previousTimerIsKeptWhenTheSchedulerIsFull() {
+    ScheduledFuture<?> previous = pendingFuture();
+    when(schedulerService.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS)))
+      .thenAnswer(invocation -> previous)
+      .thenThrow(new RejectedExecutionException("full"));
+
+    timerService.scheduleTimeout(activeRace(LaneService.DEFAULT_LANE));
+    timerService.scheduleTimeout(activeRace(LaneService.DEFAULT_LANE));
+
+    verify(previous, never()).cancel(false);
+  }
+
+  @Test
+  public void laneLeftWithoutTimerIsArmedLater() {
+    CurrentRaceStatus unarmed = activeRace(LaneService.DEFAULT_LANE);
+    when(currentRaceStore.find(LaneService.DEFAULT_LANE)).thenReturn(unarmed);
+    when(schedulerService.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS)))
+      .thenThrow(new RejectedExecutionException("full"))
+      .thenAnswer(invocation -> pendingFuture());
+
+    timerService.scheduleTimeout(unarmed);
+    timerService.scheduleTimeout(activeRace("2"));
+
+    verify(currentRaceStore).find(LaneService.DEFAULT_LANE);
+    verify(schedulerService, times(3)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+  }
+
+  private static ScheduledFuture<?> pendingFuture() {
+    ScheduledFuture<?> future = mock(ScheduledFuture.class);
+    when(future.getDelay(TimeUnit.MILLISECONDS)).thenReturn(1000L);
+    return future;
+  }
+
+  private static CurrentRaceStatus activeRace(String lane) {
+    return CurrentRaceStatus.builder()
+      .raceId(lane)
+      .state(RaceStatus.State.ACTIVE)
+      .raceActivatedTime(System.currentTimeMillis())
+      .build();
+  }
+}
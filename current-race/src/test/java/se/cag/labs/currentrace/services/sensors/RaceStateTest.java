@@ -0,0 +1,126 @@
+package se.cag.labs.currentrace.services.sensors;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+import se.cag.labs.currentrace.time.VirtualRaceClock;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RaceStateTest {
+  private final RegisterSensor start = RegisterSensorFactory.INSTANCE.getRegisterSensor(RegisterSensorType.START);
+  private final RegisterSensor checkpoint1 = RegisterSensorFactory.INSTANCE.getCheckpointSensor(1);
+  private final RegisterSensor checkpoint2 = RegisterSensorFactory.INSTANCE.getCheckpointSensor(2);
+  private final RegisterSensor finish = RegisterSensorFactory.INSTANCE.getRegisterSensor(RegisterSensorType.FINISH);
+  private RaceState raceState;
+
+  @Before
+  public void setup() {
+    raceState = new RaceState(new Course(2, 2));
+    raceState.setState(RaceStatus.State.ACTIVE);
+    raceState.setEvent(RaceStatus.Event.NONE);
+    raceState.setRaceActivatedTime(1000);
+  }
+
+  @Test
+  public void passagesAreAcceptedInCourseOrderForAllLaps() {
+    assertTrue(start.updateStatus(raceState, 100));
+    assertTrue(checkpoint1.updateStatus(raceState, 110));
+    assertFalse(checkpoint1.updateStatus(raceState, 111));
+    assertTrue(checkpoint2.updateStatus(raceState, 120));
+    assertTrue(finish.updateStatus(raceState, 130));
+    assertEquals(RaceStatus.Event.SPLIT, raceState.getEvent());
+    assertEquals(130, raceState.getSplitTime());
+    assertTrue(raceState.isActive());
+
+    assertFalse(checkpoint2.updateStatus(raceState, 135));
+    assertTrue(checkpoint1.updateStatus(raceState, 140));
+    assertTrue(checkpoint2.updateStatus(raceState, 150));
+    assertTrue(finish.updateStatus(raceState, 160));
+
+    assertEquals(RaceStatus.Event.FINISH, raceState.getEvent());
+    assertEquals(RaceStatus.State.INACTIVE, raceState.getState());
+    assertEquals(160, raceState.getFinishTime());
+    CurrentRaceStatus status = raceState.toCurrentRaceStatus();
+    assertArrayEquals(new long[]{110, 120, 130, 140, 150, 160}, status.getPassageTimes());
+    assertEquals(Long.valueOf(150), status.getSplitTime());
+  }
+
+  @Test
+  public void missedCheckpointDisqualifiesAtFinishLine() {
+    assertTrue(start.updateStatus(raceState, 100));
+    assertTrue(checkpoint1.updateStatus(raceState, 110));
+    assertFalse(start.updateStatus(raceState, 115));
+    assertTrue(finish.updateStatus(raceState, 130));
+
+    assertEquals(RaceStatus.Event.DISQUALIFIED, raceState.getEvent());
+    assertEquals(RaceStatus.State.INACTIVE, raceState.getState());
+    assertEquals(1, raceState.getPassages());
+  }
+
+  @Test
+  public void passagesOnTheClockOfTheStartKeepTheirNanos() {
+    raceState.setSensorClock(42, 1_000_000_000L);
+    assertTrue(start.updateStatus(raceState, 100));
+    raceState.setSensorClock(42, 1_010_000_123L);
+    assertTrue(checkpoint1.updateStatus(raceState, 110));
+
+    CurrentRaceStatus status = raceState.toCurrentRaceStatus();
+    assertEquals(Long.valueOf(42), status.getClockEpoch());
+    assertEquals(Long.valueOf(1_000_000_000L), status.getStartNanos());
+    assertArrayEquals(new long[]{1_010_000_123L}, status.getPassageNanos());
+
+    RaceState restored = new RaceState(new Course(2, 2));
+    restored.copyFrom(status);
+    assertEquals(1_010_000_123L, restored.getPassageNanos(0));
+
+    restored.setSensorClock(7, 1_020_000_000L);
+    assertTrue(checkpoint2.updateStatus(restored, 120));
+    assertEquals(RaceState.NOT_SET, restored.getPassageNanos(0));
+    assertNull(restored.toCurrentRaceStatus().getPassageNanos());
+  }
+
+  @Test
+  public void passagesWithoutClockFallBackToMillis() {
+    assertTrue(start.updateStatus(raceState, 100));
+    raceState.setSensorClock(42, 1_010_000_000L);
+    assertTrue(checkpoint1.updateStatus(raceState, 110));
+
+    CurrentRaceStatus status = raceState.toCurrentRaceStatus();
+    assertNull(status.getClockEpoch());
+    assertNull(status.getPassageNanos());
+    assertArrayEquals(new long[]{110}, status.getPassageTimes());
+  }
+
+  @Test
+  public void legacyStatusWithSingleSplitIsRestored() {
+    raceState.copyFrom(CurrentRaceStatus.builder()
+      .state(RaceStatus.State.ACTIVE)
+      .event(RaceStatus.Event.SPLIT)
+      .startTime(100L)
+      .splitTime(110L)
+      .build());
+
+    assertEquals(1, raceState.getPassages());
+    assertFalse(checkpoint1.updateStatus(raceState, 111));
+    assertTrue(checkpoint2.updateStatus(raceState, 120));
+  }
+
+  @Test
+  public void startIsRecordedOnTheRaceClock() {
+    VirtualRaceClock clock = new VirtualRaceClock(5000, 0);
+    raceState = new RaceState(new Course(1, 1), clock);
+    raceState.setState(RaceStatus.State.ACTIVE);
+    raceState.setEvent(RaceStatus.Event.NONE);
+    raceState.setRaceActivatedTime(1000);
+
+    assertTrue(start.updateStatus(raceState, 4000));
+    assertEquals(5000, raceState.getLocalStartTime());
+    assertEquals(clock.nanoTime(), raceState.getLocalStartNanos());
+  }
+}
@@ -0,0 +1,69 @@
+package se.cag.labs.currentrace.time;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualRaceClockTest {
+  private static final long START = 1000000;
+
+  @Test
+  public void stoppedClockOnlyMovesWhenAdvanced() throws InterruptedException {
+    VirtualRaceClock clock = new VirtualRaceClock(START, 0);
+    long nanos = clock.nanoTime();
+    Thread.sleep(20);
+    assertEquals(START, clock.millis());
+    assertEquals(nanos, clock.nanoTime());
+
+    clock.advance(TimeUnit.MINUTES.toMillis(5));
+    assertEquals(START + TimeUnit.MINUTES.toMillis(5), clock.millis());
+    assertEquals(nanos + TimeUnit.MINUTES.toNanos(5), clock.nanoTime());
+  }
+
+  @Test
+  public void fastClockRunsAtItsSpeed() throws InterruptedException {
+    VirtualRaceClock clock = new VirtualRaceClock(START, 1000);
+    long realStart = System.nanoTime();
+    Thread.sleep(20);
+    long virtual = clock.millis() - START;
+    long real = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - realStart);
+    assertTrue("Virtual " + virtual + " ms in real " + real + " ms", virtual >= 20 * 1000 && virtual <= (real + 2) * 1000);
+
+    clock.setSpeed(0);
+    long stopped = clock.millis();
+    Thread.sleep(20);
+    assertEquals(stopped, clock.millis());
+  }
+
+  @Test
+  public void delaysAreScaledToRealTime() {
+    VirtualRaceClock clock = new VirtualRaceClock(START, 60);
+    assertEquals(1000, clock.toRealDelay(60 * 1000));
+    assertEquals(1, clock.toRealDelay(1));
+    assertEquals(0, clock.toRealDelay(-5));
+
+    clock.setSpeed(0);
+    assertTrue(clock.toRealDelay(1) >= TimeUnit.HOURS.toMillis(1));
+    assertEquals(0, clock.toRealDelay(0));
+  }
+
+  @Test
+  public void listenersAreCalledWhenTheClockJumps() {
+    VirtualRaceClock clock = new VirtualRaceClock(START, 1);
+    AtomicInteger jumps = new AtomicInteger();
+    clock.onJump(jumps::incrementAndGet);
+
+    clock.advance(1000);
+    clock.setSpeed(10);
+    assertEquals(2, jumps.get());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void clockDoesNotGoBack() {
+    new VirtualRaceClock(START, 1).advance(-1);
+  }
+}
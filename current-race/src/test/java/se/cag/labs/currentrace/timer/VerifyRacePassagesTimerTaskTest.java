@@ -0,0 +1,49 @@
+package se.cag.labs.currentrace.timer;
+
+import org.junit.Test;
+import se.cag.labs.currentrace.apicontroller.apimodel.RaceStatus;
+import se.cag.labs.currentrace.services.repository.datamodel.CurrentRaceStatus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VerifyRacePassagesTimerTaskTest {
+  private static final long TIME_LIMIT = VerifyRacePassagesTimerTask.TIME_LIMIT;
+
+  @Test
+  public void noDeadlineForInactiveRace() {
+    assertNull(VerifyRacePassagesTimerTask.nextDeadline(null));
+    assertNull(VerifyRacePassagesTimerTask.nextDeadline(CurrentRaceStatus.builder()
+      .state(RaceStatus.State.INACTIVE)
+      .raceActivatedTime(1000L)
+      .build()));
+  }
+
+  @Test
+  public void deadlineFollowsPendingTransition() {
+    CurrentRaceStatus status = CurrentRaceStatus.builder()
+      .state(RaceStatus.State.ACTIVE)
+      .raceActivatedTime(1000L)
+      .build();
+    assertEquals(Long.valueOf(1000L + TIME_LIMIT), VerifyRacePassagesTimerTask.nextDeadline(status));
+
+    status.setStartTime(2000L);
+    assertEquals(Long.valueOf(2000L + TIME_LIMIT), VerifyRacePassagesTimerTask.nextDeadline(status));
+
+    status.setSplitTime(3000L);
+    assertEquals(Long.valueOf(3000L + TIME_LIMIT), VerifyRacePassagesTimerTask.nextDeadline(status));
+
+    status.setFinishTime(4000L);
+    assertNull(VerifyRacePassagesTimerTask.nextDeadline(status));
+  }
+
+  @Test
+  public void splitWithoutStartUsesEarliestDeadline() {
+    CurrentRaceStatus status = CurrentRaceStatus.builder()
+      .state(RaceStatus.State.ACTIVE)
+      .raceActivatedTime(1000L)
+      .splitTime(5000L)
+      .build();
+    assertEquals(Long.valueOf(1000L + TIME_LIMIT), VerifyRacePassagesTimerTask.nextDeadline(status));
+  }
+}
@@ -0,0 +1,105 @@
+package se.cag.labs.currentrace.udp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.test.util.ReflectionTestUtils;
+import se.cag.labs.currentrace.services.LaneService;
+import se.cag.labs.currentrace.services.PassageDetectedService;
+import se.cag.labs.currentrace.services.sensors.RegisterSensorType;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UdpPassageListenerTest {
+  @Mock
+  private PassageDetectedService passageDetectedService;
+  private UdpPassageListener listener;
+  private UdpPassageClient client;
+
+  @Before
+  public void setup() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(passageDetectedService.passageDetected(anyString(), anyLong())).thenReturn(PassageDetectedService.ReturnStatus.ACCEPTED);
+
+    listener = new UdpPassageListener();
+    ReflectionTestUtils.setField(listener, "host", "localhost");
+    ReflectionTestUtils.setField(listener, "port", 0);
+    ReflectionTestUtils.setField(listener, "passageDetectedService", passageDetectedService);
+    LaneService laneService = new LaneService();
+    ReflectionTestUtils.setField(laneService, "laneIds", new String[]{LaneService.DEFAULT_LANE, "2"});
+    ReflectionTestUtils.setField(laneService, "laneSensors", new String[0]);
+    ReflectionTestUtils.setField(laneService, "checkpoints", 2);
+    ReflectionTestUtils.setField(laneService, "laps", 1);
+    laneService.init();
+    ReflectionTestUtils.setField(listener, "laneService", laneService);
+    listener.start();
+    client = new UdpPassageClient("localhost", listener.getLocalPort());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    listener.stop();
+  }
+
+  @Test
+  public void passageIsAppliedAndAcked() throws Exception {
+    assertEquals(PassageFrame.STATUS_ACCEPTED, client.send(RegisterSensorType.START, 1234));
+
+    verify(passageDetectedService).passageDetected("START", 1234);
+  }
+
+  @Test
+  public void extendedFrameAddressesLaneCheckpointAndSensorClock() throws Exception {
+    when(passageDetectedService.passageDetected(anyString(), anyString(), anyString(), anyLong(), anyLong(), anyLong()))
+      .thenReturn(PassageDetectedService.ReturnStatus.ACCEPTED);
+
+    assertEquals(PassageFrame.STATUS_ACCEPTED,
+      client.send(1, RegisterSensorType.SPLIT, 2, "pi-sensor-2", 1234, 42, 123456789));
+    assertEquals(PassageFrame.STATUS_ERROR,
+      client.send(2, RegisterSensorType.SPLIT, 2, "pi-sensor-2", 1235, 42, 123456790));
+    assertEquals(PassageFrame.STATUS_ERROR,
+      client.send(0, RegisterSensorType.SPLIT, 3, "pi-sensor-2", 1236, 42, 123456791));
+
+    verify(passageDetectedService).passageDetected("SPLIT2", "2", "pi-sensor-2", 1234, 42, 123456789);
+  }
+
+  @Test
+  public void retransmissionIsAckedWithoutBeingAppliedAgain() throws Exception {
+    client.send(1, RegisterSensorType.START, 1234);
+    when(passageDetectedService.passageDetected(anyString(), anyLong())).thenReturn(PassageDetectedService.ReturnStatus.IGNORED);
+
+    assertEquals(PassageFrame.STATUS_ACCEPTED, client.send(1, RegisterSensorType.START, 1234));
+
+    verify(passageDetectedService, times(1)).passageDetected("START", 1234);
+    assertEquals(1L, metric("currentrace.udp.duplicates"));
+  }
+
+  @Test
+  public void gapsAreCountedAsLostAndOldFramesAreStale() throws Exception {
+    client.send(1, RegisterSensorType.START, 1234);
+    client.send(5, RegisterSensorType.SPLIT, 12345);
+
+    assertEquals(PassageFrame.STATUS_STALE, client.send(3, RegisterSensorType.SPLIT, 12300));
+
+    verify(passageDetectedService, times(2)).passageDetected(anyString(), anyLong());
+    assertEquals(3L, metric("currentrace.udp.lost"));
+    assertEquals(1L, metric("currentrace.udp.stale"));
+  }
+
+  private Object metric(String name) {
+    return listener.metrics().stream()
+      .filter(metric -> metric.getName().equals(name))
+      .map(Metric::getValue)
+      .findFirst()
+      .orElse(null);
+  }
+}
@@ -28,13 +28,18 @@ public class LeaderBoardController {
   @RequestMapping(value = "/results", method = RequestMethod.POST)
   @ApiOperation(
     value = "Saves a new result to the leaderboard",
-    notes = "Saves a new result to the leaderboard.")
+    notes = "Saves a new result to the leaderboard. A result with an id is only saved once under that id.")
   @ApiResponses(value = {
     @ApiResponse(code = 201, message = "The results where saved successfully"),
   })
   public void newResult(@RequestBody UserResult userResult) {
     log.debug("POST /results:" + userResult);
-    repository.insert(userResult);
+    if (userResult.getId() == null) {
+      repository.insert(userResult);
+    } else {
+      // The id is the idempotency key of the sender, a result that is sent again replaces itself
+      repository.save(userResult);
+    }
   }
 
   @RequestMapping(value = "/results", method = RequestMethod.GET)
@@ -52,7 +57,7 @@ public class LeaderBoardController {
     return repository.findAll().stream()
         .filter(Objects::nonNull)
         .filter(r -> Objects.equals(r.getResult(), ResultType.FINISHED))
-        .sorted(comparingLong(UserResult::getTime))
+        .sorted(comparingLong(UserResult::getResultMicros))
         .collect(Collectors.toList());
   }
 
@@ -69,7 +74,7 @@ public class LeaderBoardController {
     log.debug("GET /resultsBy:" + user);
     return nonNull(user) ? repository.findAll().stream()
             .filter(r -> r.getUser().getUserId().equals(user.getUserId()))
-            .sorted((r1, r2) -> Long.compare(r1.getTime(), r2.getTime()))
+            .sorted(comparingLong(UserResult::getResultMicros))
             .collect(Collectors.toList()) : Collections.emptyList();
   }
 
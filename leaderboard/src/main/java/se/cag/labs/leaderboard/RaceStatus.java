@@ -17,6 +17,9 @@ public class RaceStatus {
   private Long startTime;
   private Long splitTime;
   private Long finishTime;
+  private long[] passageTimes;
+  private long[] sectorTimes;
+  private long[] elapsedMicros;
   private Long currentTime;
   public RaceStatus(User user) {
     this.user = user;
@@ -14,6 +14,16 @@ public class UserResult {
   private long created = System.currentTimeMillis();
   private User user;
   private long time;
+  private Long timeMicros;
   private long splitTime;
+  private long[] sectorTimes;
   private ResultType result;
+
+  /**
+   * @return the time in micros, measured on the sensor clock if it was, so results that tie on millis are ranked
+   */
+  @JsonIgnore
+  public long getResultMicros() {
+    return timeMicros != null ? timeMicros : time * 1000;
+  }
 }
@@ -0,0 +1,31 @@
+package se.cag.labs.pisensor.component;
+
+import com.pi4j.system.SystemInfo;
+import lombok.extern.log4j.Log4j;
+import org.springframework.stereotype.Component;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * The sensorId this pi registers with, used to match its passages to its clock on the server
+ */
+@Component
+@Log4j
+public class PiIdentity {
+
+    private final String sensorId = createSensorId();
+
+    public String getSensorId() {
+        return sensorId;
+    }
+
+    private static String createSensorId() {
+        try {
+            return "pi-sensor_" + SystemInfo.getSerial();
+        } catch (UnsupportedOperationException | IOException | InterruptedException e) {
+            log.warn("We are not running on a pi...");
+            return "pi-sensor";
+        }
+    }
+}
@@ -17,17 +17,25 @@ import se.cag.labs.pisensor.contract.SensorId;
 import se.cag.labs.pisensor.service.DroidRaceApiService;
 
 import java.io.IOException;
+import java.security.SecureRandom;
 
 
 @Component
 @Log4j
 public class RegisterSensorsComponent {
 
+    /**
+     * Identifies the origin of System.nanoTime() in this JVM, so the server only compares readings of the same clock
+     */
+    private final long clockEpoch = new SecureRandom().nextLong();
+
     private DroidRaceApiService droidRaceApiService;
+    private PiIdentity piIdentity;
 
     @Autowired
-    public RegisterSensorsComponent(DroidRaceApiService droidRaceApiService) {
+    public RegisterSensorsComponent(DroidRaceApiService droidRaceApiService, PiIdentity piIdentity) {
         this.droidRaceApiService = droidRaceApiService;
+        this.piIdentity = piIdentity;
     }
 
     /**
@@ -43,9 +51,10 @@ public class RegisterSensorsComponent {
             @Override
             public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
                 if (shouldSendEvent(event, sensorId)) {
+                    long nanoTime = System.nanoTime();
                     long timestamp = System.currentTimeMillis();
                     log.info(" --> CHANGE ON " + sensorId + " - TIME: " + timestamp);
-                    registerEvent(sensorId, timestamp);
+                    registerEvent(sensorId, timestamp, nanoTime);
                 }
             }
         });
@@ -56,10 +65,11 @@ public class RegisterSensorsComponent {
      *
      * @param sensorId  the sensor that was triggered
      * @param timestamp the timestamp for when it was triggered
+     * @param nanoTime  the monotonic clock when it was triggered, used for elapsed times
      */
-    private void registerEvent(SensorId sensorId, long timestamp) {
+    private void registerEvent(SensorId sensorId, long timestamp, long nanoTime) {
         try {
-            Call<Void> call = droidRaceApiService.registerSensorEvent(sensorId, timestamp);
+            Call<Void> call = droidRaceApiService.registerSensorEvent(sensorId, timestamp, clockEpoch, nanoTime, piIdentity.getSensorId());
             Response<Void> response = call.execute();
 
             if (!response.isSuccessful()) {
@@ -0,0 +1,24 @@
+package se.cag.labs.pisensor.contract;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+/**
+ * A time sync request, carrying the four timestamps of the previous exchange if there was one
+ */
+@Data
+@NoArgsConstructor
+@Builder
+@AllArgsConstructor
+public class TimeSync implements Serializable {
+    private String sensorId;
+    private long originateTime;
+    private Long lastOriginateTime;
+    private Long lastReceiveTime;
+    private Long lastTransmitTime;
+    private Long lastDestinationTime;
+}
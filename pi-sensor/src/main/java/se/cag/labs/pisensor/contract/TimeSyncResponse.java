@@ -0,0 +1,18 @@
+package se.cag.labs.pisensor.contract;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+@Data
+@NoArgsConstructor
+@Builder
+@AllArgsConstructor
+public class TimeSyncResponse implements Serializable {
+    private long originateTime;
+    private long receiveTime;
+    private long transmitTime;
+}
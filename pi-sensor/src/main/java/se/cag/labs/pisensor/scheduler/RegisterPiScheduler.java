@@ -1,17 +1,16 @@
 package se.cag.labs.pisensor.scheduler;
 
-import com.pi4j.system.SystemInfo;
 import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import retrofit2.Call;
 import retrofit2.Response;
+import se.cag.labs.pisensor.component.PiIdentity;
 import se.cag.labs.pisensor.contract.Pi;
 import se.cag.labs.pisensor.service.DroidRaceApiService;
 import se.cag.labs.pisensor.utils.NetworkUtils;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 
 @Component
@@ -19,10 +18,12 @@ import java.io.IOException;
 public class RegisterPiScheduler {
 
     private DroidRaceApiService droidRaceApiService;
+    private PiIdentity piIdentity;
 
     @Autowired
-    public RegisterPiScheduler(DroidRaceApiService droidRaceApiService) {
+    public RegisterPiScheduler(DroidRaceApiService droidRaceApiService, PiIdentity piIdentity) {
         this.droidRaceApiService = droidRaceApiService;
+        this.piIdentity = piIdentity;
     }
 
     @Scheduled(fixedRate = 30000)
@@ -41,11 +42,6 @@ public class RegisterPiScheduler {
     }
 
     private Pi createPiData() throws IOException, InterruptedException {
-        try {
-            return new Pi("pi-sensor_" + SystemInfo.getSerial(), NetworkUtils.getIpAddress());
-        } catch (UnsupportedOperationException | FileNotFoundException e) {
-            log.warn("We are not running on a pi...");
-            return new Pi("pi-sensor", NetworkUtils.getIpAddress());
-        }
+        return new Pi(piIdentity.getSensorId(), NetworkUtils.getIpAddress());
     }
 }
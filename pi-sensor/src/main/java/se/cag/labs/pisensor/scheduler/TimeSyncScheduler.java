@@ -0,0 +1,63 @@
+package se.cag.labs.pisensor.scheduler;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import retrofit2.Response;
+import se.cag.labs.pisensor.component.PiIdentity;
+import se.cag.labs.pisensor.contract.TimeSync;
+import se.cag.labs.pisensor.contract.TimeSyncResponse;
+import se.cag.labs.pisensor.service.DroidRaceApiService;
+
+import java.io.IOException;
+
+/**
+ * Exchanges timestamps with the server so it can estimate the offset and drift of our clock. Each request
+ * carries the timestamps of the previous exchange, so one request per exchange is enough.
+ */
+@Component
+@Log4j
+public class TimeSyncScheduler {
+
+    private DroidRaceApiService droidRaceApiService;
+    private PiIdentity piIdentity;
+    private TimeSync lastExchange;
+
+    @Autowired
+    public TimeSyncScheduler(DroidRaceApiService droidRaceApiService, PiIdentity piIdentity) {
+        this.droidRaceApiService = droidRaceApiService;
+        this.piIdentity = piIdentity;
+    }
+
+    @Scheduled(fixedRate = 10000)
+    public void timeSync() {
+        TimeSync.TimeSyncBuilder request = TimeSync.builder().sensorId(piIdentity.getSensorId());
+        if (lastExchange != null) {
+            request.lastOriginateTime(lastExchange.getLastOriginateTime())
+                    .lastReceiveTime(lastExchange.getLastReceiveTime())
+                    .lastTransmitTime(lastExchange.getLastTransmitTime())
+                    .lastDestinationTime(lastExchange.getLastDestinationTime());
+        }
+        lastExchange = null;
+
+        try {
+            long originateTime = System.currentTimeMillis();
+            Response<TimeSyncResponse> response = droidRaceApiService.timeSync(request.originateTime(originateTime).build()).execute();
+            long destinationTime = System.currentTimeMillis();
+
+            if (!response.isSuccessful()) {
+                log.error("Couldn't sync time, got: " + response.code() + " - " + response.message());
+            } else if (response.body().getOriginateTime() == originateTime) {
+                lastExchange = TimeSync.builder()
+                        .lastOriginateTime(originateTime)
+                        .lastReceiveTime(response.body().getReceiveTime())
+                        .lastTransmitTime(response.body().getTransmitTime())
+                        .lastDestinationTime(destinationTime)
+                        .build();
+            }
+        } catch (IOException e) {
+            log.error("Couldn't sync time", e);
+        }
+    }
+}
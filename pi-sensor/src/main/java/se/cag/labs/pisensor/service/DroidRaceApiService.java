@@ -7,6 +7,8 @@ import retrofit2.http.POST;
 import retrofit2.http.Query;
 import se.cag.labs.pisensor.contract.Pi;
 import se.cag.labs.pisensor.contract.SensorId;
+import se.cag.labs.pisensor.contract.TimeSync;
+import se.cag.labs.pisensor.contract.TimeSyncResponse;
 
 public interface DroidRaceApiService {
     @POST("registerSensor")
@@ -19,5 +21,16 @@ public interface DroidRaceApiService {
             @Query("sensorID")
             SensorId sensorId,
             @Query("timestamp")
-            long timestamp);
+            long timestamp,
+            @Query("clockEpoch")
+            long clockEpoch,
+            @Query("nanoTime")
+            long nanoTime,
+            @Query("controllerId")
+            String controllerId);
+
+    @POST("timeSync")
+    Call<TimeSyncResponse> timeSync(
+            @Body
+            TimeSync timeSync);
 }
\ No newline at end of file
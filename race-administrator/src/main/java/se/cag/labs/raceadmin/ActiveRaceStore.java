@@ -0,0 +1,124 @@
+package se.cag.labs.raceadmin;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The status of the active race and of the last race that ended.
+ * <br>
+ * Both are kept in memory, so the status updates from current-race never wait for MongoDB. MongoDB is only
+ * written behind, in order on a single thread, and read when the service starts. Callers get copies.
+ */
+@Component
+@Log4j
+public class ActiveRaceStore {
+  @Autowired
+  private ActiveRaceRepository activeRaceRepository;
+  @Autowired
+  private LastRaceRepository lastRaceRepository;
+
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "ActiveRaceWriter");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private RaceStatus active;
+  private RaceStatus last;
+
+  @PostConstruct
+  public synchronized void rehydrate() {
+    active = activeRaceRepository.findAll().stream().findFirst().orElse(null);
+    last = lastRaceRepository.findAll().stream()
+      .filter(status -> status instanceof RaceStatus)
+      .map(status -> (RaceStatus) status)
+      .findFirst()
+      .orElse(null);
+    log.info("Loaded active race: " + active);
+  }
+
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    writer.shutdown();
+    if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+      log.error("Race status not written to the database");
+    }
+  }
+
+  /**
+   * @return a copy of the active race, or null if no race is active
+   */
+  public synchronized RaceStatus active() {
+    return active == null ? null : active.copy();
+  }
+
+  /**
+   * @return a copy of the last race that ended, or null if none has
+   */
+  public synchronized RaceStatus last() {
+    return last == null ? null : last.copy();
+  }
+
+  /**
+   * Makes a race of the user the active race.
+   */
+  public synchronized void start(User user) {
+    active = new RaceStatus(user);
+    replaceActive(active.copy());
+  }
+
+  /**
+   * Takes the progress of the active race from a status reported by current-race.
+   */
+  public synchronized void update(RaceStatus status) {
+    if (active == null) {
+      return;
+    }
+    active.setEvent(status.getEvent());
+    active.setState(status.getState());
+    active.setStartTime(status.getStartTime());
+    active.setSplitTime(status.getSplitTime());
+    active.setFinishTime(status.getFinishTime());
+    active.setPassageTimes(status.getPassageTimes());
+    active.setSectorTimes(status.getSectorTimes());
+    active.setElapsedMicros(status.getElapsedMicros());
+    replaceActive(active.copy());
+  }
+
+  /**
+   * Ends the active race with the status reported by current-race, which becomes the last race.
+   */
+  public synchronized void finish(RaceStatus status) {
+    active = null;
+    last = status.copy();
+    RaceStatus stored = status.copy();
+    write(() -> {
+      lastRaceRepository.deleteAll();
+      lastRaceRepository.save(stored);
+      activeRaceRepository.deleteAll();
+    });
+  }
+
+  private void replaceActive(RaceStatus stored) {
+    write(() -> {
+      activeRaceRepository.deleteAll();
+      activeRaceRepository.save(stored);
+    });
+  }
+
+  private void write(Runnable change) {
+    writer.execute(() -> {
+      try {
+        change.run();
+      } catch (RuntimeException e) {
+        log.error("Could not write race status to the database", e);
+      }
+    });
+  }
+}
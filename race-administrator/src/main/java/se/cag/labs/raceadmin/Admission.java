@@ -0,0 +1,20 @@
+package se.cag.labs.raceadmin;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Value;
+
+/**
+ * The outcome of registering for a race.
+ */
+@Value
+public class Admission {
+  /**
+   * The place of the user in the queue, 0 if the user is racing
+   */
+  private final int position;
+  /**
+   * The user whose race should be started, when the registration found no race running, otherwise null
+   */
+  @JsonIgnore
+  private final User start;
+}
@@ -0,0 +1,49 @@
+package se.cag.labs.raceadmin;
+
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The data of a QUEUE_UPDATED event: how the queue changed up to a version. The users in removed leave the
+ * queue first, then the users in added join it at the end, in order. The estimate predicts when the users in
+ * the queue race after the change.
+ */
+@Value
+public class QueueDelta {
+  private final long version;
+  private final List<User> added;
+  private final List<String> removed;
+  private final WaitEstimate estimate;
+
+  public static QueueDelta added(long version, User user, WaitEstimate estimate) {
+    return new QueueDelta(version, Collections.singletonList(user), Collections.emptyList(), estimate);
+  }
+
+  public static QueueDelta removed(long version, User user, WaitEstimate estimate) {
+    return new QueueDelta(version, Collections.emptyList(), Collections.singletonList(user.getUserId()), estimate);
+  }
+
+  /**
+   * @return one delta with the changes of this delta followed by the changes of the next
+   */
+  public QueueDelta then(QueueDelta next) {
+    Map<String, User> joined = new LinkedHashMap<>();
+    added.forEach(user -> joined.put(user.getUserId(), user));
+    Set<String> left = new LinkedHashSet<>(removed);
+    for (String userId : next.removed) {
+      if (joined.remove(userId) == null) {
+        left.add(userId);
+      }
+    }
+    next.added.forEach(user -> joined.put(user.getUserId(), user));
+    return new QueueDelta(Math.max(version, next.version), new ArrayList<>(joined.values()), new ArrayList<>(left),
+      next.estimate);
+  }
+}
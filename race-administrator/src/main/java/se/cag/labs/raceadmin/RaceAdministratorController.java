@@ -7,12 +7,12 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.client.*;
+import se.cag.labs.raceadmin.outbox.Outbox;
 import se.cag.labs.raceadmin.peerservices.*;
 
+import java.time.Clock;
 import java.util.*;
 
-import static java.util.stream.Collectors.*;
-
 @Log4j
 @RestController
 @Api(basePath = "*",
@@ -22,45 +22,34 @@ import static java.util.stream.Collectors.*;
 @CrossOrigin(origins = "*", methods = {RequestMethod.GET, RequestMethod.POST, RequestMethod.PUT, RequestMethod.DELETE})
 public class RaceAdministratorController {
   @Autowired
-  private UserQueueRepository userQueueRepository;
-  @Autowired
-  private ActiveRaceRepository activeRaceRepository;
-  @Autowired
-  private LastRaceRepository lastRaceRepository;
+  private UserQueue userQueue;
   @Autowired
-  private LeaderBoardService leaderBoardService;
+  private ActiveRaceStore activeRaceStore;
   @Autowired
   private CurrentRaceService currentRaceService;
   @Autowired
-  private ClientApiService clientApiService;
+  private Outbox outbox;
+  @Autowired
+  private Clock clock;
 
   private RestTemplate restTemplate = new RestTemplate();
 
   @RequestMapping(value = "/userqueue", method = RequestMethod.POST)
   @ApiOperation(value = "Registers a user as a competitor in a race.")
   @ApiResponses(value = {
-    @ApiResponse(code = 201, message = "User is registered for race.")
+    @ApiResponse(code = 200, message = "User is registered for race, with its place in the queue."),
+    @ApiResponse(code = 204, message = "User is already queued or racing.")
   })
-  public void registerForRace(@RequestBody User user) {
+  public ResponseEntity<Admission> registerForRace(@RequestBody User user) {
     log.debug("POST /userqueue:" + user);
-    user.setTimestamp(System.currentTimeMillis());
-    boolean userIsTheActiveRace = activeRaceRepository.findAll().stream()
-      .map(RaceStatus::getUser)
-      .filter(u -> u != null)
-      .filter(u -> Objects.equals(u.getUserId(), user.getUserId()))
-      .findFirst()
-      .isPresent();
-    boolean userIsAlreadyEnqueued = userQueueRepository.findUserByUserId(user.getUserId()) != null;
-    if (userIsAlreadyEnqueued || userIsTheActiveRace) {
-      return;
+    user.setTimestamp(clock.millis());
+    Admission admission = userQueue.admit(user);
+    if (admission == null) {
+      return new ResponseEntity<>(HttpStatus.NO_CONTENT);
     }
-    userQueueRepository.save(user);
-
-    clientApiService.sendEvent(Event.builder().eventType("QUEUE_UPDATED").data(user).build());
 
-    if (userQueueRepository.count() == 1 && activeRaceRepository.count() == 0) {
-      startNextRace();
-    }
+    startRace(admission.getStart());
+    return new ResponseEntity<>(admission, HttpStatus.OK);
   }
 
   @RequestMapping(value = "/userqueue", method = RequestMethod.GET)
@@ -68,9 +57,20 @@ public class RaceAdministratorController {
   @ApiResponses(value = {
     @ApiResponse(code = 200, message = "The queued users.")
   })
-  public Queue<User> getQueue() {
+  public List<User> getQueue() {
     log.debug("GET /userqueue");
-    return sortedQueue();
+    return userQueue.list();
+  }
+
+  @RequestMapping(value = "/userqueue/predictions", method = RequestMethod.GET)
+  @ApiOperation(value = "Get when the queued users are predicted to race.",
+    notes = "The prediction is based on the durations of recent races. It also comes with every QUEUE_UPDATED event.")
+  @ApiResponses(value = {
+    @ApiResponse(code = 200, message = "The place and predicted start time of each queued user, in queue order.")
+  })
+  public List<WaitTime> getPredictions() {
+    log.debug("GET /userqueue/predictions");
+    return userQueue.predictions();
   }
 
   @RequestMapping(value = "/userqueue", method = RequestMethod.DELETE)
@@ -80,16 +80,14 @@ public class RaceAdministratorController {
   })
   public void unregisterForRace(@RequestBody User user) {
     log.debug("DELETE /userqueue:" + user);
-    final User existingUser = userQueueRepository.findUserByUserId(user.getUserId());
-    userQueueRepository.delete(existingUser.getId());
-    clientApiService.sendEvent(Event.builder().eventType("QUEUE_UPDATED").data(user).build());
+    userQueue.remove(user.getUserId());
   }
 
   @RequestMapping(value="/currentrace")
   @ApiOperation(value = "Gets the status of the active race")
   public RaceStatus getCurrentRaceStatus() {
     RaceStatus currentRaceStatus = currentRaceService.status();
-    Optional<RaceStatus> maybeActiveRace = activeRaceRepository.findAll().stream().findFirst();
+    Optional<RaceStatus> maybeActiveRace = Optional.ofNullable(activeRaceStore.active());
     return maybeActiveRace
       .map(rs -> {rs.setCurrentTime(currentRaceStatus.getCurrentTime());return rs;})
       .orElse(new RaceStatus(null));
@@ -98,8 +96,8 @@ public class RaceAdministratorController {
   @RequestMapping(value="/lastrace")
   @ApiOperation(value="Gets the status of the last race")
   public RaceStatus getLastRaceStatus() {
-    Optional<LastRaceStatus> maybeLastRace = lastRaceRepository.findAll().stream().findFirst();
-    return (RaceStatus) maybeLastRace.orElse(new RaceStatus(null));
+    Optional<RaceStatus> maybeLastRace = Optional.ofNullable(activeRaceStore.last());
+    return maybeLastRace.orElse(new RaceStatus(null));
   }
 
   @RequestMapping(value = "/on-race-status-update", method = RequestMethod.POST)
@@ -108,37 +106,34 @@ public class RaceAdministratorController {
     // TODO kontrollera att användaren finns och är aktiv
     // TODO ersätt med en builder?
     log.debug("on-race-status-update:" + status);
-    Optional<RaceStatus> maybeActiveRace = activeRaceRepository.findAll().stream().findFirst();
+    Optional<RaceStatus> maybeActiveRace = Optional.ofNullable(activeRaceStore.active());
     if (maybeActiveRace.isPresent()) {
       RaceStatus activeRaceStatus = maybeActiveRace.get();
       status.setUser(activeRaceStatus.getUser());
-      clientApiService.sendEvent(Event.builder().eventType("CURRENT_RACE_STATUS").data(status).build());
+      outbox.sendEvent(Event.builder().eventType("CURRENT_RACE_STATUS").data(status).build());
       if (status.getState() == RaceStatus.RaceState.INACTIVE) {
         UserResult userResult = new UserResult();
+        userResult.setCreated(clock.millis());
         userResult.setUser(activeRaceStatus.getUser());
         if (status.getEvent() == RaceStatus.RaceEvent.FINISH) {
           userResult.setTime(status.getFinishTime() - status.getStartTime());
-          userResult.setSplitTime(status.getSplitTime() - status.getStartTime());
+          userResult.setSplitTime(splitTime(status));
+          userResult.setSectorTimes(status.getSectorTimes());
+          if (status.getElapsedMicros() != null && status.getElapsedMicros().length > 0) {
+            userResult.setTimeMicros(status.getElapsedMicros()[status.getElapsedMicros().length - 1]);
+          }
           userResult.setResult(UserResult.ResultType.FINISHED);
         } else if (status.getEvent() == RaceStatus.RaceEvent.TIME_OUT_NOT_STARTED) {
           userResult.setResult(UserResult.ResultType.WALKOVER);
         } else {
           userResult.setResult(UserResult.ResultType.DISQUALIFIED);
         }
-        clientApiService.sendEvent(Event.builder().eventType("NEW_RESULT").data(userResult).build());
-        leaderBoardService.newResult(userResult);
-        lastRaceRepository.deleteAll();
-        lastRaceRepository.save(status);
-
-        activeRaceRepository.delete(activeRaceStatus.getId());
-        startNextRace();
+        outbox.newResult(userResult);
+        outbox.sendEvent(Event.builder().eventType("NEW_RESULT").data(userResult).build());
+        activeRaceStore.finish(status);
+        startRace(userQueue.next(activeRaceStatus.getUser(), status.getEvent()));
       } else {
-        activeRaceStatus.setEvent(status.getEvent());
-        activeRaceStatus.setState(status.getState());
-        activeRaceStatus.setStartTime(status.getStartTime());
-        activeRaceStatus.setSplitTime(status.getSplitTime());
-        activeRaceStatus.setFinishTime(status.getFinishTime());
-        activeRaceRepository.save(activeRaceStatus);
+        activeRaceStore.update(status);
       }
     }
   }
@@ -150,13 +145,10 @@ public class RaceAdministratorController {
     currentRaceService.cancelRace();
   }
 
-  private void startNextRace() {
-    User user = sortedQueue().poll();
+  private void startRace(User user) {
     if (user != null) {
-      activeRaceRepository.save(new RaceStatus(user));
-      currentRaceService.startRace();
-      userQueueRepository.delete(user.getId());
-      clientApiService.sendEvent(Event.builder().eventType("QUEUE_UPDATED").data(user).build());
+      activeRaceStore.start(user);
+      outbox.startRace();
     }
   }
 
@@ -166,11 +158,15 @@ public class RaceAdministratorController {
     return new ResponseEntity(HttpStatus.OK);
   }
 
-  private Queue<User> sortedQueue() {
-    return new ArrayDeque<>(
-      userQueueRepository.findAll().stream()
-        .sorted((a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()))
-        .collect(toList())
-    );
+  /**
+   * @return the time to the first passage after the start, from the sector times if current-race sent no split,
+   * or 0 if the finish was the only passage
+   */
+  private static long splitTime(RaceStatus status) {
+    if (status.getSplitTime() != null) {
+      return status.getSplitTime() - status.getStartTime();
+    }
+    long[] sectorTimes = status.getSectorTimes();
+    return sectorTimes != null && sectorTimes.length > 1 ? sectorTimes[0] : 0;
   }
 }
@@ -0,0 +1,161 @@
+package se.cag.labs.raceadmin;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How long recent races took, from the hand-off to the racer until the race was reported INACTIVE, in total
+ * and per outcome. Predictions are made from the finished races only, once there are any, so that walkovers
+ * and disqualifications do not pull the expected race down.
+ * <br>
+ * Every race adds a sample and makes the earlier ones count less, so that a sample counts half after
+ * raceadmin.waittime.half-life more races. The statistics are a decayed mean and a decayed histogram with
+ * buckets that grow by 10 %, which gives quantiles within 5 % in constant space.
+ */
+@Component
+public class RaceDurations implements PublicMetrics {
+  private static final double MIN_MILLIS = 1000;
+  private static final double GROWTH = 1.1;
+  // Up to about four hours
+  private static final int BUCKETS = 100;
+
+  @Value("${raceadmin.waittime.half-life:20}")
+  private double halfLife;
+  @Value("${raceadmin.waittime.default-race:60000}")
+  private long defaultRace;
+
+  private final Stats all = new Stats();
+  private final Map<RaceStatus.RaceEvent, Stats> byOutcome = new EnumMap<>(RaceStatus.RaceEvent.class);
+  private long races;
+
+  /**
+   * @param outcome the event the race ended with, or null if it is not known
+   */
+  public synchronized void add(RaceStatus.RaceEvent outcome, long millis) {
+    double decay = Math.pow(0.5, 1 / halfLife);
+    all.decay(decay);
+    byOutcome.values().forEach(stats -> stats.decay(decay));
+    all.add(millis);
+    if (outcome != null) {
+      byOutcome.computeIfAbsent(outcome, key -> new Stats()).add(millis);
+    }
+    races++;
+  }
+
+  /**
+   * @return the expected duration of a race in millis
+   */
+  public synchronized long expected() {
+    Stats stats = predicting();
+    return stats.weight == 0 ? defaultRace : Math.round(stats.mean);
+  }
+
+  /**
+   * @return the median of the millis left of a race that has run for the given millis
+   */
+  public synchronized long remaining(long elapsed) {
+    Stats stats = predicting();
+    if (stats.weight == 0) {
+      return Math.max(0, defaultRace - elapsed);
+    }
+    return Math.round(stats.medianAbove(elapsed));
+  }
+
+  /**
+   * @return the finished races, or all races until one has finished
+   */
+  private Stats predicting() {
+    Stats finished = byOutcome.get(RaceStatus.RaceEvent.FINISH);
+    return finished == null || finished.weight == 0 ? all : finished;
+  }
+
+  @Override
+  public synchronized Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("raceadmin.waittime.races", races));
+    metrics.add(new Metric<>("raceadmin.waittime.expected", expected()));
+    if (all.weight > 0) {
+      metrics.add(new Metric<>("raceadmin.waittime.p50", Math.round(all.quantile(0.5))));
+      metrics.add(new Metric<>("raceadmin.waittime.p90", Math.round(all.quantile(0.9))));
+    }
+    byOutcome.forEach((outcome, stats) ->
+      metrics.add(new Metric<>("raceadmin.waittime." + outcome.name().toLowerCase() + ".mean", Math.round(stats.mean))));
+    return metrics;
+  }
+
+  private static int bucketOf(double millis) {
+    if (millis <= MIN_MILLIS) {
+      return 0;
+    }
+    return (int) Math.min(BUCKETS - 1, Math.ceil(Math.log(millis / MIN_MILLIS) / Math.log(GROWTH)));
+  }
+
+  /**
+   * @return the middle of the bucket, between its lower and upper bound
+   */
+  private static double valueOf(int bucket) {
+    return bucket == 0 ? MIN_MILLIS : MIN_MILLIS * Math.pow(GROWTH, bucket - 0.5);
+  }
+
+  private static final class Stats {
+    private final double[] buckets = new double[BUCKETS];
+    private double weight;
+    private double mean;
+
+    void decay(double decay) {
+      weight *= decay;
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] *= decay;
+      }
+    }
+
+    void add(double millis) {
+      weight += 1;
+      mean += (millis - mean) / weight;
+      buckets[bucketOf(millis)] += 1;
+    }
+
+    double quantile(double q) {
+      double rank = q * weight;
+      double seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          return valueOf(i);
+        }
+      }
+      return valueOf(BUCKETS - 1);
+    }
+
+    /**
+     * @return the median of the samples longer than the given millis, less the millis, or 0 if there are none
+     */
+    double medianAbove(double millis) {
+      int first = bucketOf(millis);
+      double above = 0;
+      for (int i = first; i < BUCKETS; i++) {
+        if (valueOf(i) > millis) {
+          above += buckets[i];
+        }
+      }
+      double seen = 0;
+      for (int i = first; i < BUCKETS; i++) {
+        if (valueOf(i) > millis) {
+          seen += buckets[i];
+          if (above > 0 && seen >= above / 2) {
+            return valueOf(i) - millis;
+          }
+        }
+      }
+      return 0;
+    }
+  }
+}
@@ -20,10 +20,32 @@ public class RaceStatus implements LastRaceStatus {
   private Long startTime;
   private Long splitTime;
   private Long finishTime;
+  private long[] passageTimes;
+  private long[] sectorTimes;
+  private long[] elapsedMicros;
   private Long currentTime;
   public RaceStatus(User user) {
     this.user = user;
   }
+
+  /**
+   * @return a copy that shares the user and the time arrays, which are never changed in place
+   */
+  public RaceStatus copy() {
+    RaceStatus copy = new RaceStatus(user);
+    copy.id = id;
+    copy.event = event;
+    copy.state = state;
+    copy.startTime = startTime;
+    copy.splitTime = splitTime;
+    copy.finishTime = finishTime;
+    copy.passageTimes = passageTimes;
+    copy.sectorTimes = sectorTimes;
+    copy.elapsedMicros = elapsedMicros;
+    copy.currentTime = currentTime;
+    return copy;
+  }
+
   public enum RaceState {
     ACTIVE, INACTIVE, UNVERIFIED
   }
@@ -0,0 +1,181 @@
+package se.cag.labs.raceadmin;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A sorted set that knows the place of each element. It is a treap where every node counts the nodes under it,
+ * so adding, removing and finding the place of an element are O(log n) expected. Not thread safe, and it must
+ * not be changed while it is iterated.
+ */
+final class RankedSet<T> implements Iterable<T> {
+  private final Comparator<? super T> order;
+  private final Random random = new Random();
+  private Node<T> root;
+
+  RankedSet(Comparator<? super T> order) {
+    this.order = order;
+  }
+
+  int size() {
+    return size(root);
+  }
+
+  boolean isEmpty() {
+    return root == null;
+  }
+
+  T first() {
+    if (root == null) {
+      throw new NoSuchElementException();
+    }
+    Node<T> node = root;
+    while (node.left != null) {
+      node = node.left;
+    }
+    return node.value;
+  }
+
+  /**
+   * @return false if an equal element is already in the set
+   */
+  boolean add(T value) {
+    if (rank(value) != 0) {
+      return false;
+    }
+    Split<T> split = split(root, value, false);
+    root = merge(merge(split.left, new Node<>(value, random.nextInt())), split.right);
+    return true;
+  }
+
+  /**
+   * @return false if the element was not in the set
+   */
+  boolean remove(T value) {
+    Split<T> less = split(root, value, false);
+    Split<T> equal = split(less.right, value, true);
+    root = merge(less.left, equal.right);
+    return equal.left != null;
+  }
+
+  /**
+   * @return the place of the element counted from 1, or 0 if it is not in the set
+   */
+  int rank(T value) {
+    int before = 0;
+    Node<T> node = root;
+    while (node != null) {
+      int compared = order.compare(value, node.value);
+      if (compared < 0) {
+        node = node.left;
+      } else if (compared > 0) {
+        before += size(node.left) + 1;
+        node = node.right;
+      } else {
+        return before + size(node.left) + 1;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    Deque<Node<T>> path = new ArrayDeque<>();
+    for (Node<T> node = root; node != null; node = node.left) {
+      path.push(node);
+    }
+    return new Iterator<T>() {
+      @Override
+      public boolean hasNext() {
+        return !path.isEmpty();
+      }
+
+      @Override
+      public T next() {
+        if (path.isEmpty()) {
+          throw new NoSuchElementException();
+        }
+        Node<T> next = path.pop();
+        for (Node<T> node = next.right; node != null; node = node.left) {
+          path.push(node);
+        }
+        return next.value;
+      }
+    };
+  }
+
+  /**
+   * Splits the tree in the nodes before the value, and the value itself when inclusive, and the rest.
+   */
+  private Split<T> split(Node<T> node, T value, boolean inclusive) {
+    if (node == null) {
+      return new Split<>(null, null);
+    }
+    int compared = order.compare(node.value, value);
+    if (compared < 0 || inclusive && compared == 0) {
+      Split<T> split = split(node.right, value, inclusive);
+      node.right = split.left;
+      node.count();
+      return new Split<>(node, split.right);
+    }
+    Split<T> split = split(node.left, value, inclusive);
+    node.left = split.right;
+    node.count();
+    return new Split<>(split.left, node);
+  }
+
+  /**
+   * Joins two trees where every node of the first one comes before the nodes of the second one.
+   */
+  private static <T> Node<T> merge(Node<T> first, Node<T> second) {
+    if (first == null) {
+      return second;
+    }
+    if (second == null) {
+      return first;
+    }
+    if (first.priority > second.priority) {
+      first.right = merge(first.right, second);
+      first.count();
+      return first;
+    }
+    second.left = merge(first, second.left);
+    second.count();
+    return second;
+  }
+
+  private static int size(Node<?> node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static final class Node<T> {
+    private final T value;
+    private final int priority;
+    private Node<T> left;
+    private Node<T> right;
+    private int size = 1;
+
+    private Node(T value, int priority) {
+      this.value = value;
+      this.priority = priority;
+    }
+
+    private void count() {
+      size = size(left) + size(right) + 1;
+    }
+  }
+
+  private static final class Split<T> {
+    private final Node<T> left;
+    private final Node<T> right;
+
+    private Split(Node<T> left, Node<T> right) {
+      this.left = left;
+      this.right = right;
+    }
+  }
+}
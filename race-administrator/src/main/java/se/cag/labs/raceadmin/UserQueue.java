@@ -0,0 +1,247 @@
+package se.cag.labs.raceadmin;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import se.cag.labs.raceadmin.outbox.Outbox;
+import se.cag.labs.raceadmin.peerservices.Event;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The users waiting for a race, in the order they registered, and the user racing.
+ * <br>
+ * The queue is kept in memory, ordered by registration time in a {@link RankedSet} with an index on userId, so
+ * registering, polling and removing a user and finding its place is O(log n) and checking if a user is queued
+ * is O(1). Reads get a list that is built once
+ * per change. MongoDB is only written behind, in order on a single thread, and read when the service starts.
+ * <br>
+ * Admission and the hand-off to the next race are decided under the same lock, so each race is started by
+ * exactly one caller however many users register at once. Every change of the queue bumps its version and is
+ * published to the clients as a QUEUE_UPDATED event with a {@link QueueDelta}, in the order of the versions.
+ * <br>
+ * The durations of the races are added to {@link RaceDurations}, which predicts when the queued users race.
+ * The prediction goes along with every QUEUE_UPDATED event, so clients need not poll for it.
+ */
+@Component
+@Log4j
+public class UserQueue {
+  public static final String QUEUE_UPDATED = "QUEUE_UPDATED";
+  private static final Comparator<Queued> ORDER = Comparator
+    .comparingLong((Queued queued) -> queued.timestamp)
+    .thenComparingLong(queued -> queued.sequence);
+
+  @Autowired
+  private UserQueueRepository userQueueRepository;
+  @Autowired
+  private ActiveRaceRepository activeRaceRepository;
+  @Autowired
+  private Outbox outbox;
+  @Autowired
+  private RaceDurations raceDurations;
+  @Autowired
+  private Clock clock;
+
+  private final RankedSet<Queued> queue = new RankedSet<>(ORDER);
+  private final Map<String, Queued> byUserId = new HashMap<>();
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "UserQueueWriter");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private long sequence;
+  private List<User> view = Collections.emptyList();
+  private boolean viewStale;
+  private User racing;
+  // When the race was handed to the racer, 0 if the service restarted since
+  private long racingSince;
+  private long version;
+
+  @PostConstruct
+  public synchronized void rehydrate() {
+    List<User> stored = new ArrayList<>(userQueueRepository.findAll());
+    stored.sort(Comparator.comparingLong(UserQueue::timestampOf));
+    for (User user : stored) {
+      if (!enqueue(user)) {
+        log.info("Dropping duplicate registration of " + user.getUserId());
+        write(() -> userQueueRepository.delete(user.getId()));
+      }
+    }
+    racing = activeRaceRepository.findAll().stream()
+      .map(RaceStatus::getUser)
+      .filter(user -> user != null)
+      .findFirst()
+      .orElse(null);
+    log.info("Loaded " + queue.size() + " queued users, racing: " + racing);
+  }
+
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    writer.shutdown();
+    if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+      log.error("Queue changes not written to the database");
+    }
+  }
+
+  /**
+   * Queues the user unless it is already queued or racing. When no race is running the first user in the
+   * queue is taken to race, and the admission is the only one that gets that user to start.
+   *
+   * @return the place of the user in the queue, or null if it was already queued or racing
+   */
+  public synchronized Admission admit(User user) {
+    if (racing != null && Objects.equals(racing.getUserId(), user.getUserId())) {
+      return null;
+    }
+    if (!enqueue(user)) {
+      return null;
+    }
+    User stored = new User(null, user.getTimestamp(), user.getUserId(), user.getDisplayName());
+    write(() -> userQueueRepository.save(stored));
+    publish(QueueDelta.added(++version, user, estimate()));
+
+    User start = null;
+    if (racing == null) {
+      start = race(queue.first());
+    }
+    Queued queued = byUserId.get(user.getUserId());
+    return new Admission(queued == null ? 0 : queue.rank(queued), start);
+  }
+
+  /**
+   * Ends the race of the user and takes the first user in the queue to race. Nothing happens when the user is
+   * not racing, so a race that is reported to end twice only hands off once.
+   *
+   * @param outcome the event the race ended with
+   * @return the user whose race should be started, or null
+   */
+  public synchronized User next(User finished, RaceStatus.RaceEvent outcome) {
+    if (racing == null || finished == null || !Objects.equals(racing.getUserId(), finished.getUserId())) {
+      return null;
+    }
+    if (racingSince != 0) {
+      raceDurations.add(outcome, clock.millis() - racingSince);
+    }
+    racing = null;
+    return queue.isEmpty() ? null : race(queue.first());
+  }
+
+  /**
+   * @return when each queued user is predicted to race, in queue order
+   */
+  public synchronized List<WaitTime> predictions() {
+    WaitEstimate estimate = estimate();
+    List<WaitTime> predictions = new ArrayList<>(queue.size());
+    for (Queued queued : queue) {
+      int position = predictions.size() + 1;
+      predictions.add(new WaitTime(queued.user.getUserId(), position, estimate.predictedStart(position)));
+    }
+    return predictions;
+  }
+
+  /**
+   * Takes the queued user out of the queue to race.
+   */
+  private User race(Queued queued) {
+    queue.remove(queued);
+    byUserId.remove(queued.user.getUserId());
+    racing = queued.user;
+    racingSince = clock.millis();
+    removed(queued.user);
+    return racing;
+  }
+
+  private WaitEstimate estimate() {
+    long now = clock.millis();
+    long nextStart = now;
+    if (racing != null) {
+      nextStart += raceDurations.remaining(racingSince == 0 ? 0 : now - racingSince);
+    }
+    return new WaitEstimate(nextStart, raceDurations.expected());
+  }
+
+  /**
+   * @return the removed user, or null if it was not in the queue
+   */
+  public synchronized User remove(String userId) {
+    Queued queued = byUserId.remove(userId);
+    if (queued == null) {
+      return null;
+    }
+    queue.remove(queued);
+    removed(queued.user);
+    return queued.user;
+  }
+
+  /**
+   * @return the queued users in order, unmodifiable
+   */
+  public synchronized List<User> list() {
+    if (viewStale) {
+      List<User> users = new ArrayList<>(queue.size());
+      queue.forEach(queued -> users.add(queued.user));
+      view = Collections.unmodifiableList(users);
+      viewStale = false;
+    }
+    return view;
+  }
+
+  private boolean enqueue(User user) {
+    if (byUserId.containsKey(user.getUserId())) {
+      return false;
+    }
+    Queued queued = new Queued(user, timestampOf(user), sequence++);
+    queue.add(queued);
+    byUserId.put(user.getUserId(), queued);
+    viewStale = true;
+    return true;
+  }
+
+  private void removed(User user) {
+    viewStale = true;
+    publish(QueueDelta.removed(++version, user, estimate()));
+    write(() -> userQueueRepository.deleteByUserId(user.getUserId()));
+  }
+
+  private void publish(QueueDelta delta) {
+    outbox.sendEvent(Event.builder().eventType(QUEUE_UPDATED).data(delta).build());
+  }
+
+  private void write(Runnable change) {
+    writer.execute(() -> {
+      try {
+        change.run();
+      } catch (RuntimeException e) {
+        log.error("Could not write queue change to the database", e);
+      }
+    });
+  }
+
+  private static long timestampOf(User user) {
+    return user.getTimestamp() == null ? 0 : user.getTimestamp();
+  }
+
+  private static final class Queued {
+    private final User user;
+    private final long timestamp;
+    private final long sequence;
+
+    private Queued(User user, long timestamp, long sequence) {
+      this.user = user;
+      this.timestamp = timestamp;
+      this.sequence = sequence;
+    }
+  }
+}
@@ -6,4 +6,6 @@ import org.springframework.stereotype.*;
 @Repository
 public interface UserQueueRepository extends MongoRepository<User, String> {
   User findUserByUserId(final String userId);
+
+  Long deleteByUserId(final String userId);
 }
@@ -7,10 +7,16 @@ import lombok.*;
 @Builder
 @AllArgsConstructor
 public class UserResult {
+  /**
+   * Set when the result is sent to the leaderboard, which stores it under this id only once
+   */
+  private String id;
   private long created = System.currentTimeMillis();
   private User user;
   private long time;
+  private Long timeMicros;
   private long splitTime;
+  private long[] sectorTimes;
   private ResultType result;
 
   public enum ResultType {
@@ -0,0 +1,23 @@
+package se.cag.labs.raceadmin;
+
+import lombok.Value;
+
+/**
+ * The prediction of when the queued users race: the user at position p is predicted to start at
+ * nextStart + (p - 1) * raceMillis.
+ */
+@Value
+public class WaitEstimate {
+  /**
+   * When the first user in the queue is predicted to start, in millis since the epoch
+   */
+  private final long nextStart;
+  /**
+   * The expected duration of a race in millis
+   */
+  private final long raceMillis;
+
+  public long predictedStart(int position) {
+    return nextStart + (position - 1) * raceMillis;
+  }
+}
@@ -0,0 +1,19 @@
+package se.cag.labs.raceadmin;
+
+import lombok.Value;
+
+/**
+ * When a queued user is predicted to race.
+ */
+@Value
+public class WaitTime {
+  private final String userId;
+  /**
+   * The place in the queue, from 1
+   */
+  private final int position;
+  /**
+   * Millis since the epoch
+   */
+  private final long predictedStart;
+}
@@ -0,0 +1,68 @@
+package se.cag.labs.raceadmin.config;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import se.cag.labs.raceadmin.peerservices.CurrentRaceClock;
+import se.cag.labs.raceadmin.peerservices.CurrentRaceService;
+
+import javax.annotation.PreDestroy;
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The clock queue registrations and results are stamped with. It follows the race clock of current-race,
+ * read every raceadmin.clock.sync millis, so a virtual current-race clock that is sped up or advanced in a
+ * simulation moves race-admin with it.
+ */
+@Configuration
+@Log4j
+public class ClockConfig {
+  @Value("${raceadmin.clock.sync:5000}")
+  private long syncInterval;
+  @Autowired
+  private CurrentRaceService currentRaceService;
+
+  private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "RaceClockSync");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Bean
+  public Clock clock() {
+    CurrentRaceClock clock = new CurrentRaceClock(currentRaceService::clock, ZoneOffset.UTC);
+    syncer.scheduleWithFixedDelay(new Runnable() {
+      private Boolean virtual;
+      private boolean failing;
+
+      @Override
+      public void run() {
+        try {
+          boolean synced = clock.sync();
+          if (virtual == null || virtual != synced) {
+            log.info(synced ? "Following the virtual race clock of current-race" : "Current-race runs on the system clock");
+          }
+          virtual = synced;
+          failing = false;
+        } catch (RuntimeException e) {
+          if (!failing) {
+            log.warn("Could not read the race clock of current-race: " + e.getMessage());
+          }
+          failing = true;
+        }
+      }
+    }, 0, syncInterval, TimeUnit.MILLISECONDS);
+    return clock;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    syncer.shutdownNow();
+  }
+}
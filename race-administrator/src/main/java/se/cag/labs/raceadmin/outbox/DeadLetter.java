@@ -0,0 +1,23 @@
+package se.cag.labs.raceadmin.outbox;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+
+/**
+ * A call to a peer service that was refused for good, kept for an operator to look into. The id is the
+ * idempotency key the call was sent with.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeadLetter {
+  @Id
+  private String id;
+  private OutboxEntry.Kind kind;
+  private Object payload;
+  private long created;
+  private long failed;
+  private String reason;
+}
@@ -0,0 +1,8 @@
+package se.cag.labs.raceadmin.outbox;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface DeadLetterRepository extends MongoRepository<DeadLetter, String> {
+}
@@ -0,0 +1,423 @@
+package se.cag.labs.raceadmin.outbox;
+
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import se.cag.labs.raceadmin.QueueDelta;
+import se.cag.labs.raceadmin.UserResult;
+import se.cag.labs.raceadmin.peerservices.ClientApiService;
+import se.cag.labs.raceadmin.peerservices.CurrentRaceService;
+import se.cag.labs.raceadmin.peerservices.Event;
+import se.cag.labs.raceadmin.peerservices.LeaderBoardService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls to the peer services that must not be lost or hold up the caller: starting races, results for the
+ * leaderboard and events for the clients.
+ * <br>
+ * Race starts and results are recorded in MongoDB before the call returns, and an error recording them is
+ * thrown to the caller, so once a result is acknowledged it survives a crash. Client events are queued in
+ * memory and return at once, and the dispatcher records them in MongoDB in batches before it delivers them.
+ * It runs as soon as an event is queued unless it is busy delivering, and the events queued since it last ran
+ * are lost in a crash. A single dispatcher thread delivers the calls in order per peer service and deletes the
+ * delivered ones in a batch. A call that fails is retried with exponential backoff while the calls to the other
+ * peer services go on. The id of each entry is the idempotency key of the call, sent as the id of a result and
+ * the eventId of an event, so a call that reached the peer but was retried anyway can be recognized. Starting
+ * a race that is already started does nothing in current-race. Undelivered calls are read back when the service
+ * starts. Client events that have waited longer than raceadmin.outbox.event-ttl are dropped, since the clients
+ * have moved on. A race start or result that the peer refuses with a 4xx status, other than 408 and 429, will
+ * never succeed and would hold up the calls behind it, so it is moved to the {@link DeadLetter} collection.
+ * <br>
+ * Client events are sent in batches, in one call per batch. A batch goes when its first event has waited
+ * raceadmin.events.window millis, so the events of a burst of registrations go together. A QUEUE_UPDATED
+ * event with a {@link QueueDelta} that follows another one still waiting to be sent is merged into it, which
+ * keeps the order of the other events.
+ */
+@Component
+@Log4j
+public class Outbox implements PublicMetrics {
+  private static final long INITIAL_BACKOFF = 100;
+  private static final long MAX_BACKOFF = 30 * 1000;
+
+  @Value("${raceadmin.outbox.batch:64}")
+  private int batch;
+  @Value("${raceadmin.outbox.event-ttl:60000}")
+  private long eventTtl;
+  @Value("${raceadmin.events.window:50}")
+  private long eventWindow;
+  @Autowired
+  private OutboxRepository outboxRepository;
+  @Autowired
+  private DeadLetterRepository deadLetterRepository;
+  @Autowired
+  private CurrentRaceService currentRaceService;
+  @Autowired
+  private LeaderBoardService leaderBoardService;
+  @Autowired
+  private ClientApiService clientApiService;
+
+  private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "OutboxDispatcher");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Map<OutboxEntry.Kind, Deque<OutboxEntry>> pending = new EnumMap<>(OutboxEntry.Kind.class);
+  // Only used by the dispatcher thread
+  private final Map<OutboxEntry.Kind, Long> retryAt = new EnumMap<>(OutboxEntry.Kind.class);
+  private final Map<OutboxEntry.Kind, Integer> failures = new EnumMap<>(OutboxEntry.Kind.class);
+  private List<OutboxEntry> unsaved = new ArrayList<>();
+  private ScheduledFuture<?> scheduled;
+  private long scheduledAt;
+  // The client events at the head of the queue that are being sent, and may not be merged into
+  private int eventsInFlight;
+  private final AtomicLong publishedEvents = new AtomicLong();
+  private final AtomicLong coalescedEvents = new AtomicLong();
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private final AtomicLong deadLetters = new AtomicLong();
+  private final AtomicLong eventBatches = new AtomicLong();
+  private final AtomicLong maxEventBatch = new AtomicLong();
+
+  {
+    for (OutboxEntry.Kind kind : OutboxEntry.Kind.values()) {
+      pending.put(kind, new ArrayDeque<>());
+    }
+  }
+
+  @PostConstruct
+  public void rehydrate() {
+    List<OutboxEntry> stored = new ArrayList<>(outboxRepository.findAll());
+    stored.sort(Comparator.comparingLong(OutboxEntry::getCreated));
+    synchronized (this) {
+      stored.forEach(entry -> pending.get(entry.getKind()).add(entry));
+      log.info("Loaded " + stored.size() + " undelivered peer calls");
+      schedule(0);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    dispatcher.shutdown();
+    if (!dispatcher.awaitTermination(5, TimeUnit.SECONDS)) {
+      log.error("Outbox dispatcher did not stop");
+    }
+    List<OutboxEntry> entries;
+    synchronized (this) {
+      entries = unsaved;
+      unsaved = new ArrayList<>();
+    }
+    if (!entries.isEmpty()) {
+      outboxRepository.save(entries);
+    }
+  }
+
+  public void startRace() {
+    add(OutboxEntry.Kind.START_RACE, null);
+  }
+
+  public void newResult(UserResult userResult) {
+    String id = newId();
+    userResult.setId(id);
+    add(id, OutboxEntry.Kind.LEADERBOARD_RESULT, userResult);
+  }
+
+  public void sendEvent(Event<?> event) {
+    if (event.getData() instanceof QueueDelta && coalesce(event)) {
+      return;
+    }
+    String id = newId();
+    add(id, OutboxEntry.Kind.CLIENT_EVENT, event.toBuilder().eventId(id).build());
+  }
+
+  private void add(OutboxEntry.Kind kind, Object payload) {
+    add(newId(), kind, payload);
+  }
+
+  private void add(String id, OutboxEntry.Kind kind, Object payload) {
+    OutboxEntry entry = new OutboxEntry(id, kind, payload, System.currentTimeMillis());
+    if (kind != OutboxEntry.Kind.CLIENT_EVENT) {
+      outboxRepository.save(entry);
+    }
+    synchronized (this) {
+      if (kind == OutboxEntry.Kind.CLIENT_EVENT) {
+        unsaved.add(entry);
+      }
+      pending.get(kind).add(entry);
+      schedule(0);
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    int queued;
+    synchronized (this) {
+      queued = pending.values().stream().mapToInt(Deque::size).sum();
+    }
+    long batches = eventBatches.get();
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("raceadmin.outbox.pending", queued));
+    metrics.add(new Metric<>("raceadmin.outbox.dead-letters", deadLetters.get()));
+    metrics.add(new Metric<>("raceadmin.events.published", publishedEvents.get()));
+    metrics.add(new Metric<>("raceadmin.events.coalesced", coalescedEvents.get()));
+    metrics.add(new Metric<>("raceadmin.events.dropped", droppedEvents.get()));
+    metrics.add(new Metric<>("raceadmin.events.batches", batches));
+    metrics.add(new Metric<>("raceadmin.events.batch-size.mean", batches == 0 ? 0.0 : (double) publishedEvents.get() / batches));
+    metrics.add(new Metric<>("raceadmin.events.batch-size.max", maxEventBatch.get()));
+    return metrics;
+  }
+
+  /**
+   * Merges a queue change into the last client event if it is a queue change that is not being sent.
+   *
+   * @return true if the event was merged
+   */
+  private synchronized boolean coalesce(Event<?> event) {
+    Deque<OutboxEntry> events = pending.get(OutboxEntry.Kind.CLIENT_EVENT);
+    if (events.size() <= eventsInFlight) {
+      return false;
+    }
+    OutboxEntry last = events.peekLast();
+    Event<?> queued = (Event<?>) last.getPayload();
+    if (!(queued.getData() instanceof QueueDelta) || !queued.getEventType().equals(event.getEventType())) {
+      return false;
+    }
+
+    last.setPayload(Event.builder()
+      .eventId(queued.getEventId())
+      .eventType(queued.getEventType())
+      .data(((QueueDelta) queued.getData()).then((QueueDelta) event.getData()))
+      .build());
+    unsaved.add(last);
+    coalescedEvents.incrementAndGet();
+    schedule(0);
+    return true;
+  }
+
+  /**
+   * Runs on the dispatcher thread only.
+   */
+  private void dispatch() {
+    List<OutboxEntry> toSave;
+    synchronized (this) {
+      scheduled = null;
+      toSave = unsaved;
+      unsaved = new ArrayList<>();
+    }
+    if (!toSave.isEmpty()) {
+      try {
+        outboxRepository.save(toSave);
+      } catch (RuntimeException e) {
+        log.error("Could not record " + toSave.size() + " peer calls, delivering them anyway", e);
+      }
+    }
+
+    List<OutboxEntry> delivered = new ArrayList<>();
+    for (OutboxEntry.Kind kind : OutboxEntry.Kind.values()) {
+      deliver(kind, delivered);
+    }
+    if (!delivered.isEmpty()) {
+      try {
+        outboxRepository.delete(delivered);
+      } catch (RuntimeException e) {
+        log.error("Could not delete " + delivered.size() + " delivered peer calls", e);
+      }
+    }
+
+    synchronized (this) {
+      long next = Long.MAX_VALUE;
+      for (OutboxEntry.Kind kind : OutboxEntry.Kind.values()) {
+        OutboxEntry first = pending.get(kind).peek();
+        if (first != null) {
+          long ready = kind == OutboxEntry.Kind.CLIENT_EVENT ? first.getCreated() + eventWindow : 0;
+          next = Math.min(next, Math.max(ready, retryAt.getOrDefault(kind, 0L)));
+        }
+      }
+      if (next != Long.MAX_VALUE || !unsaved.isEmpty()) {
+        schedule(unsaved.isEmpty() ? next : 0);
+      }
+    }
+  }
+
+  /**
+   * Delivers up to a batch of the calls to one peer service, in order, until one of them fails.
+   */
+  private void deliver(OutboxEntry.Kind kind, List<OutboxEntry> delivered) {
+    if (retryAt.getOrDefault(kind, 0L) > System.currentTimeMillis()) {
+      return;
+    }
+    if (kind == OutboxEntry.Kind.CLIENT_EVENT) {
+      deliverEvents(delivered);
+      return;
+    }
+
+    for (int i = 0; i < batch; i++) {
+      OutboxEntry entry;
+      synchronized (this) {
+        entry = pending.get(kind).peek();
+      }
+      if (entry == null) {
+        return;
+      }
+      try {
+        send(entry);
+      } catch (HttpClientErrorException e) {
+        if (!isPermanent(e) || !deadLetter(entry, e)) {
+          failed(kind, entry.getId(), e);
+          return;
+        }
+      } catch (RuntimeException e) {
+        failed(kind, entry.getId(), e);
+        return;
+      }
+      succeeded(kind);
+      synchronized (this) {
+        pending.get(kind).poll();
+      }
+      delivered.add(entry);
+    }
+  }
+
+  /**
+   * Sends the client events that have waited out the window, up to a batch, in one call.
+   */
+  private void deliverEvents(List<OutboxEntry> delivered) {
+    long now = System.currentTimeMillis();
+    List<OutboxEntry> sending = new ArrayList<>();
+    List<Event<?>> events = new ArrayList<>();
+    synchronized (this) {
+      Deque<OutboxEntry> queued = pending.get(OutboxEntry.Kind.CLIENT_EVENT);
+      while (!queued.isEmpty() && now - queued.peek().getCreated() > eventTtl) {
+        log.info("Dropping stale client event " + queued.peek().getId());
+        delivered.add(queued.poll());
+        droppedEvents.incrementAndGet();
+      }
+      if (queued.isEmpty() || now - queued.peek().getCreated() < eventWindow) {
+        return;
+      }
+      Iterator<OutboxEntry> iterator = queued.iterator();
+      while (sending.size() < batch && iterator.hasNext()) {
+        OutboxEntry entry = iterator.next();
+        sending.add(entry);
+        events.add((Event<?>) entry.getPayload());
+      }
+      eventsInFlight = sending.size();
+    }
+
+    try {
+      clientApiService.sendEvents(events);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        eventsInFlight = 0;
+      }
+      failed(OutboxEntry.Kind.CLIENT_EVENT, sending.size() + " events", e);
+      return;
+    }
+    succeeded(OutboxEntry.Kind.CLIENT_EVENT);
+    synchronized (this) {
+      sending.forEach(entry -> pending.get(OutboxEntry.Kind.CLIENT_EVENT).poll());
+      eventsInFlight = 0;
+    }
+    delivered.addAll(sending);
+    publishedEvents.addAndGet(events.size());
+    eventBatches.incrementAndGet();
+    maxEventBatch.accumulateAndGet(events.size(), Math::max);
+  }
+
+  /**
+   * @return true if the peer refused the call in a way that retrying cannot change
+   */
+  private static boolean isPermanent(HttpClientErrorException e) {
+    HttpStatus status = e.getStatusCode();
+    return status != HttpStatus.REQUEST_TIMEOUT && status != HttpStatus.TOO_MANY_REQUESTS;
+  }
+
+  /**
+   * Records a call that was refused for good, so that it can be dropped from the outbox.
+   *
+   * @return true if it was recorded
+   */
+  private boolean deadLetter(OutboxEntry entry, HttpClientErrorException e) {
+    String reason = e.getStatusCode() + " " + e.getResponseBodyAsString();
+    try {
+      deadLetterRepository.save(new DeadLetter(entry.getId(), entry.getKind(), entry.getPayload(), entry.getCreated(),
+        System.currentTimeMillis(), reason));
+    } catch (RuntimeException saveError) {
+      log.error("Could not record refused " + entry.getKind() + " " + entry.getId() + " as a dead letter", saveError);
+      return false;
+    }
+    deadLetters.incrementAndGet();
+    log.error("Peer refused " + entry.getKind() + " " + entry.getId() + " with " + reason + ", moved it to the dead letters");
+    return true;
+  }
+
+  private void failed(OutboxEntry.Kind kind, String what, RuntimeException e) {
+    int failed = failures.merge(kind, 1, Integer::sum);
+    long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(failed - 1, 16));
+    retryAt.put(kind, System.currentTimeMillis() + backoff);
+    log.warn("Could not deliver " + kind + " " + what + ", retrying in " + backoff + " ms: " + e.getMessage());
+  }
+
+  private void succeeded(OutboxEntry.Kind kind) {
+    failures.remove(kind);
+    retryAt.remove(kind);
+  }
+
+  private void send(OutboxEntry entry) {
+    switch (entry.getKind()) {
+      case START_RACE:
+        currentRaceService.startRace();
+        break;
+      case LEADERBOARD_RESULT:
+        leaderBoardService.newResult((UserResult) entry.getPayload());
+        break;
+      default:
+        throw new IllegalStateException("Unknown peer call: " + entry.getKind());
+    }
+  }
+
+  /**
+   * Makes sure the dispatcher runs no later than at the given time, must hold the lock.
+   */
+  private void schedule(long at) {
+    long now = System.currentTimeMillis();
+    at = Math.max(at, now);
+    if (scheduled != null && scheduledAt <= at) {
+      return;
+    }
+    if (scheduled != null) {
+      scheduled.cancel(false);
+    }
+    try {
+      scheduled = dispatcher.schedule(this::dispatch, at - now, TimeUnit.MILLISECONDS);
+      scheduledAt = at;
+    } catch (RejectedExecutionException e) {
+      log.error("Outbox is shut down, " + unsaved.size() + " peer calls are delivered after restart");
+    }
+  }
+
+  private static String newId() {
+    return UUID.randomUUID().toString();
+  }
+}
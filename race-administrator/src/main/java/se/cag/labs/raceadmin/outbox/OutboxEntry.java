@@ -0,0 +1,24 @@
+package se.cag.labs.raceadmin.outbox;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+
+/**
+ * A call to a peer service waiting to be delivered. The id is sent along as the idempotency key of the call.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboxEntry {
+  @Id
+  private String id;
+  private Kind kind;
+  private Object payload;
+  private long created;
+
+  public enum Kind {
+    START_RACE, LEADERBOARD_RESULT, CLIENT_EVENT
+  }
+}
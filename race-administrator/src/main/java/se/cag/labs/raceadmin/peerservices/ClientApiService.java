@@ -10,18 +10,23 @@ import org.springframework.stereotype.*;
 import org.springframework.web.client.*;
 import org.springframework.web.util.*;
 
+import java.util.List;
+
 @Service
 public class ClientApiService {
   @Value("${server.clientapi.base.uri}")
   private String clientApiBaseUri;
 
-  private RestTemplate restTemplate = new RestTemplate();
+  private RestTemplate restTemplate = PeerRestTemplate.create();
 
-  public void sendEvent(Event o) {
+  /**
+   * Sends the events to the clients in one call, in order.
+   */
+  public void sendEvents(List<Event<?>> events) {
     final UriComponents uri = UriComponentsBuilder
-      .fromHttpUrl(clientApiBaseUri + "/event")
+      .fromHttpUrl(clientApiBaseUri + "/events")
       .build();
-    restTemplate.postForObject(uri.toUri(), o, Void.class);
+    restTemplate.postForObject(uri.toUri(), events, Void.class);
   }
 
 }
@@ -0,0 +1,17 @@
+package se.cag.labs.raceadmin.peerservices;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The race clock of current-race as reported by GET /clock
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClockStatus {
+  private long time;
+  private double speed;
+  private boolean virtual;
+}
@@ -0,0 +1,79 @@
+package se.cag.labs.raceadmin.peerservices;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Follows the race clock of current-race, so that queue registrations and results are stamped on the same
+ * clock as the passages. Each {@link #sync()} reads the clock and between syncs it runs on at the speed that
+ * was read. It is the system clock while current-race runs on the system clock or has not been reached yet,
+ * and a failed sync keeps the clock running from the last one.
+ */
+public final class CurrentRaceClock extends Clock {
+  private final Supplier<ClockStatus> source;
+  private final AtomicReference<Sync> last;
+  private final ZoneId zone;
+
+  public CurrentRaceClock(Supplier<ClockStatus> source, ZoneId zone) {
+    this(source, new AtomicReference<>(), zone);
+  }
+
+  private CurrentRaceClock(Supplier<ClockStatus> source, AtomicReference<Sync> last, ZoneId zone) {
+    this.source = source;
+    this.last = last;
+    this.zone = zone;
+  }
+
+  /**
+   * Reads the clock of current-race, taken to be read halfway through the request.
+   *
+   * @return true if current-race runs on a virtual clock
+   */
+  public boolean sync() {
+    long before = System.nanoTime();
+    ClockStatus status = source.get();
+    long after = System.nanoTime();
+    last.set(status.isVirtual() ? new Sync(status.getTime(), status.getSpeed(), before + (after - before) / 2) : null);
+    return status.isVirtual();
+  }
+
+  @Override
+  public long millis() {
+    Sync sync = last.get();
+    if (sync == null) {
+      return System.currentTimeMillis();
+    }
+    return sync.time + TimeUnit.NANOSECONDS.toMillis((long) ((System.nanoTime() - sync.nanos) * sync.speed));
+  }
+
+  @Override
+  public Instant instant() {
+    return Instant.ofEpochMilli(millis());
+  }
+
+  @Override
+  public ZoneId getZone() {
+    return zone;
+  }
+
+  @Override
+  public Clock withZone(ZoneId zone) {
+    return new CurrentRaceClock(source, last, zone);
+  }
+
+  private static final class Sync {
+    private final long time;
+    private final double speed;
+    private final long nanos;
+
+    private Sync(long time, double speed, long nanos) {
+      this.time = time;
+      this.speed = speed;
+      this.nanos = nanos;
+    }
+  }
+}
@@ -17,7 +17,7 @@ public class CurrentRaceService {
   @Value("${server.port}")
   private String selfPort;
 
-  private RestTemplate restTemplate = new RestTemplate();
+  private RestTemplate restTemplate = PeerRestTemplate.create();
 
   public void startRace() {
     final UriComponents uri = UriComponentsBuilder
@@ -38,5 +38,11 @@ public class CurrentRaceService {
       .build();
     return restTemplate.getForObject(uri.toUri(), RaceStatus.class);
   }
+  public ClockStatus clock() {
+    final UriComponents uri = UriComponentsBuilder
+      .fromHttpUrl(currentRaceBaseUri + "/clock")
+      .build();
+    return restTemplate.getForObject(uri.toUri(), ClockStatus.class);
+  }
 
 }
@@ -10,6 +10,10 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 @Builder(toBuilder = true)
 public class Event<T> {
+  /**
+   * Unique per event, for clients to recognize an event that was delivered again
+   */
+  private String eventId;
   private String eventType;
   private T data;
 }
@@ -12,7 +12,7 @@ public class LeaderBoardService {
   @Value("${server.leaderboard.base.uri}")
   private String baseUri;
 
-  private RestTemplate restTemplate = new RestTemplate();
+  private RestTemplate restTemplate = PeerRestTemplate.create();
 
   public void newResult(UserResult userResult) {
     restTemplate.postForObject(baseUri + "/results", userResult, Void.class);
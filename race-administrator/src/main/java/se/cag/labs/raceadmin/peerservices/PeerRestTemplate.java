@@ -0,0 +1,24 @@
+package se.cag.labs.raceadmin.peerservices;
+
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * RestTemplates for the peer services, with timeouts so a peer that hangs fails the call instead of holding
+ * up the outbox.
+ */
+final class PeerRestTemplate {
+  private static final int CONNECT_TIMEOUT = 2000;
+  private static final int READ_TIMEOUT = 5000;
+
+  private PeerRestTemplate() {
+    //Not used
+  }
+
+  static RestTemplate create() {
+    SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+    requestFactory.setConnectTimeout(CONNECT_TIMEOUT);
+    requestFactory.setReadTimeout(READ_TIMEOUT);
+    return new RestTemplate(requestFactory);
+  }
+}
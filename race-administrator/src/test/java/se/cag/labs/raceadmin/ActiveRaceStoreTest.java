@@ -0,0 +1,74 @@
+package se.cag.labs.raceadmin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ActiveRaceStoreTest {
+  @Mock
+  private ActiveRaceRepository activeRaceRepository;
+  @Mock
+  private LastRaceRepository lastRaceRepository;
+  private ActiveRaceStore activeRaceStore;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    when(activeRaceRepository.findAll()).thenReturn(Collections.emptyList());
+    when(lastRaceRepository.findAll()).thenReturn(Collections.emptyList());
+
+    activeRaceStore = new ActiveRaceStore();
+    ReflectionTestUtils.setField(activeRaceStore, "activeRaceRepository", activeRaceRepository);
+    ReflectionTestUtils.setField(activeRaceStore, "lastRaceRepository", lastRaceRepository);
+    activeRaceStore.rehydrate();
+  }
+
+  @Test
+  public void raceIsWrittenBehindInOrder() throws InterruptedException {
+    User user = new User(null, 1000L, "user1", "User 1");
+    activeRaceStore.start(user);
+    RaceStatus started = new RaceStatus(null);
+    started.setState(RaceStatus.RaceState.ACTIVE);
+    started.setEvent(RaceStatus.RaceEvent.START);
+    started.setStartTime(1234L);
+    activeRaceStore.update(started);
+
+    RaceStatus active = activeRaceStore.active();
+    assertEquals(user, active.getUser());
+    assertEquals(Long.valueOf(1234L), active.getStartTime());
+    active.setCurrentTime(5000L);
+    assertNull(activeRaceStore.active().getCurrentTime());
+
+    RaceStatus finished = activeRaceStore.active();
+    finished.setState(RaceStatus.RaceState.INACTIVE);
+    finished.setEvent(RaceStatus.RaceEvent.FINISH);
+    finished.setFinishTime(12345L);
+    activeRaceStore.finish(finished);
+    assertNull(activeRaceStore.active());
+    assertEquals(Long.valueOf(12345L), activeRaceStore.last().getFinishTime());
+
+    activeRaceStore.shutdown();
+    InOrder written = inOrder(activeRaceRepository, lastRaceRepository);
+    ArgumentCaptor<RaceStatus> saved = ArgumentCaptor.forClass(RaceStatus.class);
+    written.verify(activeRaceRepository).save(saved.capture());
+    assertNull(saved.getValue().getStartTime());
+    written.verify(activeRaceRepository).save(saved.capture());
+    assertEquals(Long.valueOf(1234L), saved.getValue().getStartTime());
+    written.verify(lastRaceRepository).save(saved.capture());
+    assertEquals(RaceStatus.RaceEvent.FINISH, saved.getValue().getEvent());
+    verify(activeRaceRepository, times(3)).deleteAll();
+  }
+}
@@ -0,0 +1,70 @@
+package se.cag.labs.raceadmin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class RaceDurationsTest {
+  private RaceDurations raceDurations;
+
+  @Before
+  public void setup() {
+    raceDurations = new RaceDurations();
+    ReflectionTestUtils.setField(raceDurations, "halfLife", 10.0);
+    ReflectionTestUtils.setField(raceDurations, "defaultRace", 60000L);
+  }
+
+  @Test
+  public void recentRacesCountMore() {
+    assertEquals(60000, raceDurations.expected());
+    for (int i = 0; i < 100; i++) {
+      raceDurations.add(RaceStatus.RaceEvent.FINISH, 40000);
+    }
+    assertEquals(40000, raceDurations.expected());
+
+    for (int i = 0; i < 10; i++) {
+      raceDurations.add(RaceStatus.RaceEvent.FINISH, 20000);
+    }
+    // After one half-life the old races weigh about as much as the new ones
+    assertEquals(30000, raceDurations.expected(), 1000);
+  }
+
+  @Test
+  public void remainingTimeIsTheMedianOfTheRacesThatRanLonger() {
+    for (int i = 0; i < 10; i++) {
+      raceDurations.add(RaceStatus.RaceEvent.FINISH, 30000);
+      raceDurations.add(RaceStatus.RaceEvent.FINISH, 40000);
+      raceDurations.add(RaceStatus.RaceEvent.FINISH, 30000);
+    }
+    assertEquals(30000, raceDurations.remaining(0), 30000 * 0.05);
+    assertEquals(20000, raceDurations.remaining(10000), 30000 * 0.05);
+    assertEquals(5000, raceDurations.remaining(35000), 40000 * 0.05);
+    assertEquals(0, raceDurations.remaining(60000));
+  }
+
+  @Test
+  public void walkoversDoNotShortenTheExpectedRace() {
+    // Until a race has finished, every race counts
+    raceDurations.add(RaceStatus.RaceEvent.TIME_OUT_NOT_STARTED, 5000);
+    assertEquals(5000, raceDurations.expected());
+
+    for (int i = 0; i < 10; i++) {
+      raceDurations.add(RaceStatus.RaceEvent.TIME_OUT_NOT_STARTED, 5000);
+      raceDurations.add(RaceStatus.RaceEvent.DISQUALIFIED, 10000);
+      raceDurations.add(RaceStatus.RaceEvent.FINISH, 40000);
+    }
+    assertEquals(40000, raceDurations.expected());
+    assertEquals(40000, raceDurations.remaining(0), 40000 * 0.05);
+
+    Map<String, Number> metrics = raceDurations.metrics().stream()
+      .collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    assertEquals(40000L, metrics.get("raceadmin.waittime.finish.mean"));
+    assertEquals(5000L, metrics.get("raceadmin.waittime.time_out_not_started.mean"));
+  }
+}
@@ -0,0 +1,34 @@
+package se.cag.labs.raceadmin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class RankedSetTest {
+  @Test
+  public void placesMatchASortedSet() {
+    Random random = new Random(42);
+    RankedSet<Integer> ranked = new RankedSet<>(Comparator.naturalOrder());
+    TreeSet<Integer> sorted = new TreeSet<>();
+    for (int i = 0; i < 10000; i++) {
+      Integer value = random.nextInt(500);
+      if (random.nextInt(3) == 0) {
+        assertEquals(sorted.remove(value), ranked.remove(value));
+      } else {
+        assertEquals(sorted.add(value), ranked.add(value));
+      }
+      assertEquals(sorted.size(), ranked.size());
+      assertEquals(sorted.contains(value) ? sorted.headSet(value).size() + 1 : 0, ranked.rank(value));
+    }
+    List<Integer> iterated = new ArrayList<>();
+    ranked.forEach(iterated::add);
+    assertEquals(new ArrayList<>(sorted), iterated);
+    assertEquals(sorted.first(), ranked.first());
+  }
+}
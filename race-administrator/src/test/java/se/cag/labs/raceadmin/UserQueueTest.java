@@ -0,0 +1,185 @@
+package se.cag.labs.raceadmin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+import se.cag.labs.raceadmin.outbox.Outbox;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+public class UserQueueTest {
+  private static final int REGISTRANTS = 200;
+
+  @Mock
+  private UserQueueRepository userQueueRepository;
+  @Mock
+  private ActiveRaceRepository activeRaceRepository;
+  @Mock
+  private Outbox outbox;
+  private final MutableClock clock = new MutableClock();
+  private RaceDurations raceDurations;
+  private UserQueue userQueue;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    when(userQueueRepository.findAll()).thenReturn(Collections.emptyList());
+    when(activeRaceRepository.findAll()).thenReturn(Collections.emptyList());
+
+    raceDurations = new RaceDurations();
+    ReflectionTestUtils.setField(raceDurations, "halfLife", 20.0);
+    ReflectionTestUtils.setField(raceDurations, "defaultRace", 60000L);
+
+    userQueue = new UserQueue();
+    ReflectionTestUtils.setField(userQueue, "userQueueRepository", userQueueRepository);
+    ReflectionTestUtils.setField(userQueue, "activeRaceRepository", activeRaceRepository);
+    ReflectionTestUtils.setField(userQueue, "outbox", outbox);
+    ReflectionTestUtils.setField(userQueue, "raceDurations", raceDurations);
+    ReflectionTestUtils.setField(userQueue, "clock", clock);
+    userQueue.rehydrate();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    userQueue.shutdown();
+  }
+
+  @Test
+  public void simultaneousRegistrantsStartExactlyOneRace() throws InterruptedException {
+    CountDownLatch go = new CountDownLatch(1);
+    ConcurrentLinkedQueue<Admission> admissions = new ConcurrentLinkedQueue<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < REGISTRANTS; i++) {
+      // Every user registers twice, the second registration must be refused
+      User user = user("user" + i, 1000);
+      for (int attempt = 0; attempt < 2; attempt++) {
+        threads.add(new Thread(() -> {
+          try {
+            go.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          Admission admission = userQueue.admit(user);
+          if (admission != null) {
+            admissions.add(admission);
+          }
+        }));
+      }
+    }
+    threads.forEach(Thread::start);
+    go.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(REGISTRANTS, admissions.size());
+    List<Admission> started = admissions.stream().filter(admission -> admission.getStart() != null).collect(Collectors.toList());
+    assertEquals(1, started.size());
+    assertEquals(0, started.get(0).getPosition());
+    Set<Integer> positions = admissions.stream().map(Admission::getPosition).collect(Collectors.toCollection(TreeSet::new));
+    assertEquals(IntStream.range(0, REGISTRANTS).boxed().collect(Collectors.toSet()), positions);
+    assertEquals(REGISTRANTS - 1, userQueue.list().size());
+  }
+
+  @Test
+  public void raceIsHandedOffOnceWhenItEndsTwice() {
+    User first = user("first", 1000);
+    User second = user("second", 2000);
+    User third = user("third", 3000);
+    assertEquals(first, userQueue.admit(first).getStart());
+    Admission secondAdmission = userQueue.admit(second);
+    assertNull(secondAdmission.getStart());
+    assertEquals(1, secondAdmission.getPosition());
+    assertEquals(2, userQueue.admit(third).getPosition());
+    assertNull(userQueue.admit(first));
+
+    assertEquals(second, userQueue.next(first, RaceStatus.RaceEvent.FINISH));
+    assertNull(userQueue.next(first, RaceStatus.RaceEvent.FINISH));
+    assertEquals(Collections.singletonList(third), userQueue.list());
+  }
+
+  @Test
+  public void queueIsOrderedByRegistrationTime() {
+    assertNotNull(userQueue.admit(user("racing", 1000)));
+    userQueue.admit(user("late", 3000));
+    // A registration with an earlier timestamp is placed before the ones already queued
+    assertEquals(1, userQueue.admit(user("early", 2000)).getPosition());
+    assertEquals(2, userQueue.admit(user("gone", 2500)).getPosition());
+    assertEquals("gone", userQueue.remove("gone").getUserId());
+    assertNull(userQueue.remove("gone"));
+
+    List<String> queued = userQueue.list().stream().map(User::getUserId).collect(Collectors.toList());
+    assertEquals(Arrays.asList("early", "late"), queued);
+  }
+
+  @Test
+  public void startOfEachQueuedUserIsPredictedFromTheRaceDurations() {
+    User first = user("first", 1000);
+    User second = user("second", 2000);
+    User third = user("third", 3000);
+    userQueue.admit(first);
+    userQueue.admit(second);
+    userQueue.admit(third);
+    // Nothing is known about the races yet, so they are expected to take the default minute
+    assertEquals(Arrays.asList(new WaitTime("second", 1, clock.now + 60000), new WaitTime("third", 2, clock.now + 120000)),
+      userQueue.predictions());
+
+    clock.now += 30000;
+    assertEquals(second, userQueue.next(first, RaceStatus.RaceEvent.FINISH));
+    clock.now += 10000;
+    List<WaitTime> predictions = userQueue.predictions();
+    assertEquals(1, predictions.size());
+    assertEquals(1, predictions.get(0).getPosition());
+    // The next race is expected to take about as long as the last one, and has run for 10 s
+    assertEquals(clock.now + 20000, predictions.get(0).getPredictedStart(), 30000 * 0.05);
+  }
+
+  private static User user(String userId, long timestamp) {
+    return User.builder().userId(userId).displayName(userId).timestamp(timestamp).build();
+  }
+
+  private static final class MutableClock extends Clock {
+    private long now = 1000000;
+
+    @Override
+    public long millis() {
+      return now;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(now);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package se.cag.labs.raceadmin.outbox;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import se.cag.labs.raceadmin.QueueDelta;
+import se.cag.labs.raceadmin.User;
+import se.cag.labs.raceadmin.UserResult;
+import se.cag.labs.raceadmin.WaitEstimate;
+import se.cag.labs.raceadmin.peerservices.ClientApiService;
+import se.cag.labs.raceadmin.peerservices.CurrentRaceService;
+import se.cag.labs.raceadmin.peerservices.Event;
+import se.cag.labs.raceadmin.peerservices.LeaderBoardService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OutboxTest {
+  private static final WaitEstimate ESTIMATE = new WaitEstimate(1000, 60000);
+
+  @Mock
+  private OutboxRepository outboxRepository;
+  @Mock
+  private DeadLetterRepository deadLetterRepository;
+  @Mock
+  private CurrentRaceService currentRaceService;
+  @Mock
+  private LeaderBoardService leaderBoardService;
+  @Mock
+  private ClientApiService clientApiService;
+  @Captor
+  private ArgumentCaptor<List<OutboxEntry>> saved;
+  @Captor
+  private ArgumentCaptor<List<OutboxEntry>> deleted;
+  @Captor
+  private ArgumentCaptor<List<Event<?>>> sent;
+  private Outbox outbox;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    when(outboxRepository.findAll()).thenReturn(Collections.emptyList());
+
+    outbox = new Outbox();
+    ReflectionTestUtils.setField(outbox, "outboxRepository", outboxRepository);
+    ReflectionTestUtils.setField(outbox, "deadLetterRepository", deadLetterRepository);
+    ReflectionTestUtils.setField(outbox, "currentRaceService", currentRaceService);
+    ReflectionTestUtils.setField(outbox, "leaderBoardService", leaderBoardService);
+    ReflectionTestUtils.setField(outbox, "clientApiService", clientApiService);
+    ReflectionTestUtils.setField(outbox, "batch", 64);
+    ReflectionTestUtils.setField(outbox, "eventTtl", 60000L);
+    ReflectionTestUtils.setField(outbox, "eventWindow", 50L);
+    outbox.rehydrate();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    outbox.shutdown();
+  }
+
+  @Test
+  public void callerDoesNotWaitForASlowPeer() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      release.await();
+      return null;
+    }).when(leaderBoardService).newResult(any(UserResult.class));
+
+    long start = System.nanoTime();
+    outbox.newResult(new UserResult());
+    outbox.sendEvent(Event.builder().eventType("NEW_RESULT").build());
+    outbox.startRace();
+    long elapsed = System.nanoTime() - start;
+    release.countDown();
+
+    assertTrue("Took " + elapsed + " ns", elapsed < TimeUnit.MILLISECONDS.toNanos(50));
+    verify(leaderBoardService, timeout(1000)).newResult(any(UserResult.class));
+    verify(clientApiService, timeout(1000)).sendEvents(anyEvents());
+    verify(currentRaceService, timeout(1000)).startRace();
+  }
+
+  @Test
+  public void failedResultIsRetriedWithItsIdempotencyKey() {
+    doThrow(new ResourceAccessException("Leaderboard is down"))
+      .doThrow(new ResourceAccessException("Leaderboard is down"))
+      .doNothing()
+      .when(leaderBoardService).newResult(any(UserResult.class));
+    doNothing().when(clientApiService).sendEvents(anyEvents());
+
+    outbox.newResult(new UserResult());
+    // Events are delivered while the leaderboard is down
+    outbox.sendEvent(Event.builder().eventType("QUEUE_UPDATED").build());
+    verify(clientApiService, timeout(1000)).sendEvents(anyEvents());
+
+    ArgumentCaptor<UserResult> results = ArgumentCaptor.forClass(UserResult.class);
+    verify(leaderBoardService, timeout(5000).times(3)).newResult(results.capture());
+    String id = results.getAllValues().get(0).getId();
+    assertNotNull(id);
+    results.getAllValues().forEach(result -> assertEquals(id, result.getId()));
+  }
+
+  @Test
+  public void refusedResultIsMovedToTheDeadLetters() {
+    doThrow(new HttpClientErrorException(HttpStatus.BAD_REQUEST))
+      .doNothing()
+      .when(leaderBoardService).newResult(any(UserResult.class));
+
+    UserResult refused = new UserResult();
+    outbox.newResult(refused);
+    outbox.newResult(new UserResult());
+
+    // The refused result is not retried, and the one behind it is delivered
+    verify(leaderBoardService, timeout(1000).times(2)).newResult(any(UserResult.class));
+    verify(leaderBoardService, after(500).times(2)).newResult(any(UserResult.class));
+    ArgumentCaptor<DeadLetter> deadLetter = ArgumentCaptor.forClass(DeadLetter.class);
+    verify(deadLetterRepository).save(deadLetter.capture());
+    assertEquals(refused.getId(), deadLetter.getValue().getId());
+    assertEquals(OutboxEntry.Kind.LEADERBOARD_RESULT, deadLetter.getValue().getKind());
+    verify(outboxRepository, atLeastOnce()).delete(deleted.capture());
+    assertEquals(2, deleted.getAllValues().stream().mapToInt(List::size).sum());
+  }
+
+  @Test
+  public void throttledResultIsRetried() {
+    doThrow(new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS))
+      .doNothing()
+      .when(leaderBoardService).newResult(any(UserResult.class));
+
+    outbox.newResult(new UserResult());
+
+    verify(leaderBoardService, timeout(5000).times(2)).newResult(any(UserResult.class));
+    verify(deadLetterRepository, never()).save(any(DeadLetter.class));
+  }
+
+  @Test
+  public void deliveredCallsAreDeleted() {
+    outbox.sendEvent(Event.builder().eventType("QUEUE_UPDATED").build());
+    verify(clientApiService, timeout(1000)).sendEvents(anyEvents());
+
+    verify(outboxRepository, timeout(1000).atLeastOnce()).save(saved.capture());
+    verify(outboxRepository, timeout(1000).atLeastOnce()).delete(deleted.capture());
+    assertEquals(saved.getValue(), deleted.getValue());
+    verify(outboxRepository, times(1)).save(anyListOf(OutboxEntry.class));
+  }
+
+  @Test
+  public void resultIsRecordedBeforeTheCallReturns() {
+    doThrow(new DataAccessResourceFailureException("MongoDB is down"))
+      .doReturn(null)
+      .when(outboxRepository).save(any(OutboxEntry.class));
+
+    try {
+      outbox.newResult(new UserResult());
+      fail("A result that could not be recorded was acknowledged");
+    } catch (DataAccessResourceFailureException expected) {
+      // The caller of on-race-status-update gets an error and sends the status again
+    }
+    outbox.newResult(new UserResult());
+    verify(outboxRepository, times(2)).save(any(OutboxEntry.class));
+
+    // Only the recorded result is delivered
+    verify(leaderBoardService, timeout(1000)).newResult(any(UserResult.class));
+    verify(leaderBoardService, after(200).times(1)).newResult(any(UserResult.class));
+  }
+
+  @Test
+  public void burstOfEventsIsSentInOneBatchWithQueueChangesMerged() {
+    User first = User.builder().userId("first").build();
+    User second = User.builder().userId("second").build();
+    outbox.sendEvent(Event.builder().eventType("QUEUE_UPDATED").data(QueueDelta.added(1, first, null)).build());
+    outbox.sendEvent(Event.builder().eventType("QUEUE_UPDATED").data(QueueDelta.added(2, second, null)).build());
+    outbox.sendEvent(Event.builder().eventType("QUEUE_UPDATED").data(QueueDelta.removed(3, first, null)).build());
+    outbox.sendEvent(Event.builder().eventType("CURRENT_RACE_STATUS").build());
+    outbox.sendEvent(Event.builder().eventType("QUEUE_UPDATED").data(QueueDelta.removed(4, second, ESTIMATE)).build());
+    outbox.sendEvent(Event.builder().eventType("NEW_RESULT").build());
+
+    verify(clientApiService, timeout(1000)).sendEvents(sent.capture());
+    List<Event<?>> events = sent.getValue();
+    assertEquals(Arrays.asList("QUEUE_UPDATED", "CURRENT_RACE_STATUS", "QUEUE_UPDATED", "NEW_RESULT"),
+      events.stream().map(Event::getEventType).collect(Collectors.toList()));
+    assertEquals(new QueueDelta(3, Collections.singletonList(second), Collections.emptyList(), null), events.get(0).getData());
+    assertEquals(new QueueDelta(4, Collections.emptyList(), Collections.singletonList("second"), ESTIMATE), events.get(2).getData());
+    assertEquals(4L, metric("raceadmin.events.published"));
+    assertEquals(2L, metric("raceadmin.events.coalesced"));
+    assertEquals(1L, metric("raceadmin.events.batches"));
+  }
+
+  private static List<Event<?>> anyEvents() {
+    return any();
+  }
+
+  private Object metric(String name) {
+    return outbox.metrics().stream()
+      .filter(metric -> metric.getName().equals(name))
+      .findFirst()
+      .map(Metric::getValue)
+      .orElse(null);
+  }
+}
@@ -0,0 +1,38 @@
+package se.cag.labs.raceadmin.peerservices;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CurrentRaceClockTest {
+  private static final long START = 1500000000000L;
+
+  @Test
+  public void followsTheVirtualClockOfCurrentRace() throws InterruptedException {
+    AtomicReference<ClockStatus> status = new AtomicReference<>(new ClockStatus(START, 1000, true));
+    CurrentRaceClock clock = new CurrentRaceClock(status::get, ZoneOffset.UTC);
+
+    assertTrue(clock.sync());
+    Thread.sleep(50);
+    assertTrue(clock.millis() >= START + 50 * 1000);
+
+    // An advanced clock is followed from the next sync
+    status.set(new ClockStatus(START + 24 * 3600 * 1000, 0, true));
+    clock.sync();
+    assertEquals(START + 24 * 3600 * 1000, clock.millis());
+    assertEquals(clock.millis(), clock.withZone(ZoneOffset.ofHours(1)).millis());
+  }
+
+  @Test
+  public void isTheSystemClockWhenCurrentRaceIs() {
+    CurrentRaceClock clock = new CurrentRaceClock(() -> new ClockStatus(START, 1, false), ZoneOffset.UTC);
+
+    assertFalse(clock.sync());
+    assertEquals(System.currentTimeMillis(), clock.millis(), 1000);
+  }
+}